@@ -12,18 +12,131 @@ public interface AlfrescoClient {
    * @param lastTransactionId
    *         the id of the last transaction already being indexed; it can be considered a "startFrom" param
    * @return an {@link AlfrescoResponse}
+   * @throws AlfrescoRequestException if Alfresco refuses the request (i.e. wrong credentials)
    */
   AlfrescoResponse fetchNodes(long lastTransactionId, long lastAclChangesetId) throws
       AlfrescoDownException;
 
+  /**
+   * Fetches nodes like {@link #fetchNodes(long, long)}, streaming them (as newline delimited JSON) into the
+   * given handler one at a time, so that pages of any size are processed with a constant amount of memory.
+   *
+   * @param lastAclChangesetId
+   *         the id of the last ACL changeset already being indexed; it can be considered a "startFrom" param
+   * @param lastTransactionId
+   *         the id of the last transaction already being indexed; it can be considered a "startFrom" param
+   * @param handler
+   *         receives each document as soon as it is read
+   * @return an {@link AlfrescoResponse} with the last ids and no documents
+   */
+  AlfrescoResponse streamNodes(long lastTransactionId, long lastAclChangesetId, AlfrescoDocumentHandler handler)
+      throws AlfrescoDownException;
+
+  /**
+   * Fetches nodes like {@link #fetchNodes(long, long)}; if no node has changed, it blocks until Alfresco
+   * notifies a change (or the long-poll timeout expires) and then fetches nodes again.
+   * Meant for continuous indexing, where it replaces frequent polling.
+   *
+   * @param lastAclChangesetId
+   *         the id of the last ACL changeset already being indexed; it can be considered a "startFrom" param
+   * @param lastTransactionId
+   *         the id of the last transaction already being indexed; it can be considered a "startFrom" param
+   * @return an {@link AlfrescoResponse}
+   */
+  AlfrescoResponse waitForNodes(long lastTransactionId, long lastAclChangesetId) throws
+      AlfrescoDownException;
+
+  /**
+   * Sets how many transactions and ACL changesets each following {@link #fetchNodes(long, long)} (or
+   * {@link #waitForNodes(long, long)}) asks for; non-positive values leave the page size to Alfresco.
+   *
+   * @param maxTransactions
+   *         the maximum number of transactions returned by a single request
+   * @param maxAclChangesets
+   *         the maximum number of ACL changesets returned by a single request
+   */
+  void setPageSize(int maxTransactions, int maxAclChangesets);
+
+  /**
+   * Restricts each following {@link #fetchNodes(long, long)} (or {@link #streamNodes} and
+   * {@link #waitForNodes(long, long)}) to nodes within the given sites and folders; deletions are never
+   * restricted. Null or empty lists leave the changes unrestricted.
+   *
+   * @param sites
+   *         short names of the sites
+   * @param folders
+   *         nodeRefs of the folders
+   */
+  void setScope(List<String> sites, List<String> folders);
+
+  /**
+   * Sets the trace id of the requests sent by the current thread from then on (null for none): each request
+   * is identified by the trace id and a sequence number (i.e. 3fa2b1c0-42), sent as the X-Request-Id header
+   * under which Alfresco logs and times the request, so that crawling activities can be traced end to end.
+   *
+   * @param traceId
+   *         the trace id, i.e. of the documents being processed
+   */
+  void setTraceId(String traceId);
+
+  /**
+   * Fetches the current state of Alfresco: the last transaction id, the last ACL changeset id and
+   * approximate node counts; comparing them with the last indexed ids tells how far behind the index is.
+   * @return an {@link AlfrescoStatus}
+   */
+  AlfrescoStatus fetchStatus() throws AlfrescoDownException;
+
   /**
    * Fetches metadata from Alfresco for a given node.
    * @param nodeUuid
    *        the UUID for the node
    * @return a map with metadata created from a json object
+   * @throws AlfrescoRequestException if Alfresco refuses the request (i.e. 404 once the node has been deleted)
    */
   Map<String, Object> fetchMetadata(String nodeUuid) throws AlfrescoDownException;
 
+  /**
+   * Restricts the properties and aspects returned by each following {@link #fetchMetadata(String)}; Alfresco
+   * leaves out the other ones before rendering the metadata out. Null or empty fields return all of them.
+   *
+   * @param fields
+   *         prefixed QNames of properties and aspects (i.e. cm:name or cm:titled), those starting with "-"
+   *         being excluded
+   */
+  void setFields(List<String> fields);
+
+  /**
+   * Requests each following {@link #fetchNodes(long, long)} (or {@link #streamNodes} and
+   * {@link #waitForNodes(long, long)}) to render the details of every node that is not deleted inline,
+   * restricted by {@link #setFields(List)}; documents then carry the same metadata as {@link #fetchMetadata(String)},
+   * and no further request per node is needed. Null or empty parts render out changes only.
+   *
+   * @param parts
+   *         details to be rendered out: properties, aspects, acl and path (or a subset of them)
+   */
+  void setInclude(List<String> parts);
+
+  /**
+   * Fetches the content of a given node, keeping it in memory or spilling it to a temporary file
+   * depending on its size; the returned content must be closed once used.
+   * @param nodeUuid
+   *        the UUID for the node
+   * @return an {@link AlfrescoContent}, or null if the node has no content
+   * @throws AlfrescoContentTooLargeException if the content exceeds the maximum content size
+   */
+  AlfrescoContent fetchContent(String nodeUuid) throws AlfrescoDownException;
+
+  /**
+   * Fetches the content of a given node as plain text, i.e. its plain text rendition or a plain text
+   * transformation of its content; if Alfresco has neither, the raw content is returned, see
+   * {@link AlfrescoContent#getSource()}. The returned content must be closed once used.
+   * @param nodeUuid
+   *        the UUID for the node
+   * @return an {@link AlfrescoContent}, or null if the node has no content
+   * @throws AlfrescoContentTooLargeException if the content exceeds the maximum content size
+   */
+  AlfrescoContent fetchText(String nodeUuid) throws AlfrescoDownException;
+
   /**
    * Fetches authorities for the provided username.
    * @param username
@@ -36,4 +149,9 @@ public interface AlfrescoClient {
    * @return a list of {@link AlfrescoUser}
    */
   List<AlfrescoUser> fetchAllUsersAuthorities() throws AlfrescoDownException;
+
+  /**
+   * Releases the pooled connections of the client, which must not be used afterwards.
+   */
+  void close();
 }
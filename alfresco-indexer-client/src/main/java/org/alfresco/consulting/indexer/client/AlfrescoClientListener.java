@@ -0,0 +1,44 @@
+package org.alfresco.consulting.indexer.client;
+
+/**
+ * Notified of the requests sent by {@link WebScriptsAlfrescoClient}, telling whether throughput is limited by
+ * Alfresco (latency), the network (bytes, pool wait) or the client itself (parse time).
+ * Operations are named after the WebScripts: changes, events, status, details, content, text and authorities.
+ * Listeners are invoked by the crawling threads, hence must be thread-safe
+ */
+public interface AlfrescoClientListener {
+  /**
+   * A response has been received
+   * @param latency milliseconds from sending the request (including the pool wait) to receiving the response headers
+   */
+  void requestExecuted(String operation, int statusCode, long latency);
+
+  /**
+   * A response has been read
+   * @param bytes     the bytes received over the wire (compressed, if so)
+   * @param parseTime milliseconds spent reading and parsing the response
+   */
+  void responseRead(String operation, long bytes, long parseTime);
+
+  /**
+   * Alfresco has told (Server-Timing response header) how long a stage of the request took, i.e. a query
+   * @param duration milliseconds
+   */
+  void serverTimed(String operation, String stage, long duration);
+
+  /**
+   * A page of changes has been read
+   */
+  void pageRead(int documents);
+
+  /**
+   * A request failed and is about to be retried
+   */
+  void requestRetried(String operation);
+
+  /**
+   * A pooled connection has been leased
+   * @param waitTime milliseconds spent waiting for a free connection
+   */
+  void connectionLeased(long waitTime);
+}
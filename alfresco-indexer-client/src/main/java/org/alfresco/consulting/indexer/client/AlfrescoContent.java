@@ -0,0 +1,149 @@
+package org.alfresco.consulting.indexer.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The content of a node, read from Alfresco once and kept in memory up to a threshold; larger content is
+ * spilled to a temporary file, which is deleted on {@link #close()}.
+ */
+public class AlfrescoContent implements Closeable {
+  /** The original content of the node */
+  public static final String SOURCE_RAW = "raw";
+  /** The plain text rendition of the node */
+  public static final String SOURCE_RENDITION = "rendition";
+  /** The content of the node, transformed into plain text by Alfresco */
+  public static final String SOURCE_TRANSFORMATION = "transformation";
+
+  private static final Logger logger = LoggerFactory.getLogger(AlfrescoContent.class);
+  private static final int BUFFER_SIZE = 8192;
+
+  private final String source;
+  private final String mimeType;
+  private final long length;
+  private final byte[] data;
+  private final File file;
+  private InputStream stream;
+
+  private AlfrescoContent(String source, String mimeType, long length, byte[] data, File file) {
+    this.source = source;
+    this.mimeType = mimeType;
+    this.length = length;
+    this.data = data;
+    this.file = file;
+  }
+
+  /**
+   * Reads the whole stream, which is not closed.
+   *
+   * @param source          one of {@link #SOURCE_RAW}, {@link #SOURCE_RENDITION} or {@link #SOURCE_TRANSFORMATION}
+   * @param memoryThreshold content up to this size (in bytes) is kept in memory, larger content is spilled to disk
+   * @param maxSize         the maximum content size (in bytes), negative for no limit
+   * @throws AlfrescoContentTooLargeException if the content exceeds maxSize
+   */
+  static AlfrescoContent read(InputStream content, String source, String mimeType, int memoryThreshold, long maxSize)
+      throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.min(memoryThreshold, BUFFER_SIZE));
+    OutputStream output = buffer;
+    File file = null;
+    long length = 0;
+    try {
+      byte[] chunk = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = content.read(chunk)) != -1) {
+        length += read;
+        if (maxSize >= 0 && length > maxSize) {
+          throw new AlfrescoContentTooLargeException(String.format("Content exceeds %d bytes", maxSize));
+        }
+        if (file == null && length > memoryThreshold) {
+          file = File.createTempFile("alfresco-content", ".tmp");
+          output = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+          buffer.writeTo(output);
+          buffer = null;
+        }
+        output.write(chunk, 0, read);
+      }
+      output.close();
+    } catch (IOException e) {
+      discard(output, file);
+      throw e;
+    } catch (RuntimeException e) {
+      discard(output, file);
+      throw e;
+    }
+
+    if (file != null) {
+      logger.debug("Spilled {} bytes of content to {}", length, file);
+      return new AlfrescoContent(source, mimeType, length, null, file);
+    }
+    return new AlfrescoContent(source, mimeType, length, buffer.toByteArray(), null);
+  }
+
+  private static void discard(OutputStream output, File file) {
+    try {
+      output.close();
+    } catch (IOException e) {
+      logger.debug("Cannot close spilled content", e);
+    }
+    if (file != null && !file.delete()) {
+      logger.warn("Cannot delete spilled content {}", file);
+    }
+  }
+
+  /**
+   * @return the content stream; it is closed along with this content
+   */
+  public InputStream getInputStream() throws IOException {
+    if (stream == null) {
+      stream = file == null ? new ByteArrayInputStream(data) : new FileInputStream(file);
+    }
+    return stream;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  public String getMimeType() {
+    return mimeType;
+  }
+
+  /**
+   * @return what the content is: the original content of the node or its plain text
+   */
+  public String getSource() {
+    return source;
+  }
+
+  /**
+   * @return true if the content has been spilled to a temporary file
+   */
+  public boolean isSpilled() {
+    return file != null;
+  }
+
+  @Override
+  public void close() {
+    if (stream != null) {
+      try {
+        stream.close();
+      } catch (IOException e) {
+        logger.debug("Cannot close content stream", e);
+      }
+    }
+    if (file != null && file.exists() && !file.delete()) {
+      logger.warn("Cannot delete spilled content {}", file);
+    }
+  }
+}
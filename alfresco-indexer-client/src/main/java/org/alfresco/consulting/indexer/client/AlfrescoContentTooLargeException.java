@@ -0,0 +1,19 @@
+package org.alfresco.consulting.indexer.client;
+
+public class AlfrescoContentTooLargeException extends RuntimeException {
+  public AlfrescoContentTooLargeException() {
+    super();
+  }
+
+  public AlfrescoContentTooLargeException(String s) {
+    super(s);
+  }
+
+  public AlfrescoContentTooLargeException(String s, Throwable throwable) {
+    super(s, throwable);
+  }
+
+  public AlfrescoContentTooLargeException(Throwable throwable) {
+    super(throwable);
+  }
+}
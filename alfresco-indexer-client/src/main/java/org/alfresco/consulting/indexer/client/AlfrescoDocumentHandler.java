@@ -0,0 +1,13 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.util.Map;
+
+/**
+ * Receives documents as soon as they are read from a streamed changes page
+ */
+public interface AlfrescoDocumentHandler {
+  /**
+   * @param document a changed node, with the same keys as the documents of an {@link AlfrescoResponse}
+   */
+  void handleDocument(Map<String, Object> document);
+}
@@ -0,0 +1,18 @@
+package org.alfresco.consulting.indexer.client;
+
+/**
+ * Alfresco has refused a request (i.e. 400 for an invalid fields spec, 401 for wrong credentials, 404 for a node
+ * deleted in the meantime): Alfresco is up, sending the same request again would get the same response
+ */
+public class AlfrescoRequestException extends RuntimeException {
+  private final int statusCode;
+
+  public AlfrescoRequestException(int statusCode, String s) {
+    super(s);
+    this.statusCode = statusCode;
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+}
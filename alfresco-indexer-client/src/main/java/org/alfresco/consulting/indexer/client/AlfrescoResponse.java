@@ -11,14 +11,29 @@ public class AlfrescoResponse {
   private final String storeId;
   private final String storeProtocol;
   private final Iterable<Map<String, Object>> documents;
+  private final long size;
+  private final long compressedSize;
 
   public AlfrescoResponse(long lastTransactionId, long lastAclChangesetId, String storeId,
-                          String storeProtocol, Iterable<Map<String, Object>> documents) {
+                          String storeProtocol, Iterable<Map<String, Object>> documents, long size,
+                          long compressedSize) {
     this.lastTransactionId = lastTransactionId;
     this.lastAclChangesetId = lastAclChangesetId;
     this.storeId = storeId;
     this.storeProtocol = storeProtocol;
     this.documents = documents;
+    this.size = size;
+    this.compressedSize = compressedSize;
+  }
+
+  public AlfrescoResponse(long lastTransactionId, long lastAclChangesetId, String storeId,
+                          String storeProtocol, Iterable<Map<String, Object>> documents, long size) {
+    this(lastTransactionId, lastAclChangesetId, storeId, storeProtocol, documents, size, size);
+  }
+
+  public AlfrescoResponse(long lastTransactionId, long lastAclChangesetId, String storeId,
+                          String storeProtocol, Iterable<Map<String, Object>> documents) {
+    this(lastTransactionId, lastAclChangesetId, storeId, storeProtocol, documents, -1);
   }
 
   public AlfrescoResponse(long lastTransactionId, long lastAclChangesetId) {
@@ -41,6 +56,21 @@ public class AlfrescoResponse {
     return storeProtocol;
   }
 
+  /**
+   * @return the size (in bytes) of the response body, or -1 if unknown
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * @return the number of bytes received over the wire, which is less than {@link #getSize()} if the
+   * response was compressed, or -1 if unknown
+   */
+  public long getCompressedSize() {
+    return compressedSize;
+  }
+
   public Iterable<Map<String,Object>> getDocuments() {
     return documents;
   }
@@ -0,0 +1,31 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.util.Map;
+
+public class AlfrescoStatus {
+  private final long lastTransactionId;
+  private final long lastAclChangesetId;
+  private final Map<String, Map<String, Long>> nodeCounts;
+
+  public AlfrescoStatus(long lastTransactionId, long lastAclChangesetId,
+                        Map<String, Map<String, Long>> nodeCounts) {
+    this.lastTransactionId = lastTransactionId;
+    this.lastAclChangesetId = lastAclChangesetId;
+    this.nodeCounts = nodeCounts;
+  }
+
+  public long getLastTransactionId() {
+    return lastTransactionId;
+  }
+
+  public long getLastAclChangesetId() {
+    return lastAclChangesetId;
+  }
+
+  /**
+   * @return approximate node counts, keyed by store (i.e. workspace://SpacesStore) and then by type (i.e. cm:content)
+   */
+  public Map<String, Map<String, Long>> getNodeCounts() {
+    return nodeCounts;
+  }
+}
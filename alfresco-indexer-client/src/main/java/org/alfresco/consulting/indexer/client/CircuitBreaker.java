@@ -0,0 +1,67 @@
+package org.alfresco.consulting.indexer.client;
+
+/**
+ * Stops requests to Alfresco after a number of consecutive failures; once the open time has elapsed,
+ * a single request is let through and its outcome decides whether the circuit closes or opens again.
+ */
+public class CircuitBreaker {
+  private final int failureThreshold;
+  private final long openTime;
+  private int consecutiveFailures = 0;
+  private long openUntil = 0;
+  /** The thread sending the trial request, if any */
+  private Thread trial = null;
+
+  /**
+   * @param failureThreshold the number of consecutive failures opening the circuit
+   * @param openTime         how long (in milliseconds) requests fail fast once the circuit is open
+   */
+  public CircuitBreaker(int failureThreshold, long openTime) {
+    this.failureThreshold = failureThreshold;
+    this.openTime = openTime;
+  }
+
+  /**
+   * @return true if a request can be sent, false if it should fail fast
+   */
+  public synchronized boolean allowRequest() {
+    if (consecutiveFailures < failureThreshold) {
+      return true;
+    }
+    if (trial == null && System.currentTimeMillis() >= openUntil) {
+      trial = Thread.currentThread();
+      return true;
+    }
+    return false;
+  }
+
+  public synchronized void recordSuccess() {
+    consecutiveFailures = 0;
+    trial = null;
+  }
+
+  public synchronized void recordFailure() {
+    consecutiveFailures++;
+    trial = null;
+    if (consecutiveFailures >= failureThreshold) {
+      openUntil = System.currentTimeMillis() + openTime;
+    }
+  }
+
+  /**
+   * Ends a request of the current thread, whatever its outcome; when the trial request ends without any outcome
+   * being recorded (i.e. it is interrupted), the next request is let through as the trial instead
+   */
+  public synchronized void release() {
+    if (trial == Thread.currentThread()) {
+      trial = null;
+    }
+  }
+
+  /**
+   * @return the time (in milliseconds since the epoch) until which requests fail fast
+   */
+  public synchronized long getOpenUntil() {
+    return consecutiveFailures >= failureThreshold ? openUntil : 0;
+  }
+}
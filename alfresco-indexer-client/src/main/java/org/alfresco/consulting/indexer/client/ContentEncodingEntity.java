@@ -0,0 +1,63 @@
+package org.alfresco.consulting.indexer.client;
+
+import com.google.common.io.CountingInputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decompresses (as a stream) a gzip or deflate encoded entity, counting the bytes received over the wire
+ */
+class ContentEncodingEntity extends HttpEntityWrapper {
+  private final String encoding;
+  private CountingInputStream wireContent;
+  private InputStream content;
+
+  ContentEncodingEntity(HttpEntity entity) {
+    super(entity);
+    Header contentEncoding = entity.getContentEncoding();
+    encoding = contentEncoding == null ? null : contentEncoding.getValue().trim().toLowerCase();
+  }
+
+  @Override
+  public InputStream getContent() throws IOException {
+    if (content == null) {
+      wireContent = new CountingInputStream(wrappedEntity.getContent());
+      if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+        content = new GZIPInputStream(wireContent);
+      } else if ("deflate".equals(encoding)) {
+        content = new InflaterInputStream(wireContent);
+      } else {
+        content = wireContent;
+      }
+    }
+    return content;
+  }
+
+  @Override
+  public Header getContentEncoding() {
+    return null;
+  }
+
+  @Override
+  public long getContentLength() {
+    return encoding == null ? wrappedEntity.getContentLength() : -1;
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return true;
+  }
+
+  /**
+   * @return the number of (possibly compressed) bytes read so far
+   */
+  long getWireCount() {
+    return wireContent == null ? 0 : wireContent.getCount();
+  }
+}
@@ -0,0 +1,107 @@
+package org.alfresco.consulting.indexer.client;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads JSON or Smile (binary JSON) objects into maps, lists and plain values using Jackson streaming parsers,
+ * which avoids the reflection based binding of Gson
+ */
+class DocumentReader {
+  static final String SMILE_MIMETYPE = "application/x-jackson-smile";
+
+  private final JsonFactory jsonFactory = new JsonFactory();
+  private final SmileFactory smileFactory = new SmileFactory();
+
+  DocumentReader() {
+    //The content is drained (and counted) by the caller once the object has been read
+    jsonFactory.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+    smileFactory.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+  }
+
+  /**
+   * @param contentType the Content-Type of the content; anything but Smile is read as JSON
+   */
+  Map<String, Object> readObject(InputStream content, String contentType) throws IOException {
+    JsonParser parser = isSmile(contentType) ? smileFactory.createParser(content) : jsonFactory.createParser(content);
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new AlfrescoParseException("Expected a json object, found: " + parser.getCurrentToken());
+      }
+      return readObject(parser);
+    } finally {
+      parser.close();
+    }
+  }
+
+  /**
+   * @return a JSON parser reading a sequence of objects (i.e. newline delimited JSON) with {@link #readNextObject}
+   */
+  JsonParser createParser(InputStream content) throws IOException {
+    return jsonFactory.createParser(content);
+  }
+
+  /**
+   * @return the next object of the sequence, or null once the sequence is over
+   */
+  Map<String, Object> readNextObject(JsonParser parser) throws IOException {
+    JsonToken token = parser.nextToken();
+    if (token == null) {
+      return null;
+    }
+    if (token != JsonToken.START_OBJECT) {
+      throw new AlfrescoParseException("Expected a json object, found: " + token);
+    }
+    return readObject(parser);
+  }
+
+  static boolean isSmile(String contentType) {
+    return contentType != null && contentType.startsWith(SMILE_MIMETYPE);
+  }
+
+  private Map<String, Object> readObject(JsonParser parser) throws IOException {
+    Map<String, Object> object = new LinkedHashMap<String, Object>();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      object.put(name, readValue(parser));
+    }
+    return object;
+  }
+
+  private Object readValue(JsonParser parser) throws IOException {
+    switch (parser.getCurrentToken()) {
+      case START_OBJECT:
+        return readObject(parser);
+      case START_ARRAY:
+        List<Object> array = new ArrayList<Object>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+          array.add(readValue(parser));
+        }
+        return array;
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+        return parser.getLongValue();
+      case VALUE_NUMBER_FLOAT:
+        return parser.getDoubleValue();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NULL:
+        return null;
+      default:
+        throw new AlfrescoParseException("Unexpected token: " + parser.getCurrentToken());
+    }
+  }
+}
@@ -0,0 +1,189 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Spreads requests among the nodes of an Alfresco cluster: {@link #select()} picks the available node with the
+ * least requests in flight (in turns, when several have as few), while {@link #pinned()} keeps returning the same
+ * node for as long as it is up, so that paging through changes and events goes on against a single node.
+ * A node failing failureThreshold consecutive requests is taken out for downTime milliseconds; a saturated node
+ * (Retry-After) is avoided until the delay it asked for has elapsed. When no node is available, the one
+ * available first is returned anyway.
+ * Clients of the same nodes share a selector (see {@link #forNodes}), so that requests in flight, down nodes
+ * and hold-backs are known to all of them, rather than to the single thread of each connector instance
+ */
+public class EndpointSelector {
+
+  private static final ConcurrentMap<List<String>, EndpointSelector> SELECTORS =
+      new ConcurrentHashMap<List<String>, EndpointSelector>();
+
+  /**
+   * A node of the cluster, by its base URL (i.e. http://alfresco1:8080/alfresco/service)
+   */
+  public static class Endpoint {
+    private final String baseUrl;
+    private int inFlight = 0;
+    private int consecutiveFailures = 0;
+    private long downUntil = 0;
+    private long notBefore = 0;
+
+    Endpoint(String baseUrl) {
+      this.baseUrl = baseUrl;
+    }
+
+    public String getBaseUrl() {
+      return baseUrl;
+    }
+
+    private long getAvailableFrom() {
+      return Math.max(downUntil, notBefore);
+    }
+
+    @Override
+    public String toString() {
+      return baseUrl;
+    }
+  }
+
+  private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+  private final int failureThreshold;
+  private final long downTime;
+  private Endpoint pinned;
+  private int pinnedGeneration = 0;
+  private int next = 0;
+
+  /**
+   * @param baseUrls         the base URLs of the nodes, at least one
+   * @param failureThreshold the number of consecutive failures taking a node out
+   * @param downTime         how long (in milliseconds) a failing node is taken out
+   */
+  public EndpointSelector(List<String> baseUrls, int failureThreshold, long downTime) {
+    if (baseUrls.isEmpty()) {
+      throw new IllegalArgumentException("At least one Alfresco node is needed");
+    }
+    for (String baseUrl : baseUrls) {
+      endpoints.add(new Endpoint(baseUrl));
+    }
+    this.failureThreshold = failureThreshold;
+    this.downTime = downTime;
+    this.pinned = endpoints.get(0);
+  }
+
+  /**
+   * @return the selector shared by the clients of the given nodes (base URLs, in order), created if needed
+   */
+  public static EndpointSelector forNodes(List<String> baseUrls, int failureThreshold, long downTime) {
+    List<String> key = new ArrayList<String>(baseUrls);
+    EndpointSelector selector = SELECTORS.get(key);
+    if (selector == null) {
+      EndpointSelector created = new EndpointSelector(key, failureThreshold, downTime);
+      selector = SELECTORS.putIfAbsent(key, created);
+      if (selector == null) {
+        selector = created;
+      }
+    }
+    return selector;
+  }
+
+  /**
+   * Forgets the shared selectors, along with the state of their nodes (tests only)
+   */
+  static void reset() {
+    SELECTORS.clear();
+  }
+
+  /**
+   * Picks a node for a request, which must be released once the response is read
+   */
+  public synchronized Endpoint select() {
+    long now = System.currentTimeMillis();
+    Endpoint selected = null;
+    for (int i = 0; i < endpoints.size(); i++) {
+      Endpoint endpoint = endpoints.get((next + i) % endpoints.size());
+      if (selected == null || isBetter(endpoint, selected, now)) {
+        selected = endpoint;
+      }
+    }
+    next = (next + 1) % endpoints.size();
+    return acquire(selected);
+  }
+
+  /**
+   * Picks the pinned node for a request, which must be released once the response is read; once the pinned
+   * node is down, another one (if any is up) is pinned from then on
+   */
+  public synchronized Endpoint pinned() {
+    long now = System.currentTimeMillis();
+    if (pinned.downUntil > now) {
+      for (Endpoint endpoint : endpoints) {
+        if (endpoint.downUntil <= now) {
+          pinned = endpoint;
+          pinnedGeneration++;
+          break;
+        }
+      }
+    }
+    return acquire(pinned);
+  }
+
+  /**
+   * @return a number changed whenever another node is pinned, i.e. to know that node local state (such as
+   * the last event id) has to be read again
+   */
+  public synchronized int getPinnedGeneration() {
+    return pinnedGeneration;
+  }
+
+  private boolean isBetter(Endpoint endpoint, Endpoint than, long now) {
+    boolean available = endpoint.getAvailableFrom() <= now;
+    boolean thanAvailable = than.getAvailableFrom() <= now;
+    if (available != thanAvailable) {
+      return available;
+    }
+    if (!available) {
+      return endpoint.getAvailableFrom() < than.getAvailableFrom();
+    }
+    return endpoint.inFlight < than.inFlight;
+  }
+
+  private Endpoint acquire(Endpoint endpoint) {
+    endpoint.inFlight++;
+    return endpoint;
+  }
+
+  /**
+   * Releases a node once the response of a request is read (or the request failed)
+   * @param success false if the request failed, counting towards taking the node out
+   * @return true if the node has just been taken out
+   */
+  public synchronized boolean release(Endpoint endpoint, boolean success) {
+    endpoint.inFlight--;
+    if (success) {
+      endpoint.consecutiveFailures = 0;
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    if (++endpoint.consecutiveFailures >= failureThreshold && endpoint.downUntil <= now) {
+      endpoint.downUntil = now + downTime;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Avoids a saturated node until the given time (in milliseconds since the epoch)
+   */
+  public synchronized void holdBack(Endpoint endpoint, long until) {
+    endpoint.notBefore = Math.max(endpoint.notBefore, until);
+  }
+
+  /**
+   * @return how long (in milliseconds) to wait before sending a request to the node, as asked by it
+   */
+  public synchronized long getDelay(Endpoint endpoint) {
+    return Math.max(0, endpoint.notBefore - System.currentTimeMillis());
+  }
+}
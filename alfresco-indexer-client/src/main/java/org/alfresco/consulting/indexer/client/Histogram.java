@@ -0,0 +1,57 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.util.Arrays;
+
+/**
+ * Count, total, mean and maximum of recorded values, along with percentiles over the last SAMPLES values
+ */
+public class Histogram {
+  private static final int SAMPLES = 1024;
+
+  private final long[] samples = new long[SAMPLES];
+  private long count = 0;
+  private long total = 0;
+  private long max = 0;
+
+  public synchronized void update(long value) {
+    samples[(int) (count % SAMPLES)] = value;
+    count++;
+    total += value;
+    max = Math.max(max, value);
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  public synchronized long getTotal() {
+    return total;
+  }
+
+  public synchronized double getMean() {
+    return count == 0 ? 0 : (double) total / count;
+  }
+
+  public synchronized long getMax() {
+    return max;
+  }
+
+  /**
+   * @param percentile between 0 and 100, i.e. 95 for the 95th percentile
+   */
+  public synchronized long getPercentile(double percentile) {
+    int size = (int) Math.min(count, SAMPLES);
+    if (size == 0) {
+      return 0;
+    }
+    long[] sorted = Arrays.copyOf(samples, size);
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percentile / 100 * size) - 1;
+    return sorted[Math.max(0, Math.min(size - 1, index))];
+  }
+
+  @Override
+  public String toString() {
+    return String.format("mean %.0f, p50 %d, p95 %d, max %d", getMean(), getPercentile(50), getPercentile(95), getMax());
+  }
+}
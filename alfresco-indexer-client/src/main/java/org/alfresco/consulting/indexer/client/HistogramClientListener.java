@@ -0,0 +1,157 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps in memory, per operation, histograms of latencies, response bytes, parse times and server stage times,
+ * and counts of retries and error responses; along with the documents per page of changes and the connection pool wait times.
+ * {@link #toString()} summarizes all of them, i.e. for logs
+ */
+public class HistogramClientListener implements AlfrescoClientListener {
+
+  /**
+   * The statistics of an operation
+   */
+  public static class OperationStats {
+    private final Histogram latency = new Histogram();
+    private final Histogram bytes = new Histogram();
+    private final Histogram parseTime = new Histogram();
+    private final ConcurrentMap<String, Histogram> serverTimes = new ConcurrentHashMap<String, Histogram>();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public Histogram getLatency() {
+      return latency;
+    }
+
+    public Histogram getBytes() {
+      return bytes;
+    }
+
+    public Histogram getParseTime() {
+      return parseTime;
+    }
+
+    /**
+     * @return the histograms of the stages timed by Alfresco, sorted by stage
+     */
+    public Map<String, Histogram> getServerTimes() {
+      return new TreeMap<String, Histogram>(serverTimes);
+    }
+
+    private Histogram getServerTime(String stage) {
+      Histogram histogram = serverTimes.get(stage);
+      if (histogram == null) {
+        Histogram newHistogram = new Histogram();
+        histogram = serverTimes.putIfAbsent(stage, newHistogram);
+        if (histogram == null) {
+          histogram = newHistogram;
+        }
+      }
+      return histogram;
+    }
+
+    public long getRetries() {
+      return retries.get();
+    }
+
+    /**
+     * @return the number of responses with a status code other than 2xx
+     */
+    public long getErrors() {
+      return errors.get();
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder summary = new StringBuilder(String.format(
+          "%d requests, %d errors, %d retries; latency ms (%s); bytes (%s); parse ms (%s)",
+          latency.getCount(), getErrors(), getRetries(), latency, bytes, parseTime));
+      for (Map.Entry<String, Histogram> entry : getServerTimes().entrySet()) {
+        summary.append("; server ").append(entry.getKey()).append(" ms (").append(entry.getValue()).append(')');
+      }
+      return summary.toString();
+    }
+  }
+
+  private final ConcurrentMap<String, OperationStats> operations = new ConcurrentHashMap<String, OperationStats>();
+  private final Histogram documentsPerPage = new Histogram();
+  private final Histogram poolWaitTime = new Histogram();
+
+  @Override
+  public void requestExecuted(String operation, int statusCode, long latency) {
+    OperationStats stats = getOperationStats(operation);
+    stats.latency.update(latency);
+    if (statusCode < 200 || statusCode >= 300) {
+      stats.errors.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void responseRead(String operation, long bytes, long parseTime) {
+    OperationStats stats = getOperationStats(operation);
+    stats.bytes.update(bytes);
+    stats.parseTime.update(parseTime);
+  }
+
+  @Override
+  public void serverTimed(String operation, String stage, long duration) {
+    getOperationStats(operation).getServerTime(stage).update(duration);
+  }
+
+  @Override
+  public void pageRead(int documents) {
+    documentsPerPage.update(documents);
+  }
+
+  @Override
+  public void requestRetried(String operation) {
+    getOperationStats(operation).retries.incrementAndGet();
+  }
+
+  @Override
+  public void connectionLeased(long waitTime) {
+    poolWaitTime.update(waitTime);
+  }
+
+  public OperationStats getOperationStats(String operation) {
+    OperationStats stats = operations.get(operation);
+    if (stats == null) {
+      OperationStats newStats = new OperationStats();
+      stats = operations.putIfAbsent(operation, newStats);
+      if (stats == null) {
+        stats = newStats;
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * @return the statistics of the operations requested so far, sorted by operation
+   */
+  public Map<String, OperationStats> getOperations() {
+    return new TreeMap<String, OperationStats>(operations);
+  }
+
+  public Histogram getDocumentsPerPage() {
+    return documentsPerPage;
+  }
+
+  public Histogram getPoolWaitTime() {
+    return poolWaitTime;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder summary = new StringBuilder();
+    for (Map.Entry<String, OperationStats> entry : getOperations().entrySet()) {
+      summary.append(entry.getKey()).append(": ").append(entry.getValue()).append("; ");
+    }
+    return summary.append(String.format("documents per page (%s); pool wait ms (%s)", documentsPerPage, poolWaitTime))
+        .toString();
+  }
+}
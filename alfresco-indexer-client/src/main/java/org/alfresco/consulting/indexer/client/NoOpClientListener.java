@@ -0,0 +1,32 @@
+package org.alfresco.consulting.indexer.client;
+
+/**
+ * The default {@link AlfrescoClientListener}, ignoring everything
+ */
+public class NoOpClientListener implements AlfrescoClientListener {
+  public static final NoOpClientListener INSTANCE = new NoOpClientListener();
+
+  @Override
+  public void requestExecuted(String operation, int statusCode, long latency) {
+  }
+
+  @Override
+  public void responseRead(String operation, long bytes, long parseTime) {
+  }
+
+  @Override
+  public void serverTimed(String operation, String stage, long duration) {
+  }
+
+  @Override
+  public void pageRead(int documents) {
+  }
+
+  @Override
+  public void requestRetried(String operation) {
+  }
+
+  @Override
+  public void connectionLeased(long waitTime) {
+  }
+}
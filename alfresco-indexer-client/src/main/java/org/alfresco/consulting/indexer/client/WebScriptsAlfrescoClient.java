@@ -1,27 +1,50 @@
 package org.alfresco.consulting.indexer.client;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
-import com.google.common.io.CharStreams;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 import com.google.gson.*;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class WebScriptsAlfrescoClient implements AlfrescoClient {
   private static final String LAST_TXN_ID = "last_txn_id";
@@ -29,16 +52,74 @@ public class WebScriptsAlfrescoClient implements AlfrescoClient {
   private static final String LAST_ACL_CS_ID = "last_acl_changeset_id";
   private static final String URL_PARAM_LAST_TXN_ID = "lastTxnId";
   private static final String URL_PARAM_LAST_ACL_CS_ID = "lastAclChangesetId";
+  private static final String URL_PARAM_MAX_TXNS = "maxTxns";
+  private static final String URL_PARAM_MAX_ACL_CS = "maxAclChangesets";
+  private static final String URL_PARAM_SITES = "sites";
+  private static final String URL_PARAM_FOLDERS = "folders";
+  private static final String URL_PARAM_FIELDS = "fields";
+  private static final String URL_PARAM_INCLUDE = "include";
+  private static final String PROPERTIES = "properties";
   private static final String STORE_ID = "store_id";
   private static final String STORE_PROTOCOL = "store_protocol";
   private static final String USERNAME = "username";
   private static final String AUTHORITIES = "authorities";
+  private static final String EVENTS = "events";
+  private static final String LAST_EVENT_ID = "last_event_id";
+  private static final String OVERFLOW = "overflow";
+  private static final String URL_PARAM_LAST_EVENT_ID = "lastEventId";
+  private static final String URL_PARAM_TIMEOUT = "timeout";
+  private static final String NODE_COUNTS = "node_counts";
+  private static final String URL_PARAM_FORMAT = "format";
+  private static final String FORMAT_NDJSON = "ndjson";
+  private static final String CONTENT_SOURCE_HEADER = "X-Indexer-Content-Source";
+  private static final String REQUEST_ID_HEADER = "X-Request-Id";
+  private static final String SERVER_TIMING_HEADER = "Server-Timing";
+  private static final String ACCEPT_SMILE = DocumentReader.SMILE_MIMETYPE + ", application/json;q=0.9";
+  private static final List<Integer> TRANSIENT_STATUS_CODES = Arrays.asList(502, 503, 504);
+  /** Paging through changes and events goes on against a single node, other requests are spread */
+  private static final List<String> PINNED_OPERATIONS = Arrays.asList("changes", "events", "status");
+  private static final int NODE_FAILURE_THRESHOLD = 3;
+  private static final long NODE_DOWN_TIME = 30000;
   private final Gson gson = new Gson();
-  private final String changesUrl;
-  private final String metadataUrl;
-  private final String authoritiesUrl;
+  private final DocumentReader documentReader = new DocumentReader();
+  private final String changesPath;
+  private final String metadataPath;
+  private final String authoritiesPath;
+  private final String eventsPath;
+  private final String statusPath;
+  private final String contentPath;
+  private final String textPath;
+  private final EndpointSelector nodes;
+  private final String storeProtocol;
+  private final String storeId;
   private final String username;
   private final String password;
+  private final CloseableHttpClient httpClient;
+  private final Random random = new Random();
+  /** Identifies the requests sent by threads without trace id */
+  private final String clientId = String.format("%08x", random.nextInt());
+  private final AtomicLong requestCounter = new AtomicLong();
+  private final ThreadLocal<String> traceId = new ThreadLocal<String>();
+  private long longPollTimeout = 30000;
+  private int connectTimeout = 10000;
+  private int socketTimeout = 60000;
+  private int maxRetries = 3;
+  private long retryBackoff = 1000;
+  private long maxRetryBackoff = 30000;
+  private CircuitBreaker circuitBreaker = new CircuitBreaker(5, 30000);
+  private boolean useSmile = false;
+  private int contentMemoryThreshold = 1048576;
+  private long maxContentSize = -1;
+  private volatile int maxTransactions = 0;
+  private volatile int maxAclChangesets = 0;
+  private volatile String scopeParameters = "";
+  private volatile String fieldsParameter = "";
+  private volatile String includeParameter = "";
+  private volatile long lastEventId = -1;
+  private volatile boolean eventsAvailable = true;
+  private volatile int eventsGeneration = 0;
+  private volatile EndpointSelector.Endpoint pinnedNode;
+  private volatile AlfrescoClientListener listener = NoOpClientListener.INSTANCE;
 
   private final Logger logger = LoggerFactory.getLogger(WebScriptsAlfrescoClient.class);
 
@@ -50,38 +131,565 @@ public class WebScriptsAlfrescoClient implements AlfrescoClient {
   public WebScriptsAlfrescoClient(String protocol, String hostname,
                                   String endpoint, String storeProtocol, String storeId, String username,
                                   String password) {
-    changesUrl = String.format("%s://%s%s/node/changes/%s/%s", protocol, hostname, endpoint, storeProtocol, storeId);
-    metadataUrl = String.format("%s://%s%s/node/details/%s/%s", protocol, hostname, endpoint, storeProtocol, storeId);
-    authoritiesUrl = String.format("%s://%s%s/api/node/auth/resolve/", protocol, hostname, endpoint);
+    //The hostname may list the nodes of a cluster, i.e. alfresco1:8080,alfresco2:8080
+    List<String> baseUrls = new ArrayList<String>();
+    for (String host : hostname.split(",")) {
+      if (!host.trim().isEmpty()) {
+        baseUrls.add(String.format("%s://%s%s", protocol, host.trim(), endpoint));
+      }
+    }
+    nodes = EndpointSelector.forNodes(baseUrls, NODE_FAILURE_THRESHOLD, NODE_DOWN_TIME);
+    changesPath = String.format("/node/changes/%s/%s", storeProtocol, storeId);
+    metadataPath = String.format("/node/details/%s/%s", storeProtocol, storeId);
+    authoritiesPath = "/api/node/auth/resolve/";
+    statusPath = "/node/status";
+    eventsPath = String.format("/node/events/%s/%s", storeProtocol, storeId);
+    contentPath = String.format("/api/node/%s/%s", storeProtocol, storeId);
+    textPath = String.format("/node/text/%s/%s", storeProtocol, storeId);
+    this.storeProtocol = storeProtocol;
+    this.storeId = storeId;
     this.username = username;
     this.password = password;
+    //Responses are decompressed by ContentEncodingEntity, which also counts the compressed bytes
+    httpClient = HttpClients.custom().setConnectionManager(createConnectionManager()).disableContentCompression().build();
+  }
+
+  /**
+   * @return a pool of 20 connections, telling the listener how long each lease waited for a free connection
+   */
+  private PoolingHttpClientConnectionManager createConnectionManager() {
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager() {
+      @Override
+      public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        final ConnectionRequest request = super.requestConnection(route, state);
+        return new ConnectionRequest() {
+          @Override
+          public HttpClientConnection get(long timeout, TimeUnit tunit)
+              throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+            long start = System.currentTimeMillis();
+            try {
+              return request.get(timeout, tunit);
+            } finally {
+              listener.connectionLeased(System.currentTimeMillis() - start);
+            }
+          }
+
+          @Override
+          public boolean cancel() {
+            return request.cancel();
+          }
+        };
+      }
+    };
+    connectionManager.setMaxTotal(20);
+    connectionManager.setDefaultMaxPerRoute(20);
+    return connectionManager;
   }
 
   @Override
   public AlfrescoResponse fetchNodes(long lastTransactionId,
                                      long lastAclChangesetId) {
-    HttpResponse response;
     try {
-      CloseableHttpClient httpClient = HttpClients.createDefault();
-      String urlWithParameter = String.format("%s?%s", changesUrl, urlParameters(lastTransactionId, lastAclChangesetId));
+      String urlWithParameter = String.format("%s?%s", changesPath, urlParameters(lastTransactionId, lastAclChangesetId));
 
       logger.debug("Hitting url: {}", urlWithParameter);
 
       HttpGet httpGet = createGetRequest(urlWithParameter);
-      response = httpClient.execute(httpGet);
-      HttpEntity entity = response.getEntity();
-      AlfrescoResponse afResponse = fromHttpEntity(entity);
-      EntityUtils.consume(entity);
-      return afResponse;
+      if (useSmile) {
+        httpGet.setHeader("Accept", ACCEPT_SMILE);
+      }
+      return execute("changes", httpGet, new ResponseHandler<AlfrescoResponse>() {
+        @Override
+        public AlfrescoResponse handleResponse(HttpResponse response) throws IOException {
+          checkStatus(response, "changes");
+          return fromHttpEntity(response.getEntity());
+        }
+      });
     } catch (IOException e) {
       logger.warn("Failed to fetch nodes.", e);
       throw new AlfrescoDownException("Alfresco appears to be down", e);
     }
   }
 
+  @Override
+  public AlfrescoResponse streamNodes(long lastTransactionId, long lastAclChangesetId,
+                                      final AlfrescoDocumentHandler handler) {
+    try {
+      String urlWithParameter = String.format("%s?%s&%s=%s", changesPath,
+          urlParameters(lastTransactionId, lastAclChangesetId), URL_PARAM_FORMAT, FORMAT_NDJSON);
+
+      logger.debug("Hitting url: {}", urlWithParameter);
+
+      HttpGet httpGet = createGetRequest(urlWithParameter);
+      httpGet.setHeader("Accept", "application/x-ndjson");
+      return execute("changes", httpGet, new ResponseHandler<AlfrescoResponse>() {
+        @Override
+        public AlfrescoResponse handleResponse(HttpResponse response) throws IOException {
+          checkStatus(response, "changes");
+          return fromNdjsonEntity(response.getEntity(), handler);
+        }
+      });
+    } catch (IOException e) {
+      logger.warn("Failed to stream nodes.", e);
+      throw new AlfrescoDownException("Alfresco appears to be down", e);
+    }
+  }
+
+  /**
+   * Reads one node per line, passing it to the handler; the last line holds the ids of the last transaction
+   * and ACL changeset. Lines are read one after the other by a single streaming parser.
+   * Once a document has been handled, a broken stream is not retried, as the handler would get it twice
+   */
+  private AlfrescoResponse fromNdjsonEntity(HttpEntity entity, AlfrescoDocumentHandler handler) throws IOException {
+    CountingInputStream content = new CountingInputStream(entity.getContent());
+    JsonParser parser = documentReader.createParser(content);
+    Map<String, Object> watermarks = null;
+    int count = 0;
+    try {
+      Map<String, Object> lineObject;
+      while ((lineObject = documentReader.readNextObject(parser)) != null) {
+        if (lineObject.containsKey(LAST_TXN_ID) || lineObject.containsKey(LAST_ACL_CS_ID)) {
+          watermarks = lineObject;
+          continue;
+        }
+        Map<String, Object> document = flattenProperties(lineObject);
+        document.put(STORE_ID, storeId);
+        document.put(STORE_PROTOCOL, storeProtocol);
+        handler.handleDocument(document);
+        count++;
+      }
+    } catch (IOException e) {
+      throw streamFailure(e, count);
+    } finally {
+      parser.close();
+    }
+    if (watermarks == null) {
+      //Without the last line, the page is incomplete and the ids can't be moved forward
+      throw streamFailure(new IOException("Truncated changes stream, " + count + " documents read"), count);
+    }
+
+    long compressedSize = entity instanceof ContentEncodingEntity ?
+        ((ContentEncodingEntity) entity).getWireCount() : content.getCount();
+    logger.debug("Streamed {} documents, {} bytes ({} bytes over the wire)", new Object[]{count, content.getCount(), compressedSize});
+    listener.pageRead(count);
+    return new AlfrescoResponse(getLong(watermarks, LAST_TXN_ID, 0L), getLong(watermarks, LAST_ACL_CS_ID, 0L),
+        storeId, storeProtocol, Collections.<Map<String, Object>>emptyList(), content.getCount(), compressedSize);
+  }
+
+  /**
+   * @return the failure of a stream of which no document has been handled yet, to be retried
+   * @throws AlfrescoDownException if some documents have been handled already
+   */
+  private static IOException streamFailure(IOException e, int count) {
+    if (count > 0) {
+      throw new AlfrescoDownException(String.format("Changes stream broken after %d documents", count), e);
+    }
+    return e;
+  }
+
+  @Override
+  public AlfrescoResponse waitForNodes(long lastTransactionId, long lastAclChangesetId) {
+    int generation = nodes.getPinnedGeneration();
+    if (generation != eventsGeneration) {
+      //Event ids are local to each node: the starting point is taken again from the newly pinned node
+      lastEventId = -1;
+      eventsGeneration = generation;
+    }
+    if (eventsAvailable && lastEventId < 0) {
+      //Taking the events starting point before reading the changes, so that no change can be missed
+      fetchEvents(null, 0);
+    }
+
+    AlfrescoResponse response = fetchNodes(lastTransactionId, lastAclChangesetId);
+    boolean progress = response.getLastTransactionId() != lastTransactionId ||
+        response.getLastAclChangesetId() != lastAclChangesetId ||
+        response.getDocuments().iterator().hasNext();
+    if (progress || !eventsAvailable || nodes.getPinnedGeneration() != generation) {
+      return response;
+    }
+
+    if (fetchEvents(lastEventId, longPollTimeout) || nodes.getPinnedGeneration() != generation) {
+      return fetchNodes(lastTransactionId, lastAclChangesetId);
+    }
+    return response;
+  }
+
+  /**
+   * Long-polls the node events endpoint, updating lastEventId
+   * @return true if nodes have changed (or some events have been missed) since the given event id
+   */
+  private boolean fetchEvents(Long sinceEventId, long timeout) {
+    String url = eventsPath;
+    if (sinceEventId != null) {
+      url = String.format("%s?%s=%d&%s=%d", eventsPath, URL_PARAM_LAST_EVENT_ID, sinceEventId, URL_PARAM_TIMEOUT, timeout);
+    }
+    logger.debug("Hitting url: {}", url);
+    try {
+      HttpGet httpGet = createGetRequest(url);
+      //The socket stays idle while Alfresco waits for changes
+      httpGet.setConfig(RequestConfig.copy(httpGet.getConfig()).setSocketTimeout(socketTimeout + (int) timeout).build());
+      return execute("events", httpGet, new ResponseHandler<Boolean>() {
+        @Override
+        public Boolean handleResponse(HttpResponse response) throws IOException {
+          HttpEntity entity = response.getEntity();
+          if (response.getStatusLine().getStatusCode() == 404) {
+            logger.warn("Node events are not available on Alfresco, falling back to polling");
+            eventsAvailable = false;
+            return false;
+          }
+          checkStatus(response, "events");
+          JsonObject responseObject = gson.fromJson(new InputStreamReader(entity.getContent(), "UTF-8"), JsonObject.class);
+
+          lastEventId = getStringAsLong(responseObject, LAST_EVENT_ID, lastEventId);
+          boolean overflow = responseObject.has(OVERFLOW) && responseObject.get(OVERFLOW).getAsBoolean();
+          boolean changed = responseObject.has(EVENTS) && responseObject.get(EVENTS).isJsonArray() &&
+              responseObject.get(EVENTS).getAsJsonArray().size() > 0;
+          return overflow || changed;
+        }
+      });
+    } catch (IOException e) {
+      logger.warn("Failed to fetch node events.", e);
+      throw new AlfrescoDownException("Alfresco appears to be down", e);
+    }
+  }
+
+  /**
+   * Sets how long (in milliseconds) {@link #waitForNodes(long, long)} waits for Alfresco to notify a change
+   */
+  public void setLongPollTimeout(long longPollTimeout) {
+    this.longPollTimeout = longPollTimeout;
+  }
+
+  @Override
+  public void setPageSize(int maxTransactions, int maxAclChangesets) {
+    this.maxTransactions = maxTransactions;
+    this.maxAclChangesets = maxAclChangesets;
+  }
+
+  @Override
+  public void setScope(List<String> sites, List<String> folders) {
+    String parameters = "";
+    if (sites != null && !sites.isEmpty()) {
+      parameters += String.format("&%s=%s", URL_PARAM_SITES, encode(Joiner.on(',').join(sites)));
+    }
+    if (folders != null && !folders.isEmpty()) {
+      parameters += String.format("&%s=%s", URL_PARAM_FOLDERS, encode(Joiner.on(',').join(folders)));
+    }
+    this.scopeParameters = parameters;
+  }
+
+  @Override
+  public void setFields(List<String> fields) {
+    if (fields == null || fields.isEmpty()) {
+      this.fieldsParameter = "";
+    } else {
+      this.fieldsParameter = String.format("%s=%s", URL_PARAM_FIELDS, encode(Joiner.on(',').join(fields)));
+    }
+  }
+
+  @Override
+  public void setInclude(List<String> parts) {
+    if (parts == null || parts.isEmpty()) {
+      this.includeParameter = "";
+    } else {
+      this.includeParameter = String.format("%s=%s", URL_PARAM_INCLUDE, encode(Joiner.on(',').join(parts)));
+    }
+  }
+
+  private static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Sets the connection and socket (read) timeouts, in milliseconds
+   */
+  public void setTimeouts(int connectTimeout, int socketTimeout) {
+    this.connectTimeout = connectTimeout;
+    this.socketTimeout = socketTimeout;
+  }
+
+  /**
+   * Sets how many times a failed request is retried, and the initial delay (in milliseconds) between retries;
+   * the delay doubles, with some random jitter, on each retry
+   */
+  public void setRetries(int maxRetries, long retryBackoff) {
+    this.maxRetries = maxRetries;
+    this.retryBackoff = retryBackoff;
+  }
+
+  public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  /**
+   * Asks for Smile (binary JSON) rather than JSON when fetching nodes and metadata; Alfresco instances that
+   * do not support Smile keep answering with JSON, which is still understood
+   */
+  public void setUseSmile(boolean useSmile) {
+    this.useSmile = useSmile;
+  }
+
+  /**
+   * Sets how much content (in bytes) is kept in memory by {@link #fetchContent(String)}, larger content being
+   * spilled to a temporary file, and the maximum content size (negative for no limit)
+   */
+  public void setContentLimits(int contentMemoryThreshold, long maxContentSize) {
+    this.contentMemoryThreshold = contentMemoryThreshold;
+    this.maxContentSize = maxContentSize;
+  }
+
+  @Override
+  public void setTraceId(String traceId) {
+    if (traceId == null) {
+      this.traceId.remove();
+    } else {
+      this.traceId.set(traceId);
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      httpClient.close();
+    } catch (IOException e) {
+      logger.warn("Failed to close the connections to Alfresco", e);
+    }
+  }
+
+  /**
+   * Sets the listener told about every request (latency, bytes, parse time, retries) and connection lease
+   */
+  public void setListener(AlfrescoClientListener listener) {
+    this.listener = listener == null ? NoOpClientListener.INSTANCE : listener;
+  }
+
+  /**
+   * Executes a GET request, retrying it on I/O errors and on transient (502, 503, 504) responses; while
+   * Alfresco is known to be down, the circuit breaker fails the request without sending it.
+   * The request is sent to a node of the cluster: changes, events and status to the pinned node, other requests
+   * to the node with the least requests in flight, nodes failing consecutive requests being taken out for a while.
+   * When a node is saturated, it asks (Retry-After) to wait before sending further requests: the node is avoided
+   * for the delay (up to maxRetryBackoff), the retry going to another node or, if none is available, waiting.
+   * The listener is told the latency, size and parse time of each response, and of each retry.
+   * Requests (and their retries) are identified by a request id (X-Request-Id), under which Alfresco logs and
+   * times them; the stage times sent back by Alfresco (Server-Timing) are passed to the listener as well
+   */
+  private <T> T execute(String operation, HttpGet httpGet, ResponseHandler<T> handler) throws IOException {
+    if (!circuitBreaker.allowRequest()) {
+      throw new AlfrescoDownException(String.format("Alfresco appears to be down, requests are suspended until %tT",
+          circuitBreaker.getOpenUntil()));
+    }
+    try {
+      return executeWithRetries(operation, httpGet, handler);
+    } finally {
+      //An interrupted (or otherwise aborted) trial request must not keep the circuit open for good
+      circuitBreaker.release();
+    }
+  }
+
+  private <T> T executeWithRetries(String operation, HttpGet httpGet, ResponseHandler<T> handler) throws IOException {
+    String trace = traceId.get();
+    String requestId = String.format("%s-%d", trace == null ? clientId : trace, requestCounter.incrementAndGet());
+    httpGet.setHeader(REQUEST_ID_HEADER, requestId);
+    //The request is created with a path, resolved against the node of each attempt
+    String path = httpGet.getURI().toString();
+    long backoff = retryBackoff;
+    for (int attempt = 0; ; attempt++) {
+      EndpointSelector.Endpoint node = selectNode(operation);
+      httpGet.setURI(URI.create(node.getBaseUrl() + path));
+      try {
+        return send(operation, requestId, node, httpGet, handler);
+      } catch (IOException e) {
+        //A node asking to wait (Retry-After) is throttling requests, it has not failed
+        long retryAfter = e instanceof TransientResponseException ? ((TransientResponseException) e).retryAfter : 0;
+        if (retryAfter > 0) {
+          nodes.holdBack(node, System.currentTimeMillis() + Math.min(retryAfter, maxRetryBackoff));
+        }
+        if (attempt >= maxRetries) {
+          if (retryAfter <= 0) {
+            circuitBreaker.recordFailure();
+          }
+          throw e;
+        }
+        listener.requestRetried(operation);
+        if (retryAfter > 0) {
+          logger.info("Request {} to {} failed ({}), holding the node back for {} ms", new Object[]{requestId, httpGet.getURI(), e.getMessage(), Math.min(retryAfter, maxRetryBackoff)});
+          continue;
+        }
+        long delay = backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+        logger.info("Request {} to {} failed ({}), retrying in {} ms", new Object[]{requestId, httpGet.getURI(), e.getMessage(), delay});
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting to retry " + httpGet.getURI());
+        }
+        backoff = Math.min(backoff * 2, maxRetryBackoff);
+      }
+    }
+  }
+
+  private EndpointSelector.Endpoint selectNode(String operation) {
+    if (!PINNED_OPERATIONS.contains(operation)) {
+      return nodes.select();
+    }
+    EndpointSelector.Endpoint node = nodes.pinned();
+    EndpointSelector.Endpoint previous = pinnedNode;
+    if (previous != null && previous != node) {
+      logger.warn("Alfresco node {} is down, reading changes and events from {}", previous, node);
+    }
+    pinnedNode = node;
+    return node;
+  }
+
+  /**
+   * Sends a request to a node, once the delay asked by the node (if any) has elapsed; the node is released
+   * afterwards, as failing unless it has answered (with a non transient response, or asking to wait)
+   */
+  private <T> T send(String operation, String requestId, EndpointSelector.Endpoint node, HttpGet httpGet,
+                     ResponseHandler<T> handler) throws IOException {
+    boolean answered = false;
+    try {
+      waitForRetryAfter(node, httpGet);
+      long start = System.currentTimeMillis();
+      CloseableHttpResponse response = httpClient.execute(httpGet);
+      long latency = System.currentTimeMillis() - start;
+      listener.requestExecuted(operation, response.getStatusLine().getStatusCode(), latency);
+      Header serverTiming = response.getFirstHeader(SERVER_TIMING_HEADER);
+      logger.debug("Request {} to {} answered {} in {} ms (server timing: {})", new Object[]{requestId,
+          httpGet.getURI(), response.getStatusLine().getStatusCode(), latency, serverTiming == null ? null : serverTiming.getValue()});
+      if (serverTiming != null) {
+        for (Map.Entry<String, Long> stage : parseServerTiming(serverTiming.getValue()).entrySet()) {
+          listener.serverTimed(operation, stage.getKey(), stage.getValue());
+        }
+      }
+      ContentEncodingEntity entity = null;
+      if (response.getEntity() != null) {
+        entity = new ContentEncodingEntity(response.getEntity());
+        response.setEntity(entity);
+      }
+      try {
+        if (TRANSIENT_STATUS_CODES.contains(response.getStatusLine().getStatusCode())) {
+          long retryAfter = getRetryAfter(response);
+          if (retryAfter > 0) {
+            //Back-pressure (i.e. from the admission control of Alfresco): the node is up, merely saturated
+            answered = true;
+            circuitBreaker.recordSuccess();
+          }
+          throw new TransientResponseException(response.getStatusLine().toString(), retryAfter);
+        }
+        answered = true;
+        circuitBreaker.recordSuccess();
+        start = System.currentTimeMillis();
+        T result = handler.handleResponse(response);
+        //Reading the rest of the entity allows the connection to be reused; otherwise, it is closed
+        EntityUtils.consume(entity);
+        listener.responseRead(operation, entity == null ? 0 : entity.getWireCount(), System.currentTimeMillis() - start);
+        return result;
+      } finally {
+        response.close();
+      }
+    } finally {
+      if (nodes.release(node, answered)) {
+        logger.warn("Alfresco node {} failed {} consecutive requests, taking it out for {} ms",
+            new Object[]{node, NODE_FAILURE_THRESHOLD, NODE_DOWN_TIME});
+      }
+    }
+  }
+
+  /**
+   * @return the durations (rounded to milliseconds) of the stages of a Server-Timing header value,
+   * i.e. sql.selectNodes;dur=12.5, render.changes;dur=3.1; stages without a (valid) duration are left out
+   */
+  static Map<String, Long> parseServerTiming(String serverTiming) {
+    Map<String, Long> stages = new HashMap<String, Long>();
+    for (String metric : serverTiming.split(",")) {
+      String[] parts = metric.split(";");
+      for (int i = 1; i < parts.length; i++) {
+        String parameter = parts[i].trim();
+        if (parameter.startsWith("dur=")) {
+          try {
+            stages.put(parts[0].trim(), Math.round(Double.parseDouble(parameter.substring(4).replace("\"", ""))));
+          } catch (NumberFormatException e) {
+            //A malformed metric doesn't prevent reading the other ones
+          }
+        }
+      }
+    }
+    return stages;
+  }
+
+  /**
+   * Waits until the delay asked by the node (Retry-After) has elapsed, if any
+   */
+  private void waitForRetryAfter(EndpointSelector.Endpoint node, HttpGet httpGet) throws InterruptedIOException {
+    long delay = nodes.getDelay(node);
+    if (delay <= 0) {
+      return;
+    }
+    logger.debug("Alfresco node {} is saturated, waiting {} ms before requesting {}", new Object[]{node, delay, httpGet.getURI()});
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to request " + httpGet.getURI());
+    }
+  }
+
+  /**
+   * @return the delay (in milliseconds) of the Retry-After header, either seconds or an HTTP date; 0 if none
+   */
+  private static long getRetryAfter(HttpResponse response) {
+    Header header = response.getFirstHeader("Retry-After");
+    if (header == null || header.getValue() == null) {
+      return 0;
+    }
+    String value = header.getValue().trim();
+    try {
+      return Math.max(0, Long.parseLong(value) * 1000);
+    } catch (NumberFormatException e) {
+      Date date = DateUtils.parseDate(value);
+      return date == null ? 0 : Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Transient responses have already been retried by {@link #send}; any other response but a successful one
+   * is not worth retrying, and is not parsed as a document
+   */
+  private static void checkStatus(HttpResponse response, String what) {
+    int statusCode = response.getStatusLine().getStatusCode();
+    if (statusCode < 200 || statusCode >= 300) {
+      throw new AlfrescoRequestException(statusCode, String.format("Cannot fetch %s, Alfresco responded with %s",
+          what, response.getStatusLine()));
+    }
+  }
+
+  /**
+   * A transient (502, 503, 504) response, along with the delay asked by Alfresco before retrying (if any)
+   */
+  private static class TransientResponseException extends IOException {
+    private final long retryAfter;
+
+    TransientResponseException(String statusLine, long retryAfter) {
+      super("Alfresco responded with " + statusLine);
+      this.retryAfter = retryAfter;
+    }
+  }
+
   private HttpGet createGetRequest(String url) {
     HttpGet httpGet = new HttpGet(url);
+    httpGet.setConfig(RequestConfig.custom()
+        .setConnectTimeout(connectTimeout)
+        .setConnectionRequestTimeout(connectTimeout)
+        .setSocketTimeout(socketTimeout)
+        .build());
     httpGet.addHeader("Accept", "application/json");
+    httpGet.addHeader("Accept-Encoding", "gzip, deflate");
     if (useBasicAuthentication()) {
       httpGet.addHeader("Authorization", "Basic " + Base64.encodeBase64String(String.format("%s:%s", username, password).getBytes(Charset.forName("UTF-8"))));
     }
@@ -94,32 +702,78 @@ public class WebScriptsAlfrescoClient implements AlfrescoClient {
 
   private String urlParameters(long lastTransactionId, long lastAclChangesetId) {
     // TODO: URL encode
-    return String.format("%s=%d&%s=%d", URL_PARAM_LAST_TXN_ID, lastTransactionId, URL_PARAM_LAST_ACL_CS_ID, lastAclChangesetId);
+    String parameters = String.format("%s=%d&%s=%d", URL_PARAM_LAST_TXN_ID, lastTransactionId, URL_PARAM_LAST_ACL_CS_ID, lastAclChangesetId);
+    if (maxTransactions > 0) {
+      parameters += String.format("&%s=%d", URL_PARAM_MAX_TXNS, maxTransactions);
+    }
+    if (maxAclChangesets > 0) {
+      parameters += String.format("&%s=%d", URL_PARAM_MAX_ACL_CS, maxAclChangesets);
+    }
+    if (!includeParameter.isEmpty()) {
+      //Inline documents are restricted to the same fields as fetched metadata
+      parameters += "&" + includeParameter + (fieldsParameter.isEmpty() ? "" : "&" + fieldsParameter);
+    }
+    return parameters + scopeParameters;
   }
 
+  @SuppressWarnings("unchecked")
   private AlfrescoResponse fromHttpEntity(HttpEntity entity) throws IOException {
-    Reader entityReader = new InputStreamReader(entity.getContent());
-    JsonObject responseObject = gson.fromJson(entityReader, JsonObject.class);
+    CountingInputStream content = new CountingInputStream(entity.getContent());
+    Map<String, Object> responseObject = documentReader.readObject(content, getContentType(entity));
     ArrayList<Map<String, Object>> documents = new ArrayList<Map<String, Object>>();
 
-    long lastTransactionId = getStringAsLong(responseObject, LAST_TXN_ID, 0L);
-    long lastAclChangesetId = getStringAsLong(responseObject, LAST_ACL_CS_ID, 0L);
+    long lastTransactionId = getLong(responseObject, LAST_TXN_ID, 0L);
+    long lastAclChangesetId = getLong(responseObject, LAST_ACL_CS_ID, 0L);
     String storeId = getString(responseObject, STORE_ID);
     String storeProtocol = getString(responseObject, STORE_PROTOCOL);
 
-    if (responseObject.has(DOCS) && responseObject.get(DOCS).isJsonArray()) {
-      JsonArray docsArray = responseObject.get(DOCS).getAsJsonArray();
-      for (JsonElement documentElement : docsArray) {
-        Map<String, Object> document = createDocument(documentElement);
+    if (responseObject.get(DOCS) instanceof List) {
+      for (Object documentElement : (List<Object>) responseObject.get(DOCS)) {
+        Map<String, Object> document = documentElement instanceof Map ?
+            (Map<String, Object>) documentElement : new HashMap<String, Object>();
         document.put(STORE_ID, storeId);
         document.put(STORE_PROTOCOL, storeProtocol);
-        documents.add(document);
+        documents.add(flattenProperties(document));
       }
     } else {
       logger.warn("No documents found in response!");
     }
 
-    return new AlfrescoResponse(lastTransactionId, lastAclChangesetId, storeId, storeProtocol, documents);
+    ByteStreams.copy(content, ByteStreams.nullOutputStream());
+    long compressedSize = entity instanceof ContentEncodingEntity ?
+        ((ContentEncodingEntity) entity).getWireCount() : content.getCount();
+    logger.debug("Received {} bytes ({} bytes over the wire)", content.getCount(), compressedSize);
+    listener.pageRead(documents.size());
+    return new AlfrescoResponse(lastTransactionId, lastAclChangesetId, storeId, storeProtocol, documents,
+        content.getCount(), compressedSize);
+  }
+
+  private static String getContentType(HttpEntity entity) {
+    return entity.getContentType() == null ? null : entity.getContentType().getValue();
+  }
+
+  private long getLong(Map<String, Object> responseObject, String key, long defaultValue) {
+    Object value = responseObject.get(key);
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    }
+    String string = getString(responseObject, key);
+    if (Strings.isNullOrEmpty(string)) {
+      return defaultValue;
+    }
+    return Long.parseLong(string);
+  }
+
+  private String getString(Map<String, Object> responseObject, String key) {
+    Object value = responseObject.get(key);
+    if (value instanceof String || value instanceof Number) {
+      return value.toString();
+    } else if (value == null) {
+      logger.warn("The key {} is missing from document: {}", key, responseObject);
+    } else {
+      logger.warn("The {} property (={}) is not a string in document: {}", new Object[]{key, value, responseObject});
+    }
+    return "";
   }
 
   private long getStringAsLong(JsonObject responseObject, String key, long defaultValue) {
@@ -133,7 +787,7 @@ public class WebScriptsAlfrescoClient implements AlfrescoClient {
   private String getString(JsonObject responseObject, String key) {
     if (responseObject.has(key)) {
       JsonElement element = responseObject.get(key);
-      if (element.isJsonPrimitive() && element.getAsJsonPrimitive().isString()) {
+      if (element.isJsonPrimitive() && !element.getAsJsonPrimitive().isBoolean()) {
         return element.getAsString();
       } else {
         logger.warn("The {} property (={}) is not a string in document: {}", new Object[]{key, element, responseObject});
@@ -144,25 +798,53 @@ public class WebScriptsAlfrescoClient implements AlfrescoClient {
     return "";
   }
 
-  @SuppressWarnings("unchecked")
-  private Map<String, Object> createDocument(JsonElement documentElement) {
-    if (documentElement.isJsonObject()) {
-      JsonObject documentObject = documentElement.getAsJsonObject();
-      return (Map<String, Object>) gson.fromJson(documentObject, Map.class);
+  @Override
+  public AlfrescoStatus fetchStatus() throws AlfrescoDownException {
+    logger.debug("Hitting url: {}", statusPath);
+    try {
+      return execute("status", createGetRequest(statusPath), new ResponseHandler<AlfrescoStatus>() {
+        @Override
+        public AlfrescoStatus handleResponse(HttpResponse response) throws IOException {
+          checkStatus(response, "status");
+          JsonObject responseObject = gson.fromJson(new InputStreamReader(response.getEntity().getContent(), "UTF-8"), JsonObject.class);
+          return statusFromJson(responseObject);
+        }
+      });
+    } catch (IOException e) {
+      logger.warn("Failed to fetch status.", e);
+      throw new AlfrescoDownException("Alfresco appears to be down", e);
+    }
+  }
+
+  private AlfrescoStatus statusFromJson(JsonObject responseObject) {
+    long lastTransactionId = getStringAsLong(responseObject, LAST_TXN_ID, 0L);
+    long lastAclChangesetId = getStringAsLong(responseObject, LAST_ACL_CS_ID, 0L);
+    Map<String, Map<String, Long>> nodeCounts = new HashMap<String, Map<String, Long>>();
+    if (responseObject.has(NODE_COUNTS) && responseObject.get(NODE_COUNTS).isJsonArray()) {
+      for (JsonElement countElement : responseObject.get(NODE_COUNTS).getAsJsonArray()) {
+        if (!countElement.isJsonObject()) {
+          throw new AlfrescoParseException("Node count must be a json object. It was: " + countElement.toString());
+        }
+        JsonObject countObject = countElement.getAsJsonObject();
+        String store = getString(countObject, "store");
+        Map<String, Long> storeCounts = nodeCounts.get(store);
+        if (storeCounts == null) {
+          storeCounts = new HashMap<String, Long>();
+          nodeCounts.put(store, storeCounts);
+        }
+        storeCounts.put(getString(countObject, "type"), countObject.get("count").getAsLong());
+      }
     }
-    return new HashMap<String, Object>();
+    return new AlfrescoStatus(lastTransactionId, lastAclChangesetId, nodeCounts);
   }
 
   @Override
   public Map<String, Object> fetchMetadata(String nodeUuid)
           throws AlfrescoDownException {
-    String json = fetchMetadataJson(nodeUuid);
-
-    @SuppressWarnings("unchecked")
-    Map<String, Object> map = gson.fromJson(json, Map.class);
+    Map<String, Object> map = fetchMetadataMap(nodeUuid);
 
     List<Map<String, String>> properties = extractPropertiesFieldFromMap(map,
-            "properties");
+            PROPERTIES);
 
     for (Map<String, String> e : properties) {
       map.put(e.get("name"), e.get("value"));
@@ -170,21 +852,84 @@ public class WebScriptsAlfrescoClient implements AlfrescoClient {
     return map;
   }
 
-  private String fetchMetadataJson(String nodeUuid) {
-    String fullUrl = String.format("%s/%s", metadataUrl, nodeUuid);
+  /**
+   * Inline documents (see {@link #setInclude(List)}) carry their properties the way fetched metadata does:
+   * as name/value entries of the document
+   */
+  private Map<String, Object> flattenProperties(Map<String, Object> document) {
+    if (document.get(PROPERTIES) instanceof List) {
+      for (Map<String, String> e : extractPropertiesFieldFromMap(document, PROPERTIES)) {
+        document.put(e.get("name"), e.get("value"));
+      }
+    }
+    return document;
+  }
+
+  private Map<String, Object> fetchMetadataMap(final String nodeUuid) {
+    String fullUrl = String.format("%s/%s%s", metadataPath, nodeUuid,
+        fieldsParameter.isEmpty() ? "" : "?" + fieldsParameter);
     logger.debug("url: {}", fullUrl);
     try {
-      CloseableHttpClient httpClient = HttpClients.createDefault();
       HttpGet httpGet = createGetRequest(fullUrl);
-      CloseableHttpResponse response = httpClient.execute(httpGet);
-      HttpEntity entity = response.getEntity();
-      return CharStreams.toString(new InputStreamReader(entity.getContent(),
-              "UTF-8"));
+      if (useSmile) {
+        httpGet.setHeader("Accept", ACCEPT_SMILE);
+      }
+      return execute("details", httpGet, new ResponseHandler<Map<String, Object>>() {
+        @Override
+        public Map<String, Object> handleResponse(HttpResponse response) throws IOException {
+          checkStatus(response, "details of " + nodeUuid);
+          HttpEntity entity = response.getEntity();
+          return documentReader.readObject(entity.getContent(), getContentType(entity));
+        }
+      });
     } catch (IOException e) {
       throw new AlfrescoDownException(e);
     }
   }
 
+  @Override
+  public AlfrescoContent fetchContent(String nodeUuid) throws AlfrescoDownException {
+    return fetchContent("content", String.format("%s/%s/content", contentPath, nodeUuid), nodeUuid);
+  }
+
+  @Override
+  public AlfrescoContent fetchText(String nodeUuid) throws AlfrescoDownException {
+    return fetchContent("text", String.format("%s/%s", textPath, nodeUuid), nodeUuid);
+  }
+
+  private AlfrescoContent fetchContent(String operation, String fullUrl, final String nodeUuid) {
+    logger.debug("Hitting url: {}", fullUrl);
+    try {
+      HttpGet httpGet = createGetRequest(fullUrl);
+      httpGet.setHeader("Accept", "*/*");
+      return execute(operation, httpGet, new ResponseHandler<AlfrescoContent>() {
+        @Override
+        public AlfrescoContent handleResponse(HttpResponse response) throws IOException {
+          if (response.getStatusLine().getStatusCode() == 404) {
+            return null;
+          }
+          checkStatus(response, "content of " + nodeUuid);
+          HttpEntity entity = response.getEntity();
+          //Checking the declared length first, so that the content is not even read
+          if (maxContentSize >= 0 && entity.getContentLength() > maxContentSize) {
+            throw new AlfrescoContentTooLargeException(String.format("Content of %s is %d bytes, more than %d bytes",
+                nodeUuid, entity.getContentLength(), maxContentSize));
+          }
+          String mimeType = getContentType(entity);
+          if (mimeType != null && mimeType.contains(";")) {
+            mimeType = mimeType.substring(0, mimeType.indexOf(';')).trim();
+          }
+          Header sourceHeader = response.getFirstHeader(CONTENT_SOURCE_HEADER);
+          String source = sourceHeader == null ? AlfrescoContent.SOURCE_RAW : sourceHeader.getValue();
+          return AlfrescoContent.read(entity.getContent(), source, mimeType, contentMemoryThreshold, maxContentSize);
+        }
+      });
+    } catch (IOException e) {
+      logger.warn("Failed to fetch content.", e);
+      throw new AlfrescoDownException("Alfresco appears to be down", e);
+    }
+  }
+
   @SuppressWarnings("unchecked")
   private List<Map<String, String>> extractPropertiesFieldFromMap(
           Map<String, Object> map, String propertiesField) {
@@ -245,21 +990,21 @@ public class WebScriptsAlfrescoClient implements AlfrescoClient {
   @Override
   public AlfrescoUser fetchUserAuthorities(String username)
           throws AlfrescoDownException {
-    HttpResponse response;
     try {
-      CloseableHttpClient httpClient = HttpClients.createDefault();
-      String url = String.format("%s%s", authoritiesUrl, username);
+      String url = String.format("%s%s", authoritiesPath, username);
 
       if (logger.isDebugEnabled()) {
         logger.debug("Hitting url: " + url);
       }
 
       HttpGet httpGet = createGetRequest(url);
-      response = httpClient.execute(httpGet);
-      HttpEntity entity = response.getEntity();
-      AlfrescoUser afResponse = userFromHttpEntity(entity);
-      EntityUtils.consume(entity);
-      return afResponse;
+      return execute("authorities", httpGet, new ResponseHandler<AlfrescoUser>() {
+        @Override
+        public AlfrescoUser handleResponse(HttpResponse response) throws IOException {
+          checkStatus(response, "authorities");
+          return userFromHttpEntity(response.getEntity());
+        }
+      });
     } catch (IOException e) {
       if (logger.isDebugEnabled()) {
         logger.warn("Failed to fetch nodes.", e);
@@ -271,20 +1016,19 @@ public class WebScriptsAlfrescoClient implements AlfrescoClient {
   @Override
   public List<AlfrescoUser> fetchAllUsersAuthorities()
           throws AlfrescoDownException {
-    HttpResponse response;
     try {
-      CloseableHttpClient httpClient = HttpClients.createDefault();
-
       if (logger.isDebugEnabled()) {
-        logger.debug("Hitting url: " + authoritiesUrl);
+        logger.debug("Hitting url: " + authoritiesPath);
       }
 
-      HttpGet httpGet = createGetRequest(authoritiesUrl);
-      response = httpClient.execute(httpGet);
-      HttpEntity entity = response.getEntity();
-      List<AlfrescoUser> users = usersFromHttpEntity(entity);
-      EntityUtils.consume(entity);
-      return users;
+      HttpGet httpGet = createGetRequest(authoritiesPath);
+      return execute("authorities", httpGet, new ResponseHandler<List<AlfrescoUser>>() {
+        @Override
+        public List<AlfrescoUser> handleResponse(HttpResponse response) throws IOException {
+          checkStatus(response, "authorities");
+          return usersFromHttpEntity(response.getEntity());
+        }
+      });
     } catch (IOException e) {
       if (logger.isDebugEnabled()) {
         logger.warn("Failed to fetch nodes.", e);
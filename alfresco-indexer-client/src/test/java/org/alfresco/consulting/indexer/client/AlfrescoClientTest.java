@@ -8,21 +8,28 @@ import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.github.tomakehurst.wiremock.client.WireMock;
 import com.github.tomakehurst.wiremock.http.Fault;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
 import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 import com.google.common.io.CharStreams;
@@ -42,6 +49,10 @@ public class AlfrescoClientTest {
   private final String metadataEndpoint = "/alfresco/service/node/details/" + STORE_PROTOCOL + "/" +
       STORE_ID + "/";
   private final String authoritiesEndpoint = "/alfresco/service/api/node/auth/resolve/";
+  private final String textEndpoint = "/alfresco/service/node/text/" + STORE_PROTOCOL + "/" + STORE_ID + "/";
+  private final String contentEndpoint = "/alfresco/service/api/node/" + STORE_PROTOCOL + "/" + STORE_ID + "/";
+  private final String eventsEndpoint = "/alfresco/service/node/events/" + STORE_PROTOCOL + "/" +
+      STORE_ID;
 
   @Rule
   public WireMockRule wireMockRule = new WireMockRule(8089);
@@ -50,6 +61,7 @@ public class AlfrescoClientTest {
 
   @Before
   public void setup() {
+    EndpointSelector.reset();
     client = new WebScriptsAlfrescoClient("http", "localhost:8089", "/alfresco/service",
         STORE_PROTOCOL, STORE_ID);
   }
@@ -151,6 +163,178 @@ public class AlfrescoClientTest {
     assertTrue(requests.get(0).getUrl().contains(this.lastAclChangesetParam+"="+lastAclChangesetId));
   }
 
+  @Test
+  public void whenAPageSizeIsSetItShouldBeSentWithTheRequest() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint + "&maxTxns=50&maxAclChangesets=20"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ ], \"last_txn_id\": \"50\", \"last_acl_changeset_id\": \"20\" }")));
+
+    client.setPageSize(50, 20);
+    AlfrescoResponse response = client.fetchNodes(0, 0);
+
+    assertEquals(50, response.getLastTransactionId());
+    assertTrue(response.getSize() > 0);
+  }
+
+  @Test
+  public void whenAScopeIsSetItShouldBeSentWithTheRequest() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint + "&sites=marketing%2Csales&folders=workspace%3A%2F%2FSpacesStore%2Fabc123"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ ], \"last_txn_id\": \"50\", \"last_acl_changeset_id\": \"20\" }")));
+
+    client.setScope(Arrays.asList("marketing", "sales"), Arrays.asList("workspace://SpacesStore/abc123"));
+    AlfrescoResponse response = client.fetchNodes(0, 0);
+
+    assertEquals(50, response.getLastTransactionId());
+  }
+
+  @Test
+  public void whenFieldsAreSetTheyShouldBeSentWithTheMetadataRequest() throws Exception {
+    stubFor(get(urlEqualTo(metadataEndpoint + "abc123?fields=cm%3Aname%2C-sys%3Alocalized"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"path\": \"/app:company_home\", \"properties\": [ { \"name\": \"cm:name\", \"value\": \"a.txt\" } ] }")));
+
+    client.setFields(Arrays.asList("cm:name", "-sys:localized"));
+    Map<String, Object> metadata = client.fetchMetadata("abc123");
+
+    assertEquals("a.txt", metadata.get("cm:name"));
+  }
+
+  @Test
+  public void whenDetailsAreIncludedTheDocumentsShouldCarryTheirMetadata() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint + "&include=properties%2Cacl&fields=cm%3Aname"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ { \"uuid\": \"abc123\", \"type\": \"cm:content\", \"deleted\": false, " +
+                "\"readableAuthorities\": [ \"GROUP_EVERYONE\" ], " +
+                "\"properties\": [ { \"name\": \"cm:name\", \"type\": \"java.lang.String\", \"value\": \"a.txt\" } ] } ], " +
+                "\"last_txn_id\": \"4\", \"last_acl_changeset_id\": \"2\" }")));
+
+    client.setFields(Arrays.asList("cm:name"));
+    client.setInclude(Arrays.asList("properties", "acl"));
+    AlfrescoResponse response = client.fetchNodes(0, 0);
+
+    Map<String, Object> document = response.getDocuments().iterator().next();
+    assertEquals("a.txt", document.get("cm:name"));
+    assertFalse(document.containsKey("properties"));
+    assertTrue(document.containsKey("readableAuthorities"));
+  }
+
+  @Test
+  public void whenTheResponseIsCompressedItShouldBeDecompressed() throws Exception {
+    String body = "{ \"docs\": [ { \"uuid\": \"abc123\", \"type\": \"cm:content\", \"deleted\": false } ], " +
+        "\"last_txn_id\": \"4\", \"last_acl_changeset_id\": \"2\" }";
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+    gzip.write(body.getBytes("UTF-8"));
+    gzip.close();
+    stubFor(get(urlMatching(changesEndpoint))
+        .withHeader("Accept-Encoding", WireMock.containing("gzip"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withHeader("Content-Encoding", "gzip")
+            .withBody(compressed.toByteArray())));
+
+    AlfrescoResponse response = client.fetchNodes(0, 0);
+
+    assertEquals(4, response.getLastTransactionId());
+    assertEquals("abc123", response.getDocumentList().get(0).get("uuid"));
+    assertEquals(body.getBytes("UTF-8").length, response.getSize());
+    assertEquals(compressed.size(), response.getCompressedSize());
+  }
+
+  @Test
+  public void whenNodesAreStreamedEachLineShouldBeHandledAsADocument() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint + "&format=ndjson"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/x-ndjson")
+            .withBody("{ \"uuid\": \"abc123\", \"type\": \"cm:content\", \"deleted\": false }\n" +
+                "{ \"uuid\": \"def456\", \"type\": \"cm:folder\", \"deleted\": true }\n" +
+                "{ \"last_txn_id\": \"8\", \"last_acl_changeset_id\": \"3\", \"store_id\": \"" + STORE_ID + "\" }\n")));
+    final List<Map<String, Object>> documents = new ArrayList<Map<String, Object>>();
+
+    AlfrescoResponse response = client.streamNodes(0, 0, new AlfrescoDocumentHandler() {
+      @Override
+      public void handleDocument(Map<String, Object> document) {
+        documents.add(document);
+      }
+    });
+
+    assertEquals(8, response.getLastTransactionId());
+    assertEquals(3, response.getLastAclChangesetId());
+    assertEquals(2, documents.size());
+    assertEquals("def456", documents.get(1).get("uuid"));
+    assertEquals(STORE_ID, documents.get(1).get("store_id"));
+    assertEquals(STORE_PROTOCOL, documents.get(1).get("store_protocol"));
+  }
+
+  @Test
+  public void whenAStreamBreaksAfterSomeDocumentsItShouldNotBeRetried() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint + "&format=ndjson"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/x-ndjson")
+            .withBody("{ \"uuid\": \"abc123\", \"type\": \"cm:content\", \"deleted\": false }\n")));
+    ((WebScriptsAlfrescoClient) client).setRetries(2, 10);
+    final List<Map<String, Object>> documents = new ArrayList<Map<String, Object>>();
+
+    try {
+      client.streamNodes(0, 0, new AlfrescoDocumentHandler() {
+        @Override
+        public void handleDocument(Map<String, Object> document) {
+          documents.add(document);
+        }
+      });
+      Assert.fail("The stream is truncated, streaming nodes should fail");
+    } catch (AlfrescoDownException e) {
+      //expected
+    }
+
+    assertEquals(1, documents.size());
+    assertEquals(1, WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint + "&format=ndjson"))).size());
+  }
+
+  @Test
+  public void whenSmileIsUsedTheBinaryResponseShouldBeParsed() throws Exception {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    JsonGenerator generator = new SmileFactory().createGenerator(body);
+    generator.writeStartObject();
+    generator.writeArrayFieldStart("docs");
+    generator.writeStartObject();
+    generator.writeStringField("uuid", "abc123");
+    generator.writeStringField("type", "cm:content");
+    generator.writeBooleanField("deleted", false);
+    generator.writeEndObject();
+    generator.writeEndArray();
+    generator.writeStringField("last_txn_id", "6");
+    generator.writeStringField("last_acl_changeset_id", "2");
+    generator.writeEndObject();
+    generator.close();
+    stubFor(get(urlMatching(changesEndpoint))
+        .withHeader("Accept", WireMock.containing("application/x-jackson-smile"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/x-jackson-smile")
+            .withBody(body.toByteArray())));
+    ((WebScriptsAlfrescoClient) client).setUseSmile(true);
+
+    AlfrescoResponse response = client.fetchNodes(0, 0);
+
+    assertEquals(6, response.getLastTransactionId());
+    assertEquals(2, response.getLastAclChangesetId());
+    assertEquals("abc123", response.getDocumentList().get(0).get("uuid"));
+    assertEquals(false, response.getDocumentList().get(0).get("deleted"));
+  }
+
   @Test(expected = AlfrescoDownException.class)
   public void whenAlfrescoIsDownAnExceptionShouldBeThrown() throws Exception {
     stubFor(get(urlMatching(changesEndpoint)).willReturn(aResponse().withFault(Fault.EMPTY_RESPONSE)));
@@ -160,6 +344,315 @@ public class AlfrescoClientTest {
     assertNotNull("Response should never be null", alfrescoResponse);
   }
 
+  @Test
+  public void whenAlfrescoIsTemporarilyUnavailableTheRequestShouldBeRetried() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint)).inScenario("restart")
+        .whenScenarioStateIs(Scenario.STARTED)
+        .willReturn(aResponse().withStatus(503))
+        .willSetStateTo("started"));
+    stubFor(get(urlMatching(changesEndpoint)).inScenario("restart")
+        .whenScenarioStateIs("started")
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ ], \"last_txn_id\": \"3\", \"last_acl_changeset_id\": \"3\" }")));
+    ((WebScriptsAlfrescoClient) client).setRetries(2, 10);
+
+    AlfrescoResponse response = client.fetchNodes(0, 0);
+
+    assertEquals(3, response.getLastTransactionId());
+    assertEquals(2, WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint))).size());
+  }
+
+  @Test
+  public void whenAlfrescoIsSaturatedTheClientShouldWaitAsAsked() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint)).inScenario("saturated")
+        .whenScenarioStateIs(Scenario.STARTED)
+        .willReturn(aResponse().withStatus(503).withHeader("Retry-After", "1"))
+        .willSetStateTo("admitted"));
+    stubFor(get(urlMatching(changesEndpoint)).inScenario("saturated")
+        .whenScenarioStateIs("admitted")
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ ], \"last_txn_id\": \"3\", \"last_acl_changeset_id\": \"3\" }")));
+    ((WebScriptsAlfrescoClient) client).setRetries(2, 10);
+
+    long start = System.currentTimeMillis();
+    AlfrescoResponse response = client.fetchNodes(0, 0);
+
+    assertEquals(3, response.getLastTransactionId());
+    assertTrue(System.currentTimeMillis() - start >= 1000);
+    assertEquals(2, WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint))).size());
+  }
+
+  @Test
+  public void whenAlfrescoKeepsAskingToWaitTheCircuitBreakerShouldNotOpen() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint)).willReturn(aResponse().withStatus(503).withHeader("Retry-After", "1")));
+    WebScriptsAlfrescoClient webScriptsClient = (WebScriptsAlfrescoClient) client;
+    webScriptsClient.setRetries(0, 10);
+    webScriptsClient.setCircuitBreaker(new CircuitBreaker(1, 60000));
+
+    for (int i = 0; i < 4; i++) {
+      try {
+        client.fetchNodes(0, 0);
+        Assert.fail("Alfresco is saturated, fetching nodes should fail");
+      } catch (AlfrescoDownException e) {
+        //expected
+      }
+    }
+
+    //Neither the breaker nor the node failure count takes throttled requests into account
+    assertEquals(4, WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint))).size());
+  }
+
+  @Test
+  public void whenANodeAsksToWaitOtherClientsOfTheNodeShouldWaitToo() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint)).inScenario("shared")
+        .whenScenarioStateIs(Scenario.STARTED)
+        .willReturn(aResponse().withStatus(503).withHeader("Retry-After", "1"))
+        .willSetStateTo("admitted"));
+    stubFor(get(urlMatching(changesEndpoint)).inScenario("shared")
+        .whenScenarioStateIs("admitted")
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ ], \"last_txn_id\": \"3\", \"last_acl_changeset_id\": \"3\" }")));
+    ((WebScriptsAlfrescoClient) client).setRetries(0, 10);
+    try {
+      client.fetchNodes(0, 0);
+      Assert.fail("Alfresco is saturated, fetching nodes should fail");
+    } catch (AlfrescoDownException e) {
+      //expected
+    }
+
+    long start = System.currentTimeMillis();
+    AlfrescoClient other = new WebScriptsAlfrescoClient("http", "localhost:8089", "/alfresco/service",
+        STORE_PROTOCOL, STORE_ID);
+    AlfrescoResponse response = other.fetchNodes(0, 0);
+
+    assertEquals(3, response.getLastTransactionId());
+    assertTrue(System.currentTimeMillis() - start >= 500);
+  }
+
+  @Test
+  public void whenSeveralNodesAreGivenDetailsShouldBeSpreadAndChangesPinned() throws Exception {
+    String testFile = CharStreams.toString(new InputStreamReader(getClass()
+        .getResourceAsStream("/metadata.sample.json"), "UTF-8"));
+    stubResult("{ \"docs\": [ ], \"last_txn_id\": \"3\", \"last_acl_changeset_id\": \"3\" }");
+    stubFor(get(urlEqualTo(metadataEndpoint + "abc123")).willReturn(aResponse()
+        .withStatus(200)
+        .withHeader("Content-Type", "application/json")
+        .withBody(testFile)));
+    client = new WebScriptsAlfrescoClient("http", "localhost:8089, 127.0.0.1:8089", "/alfresco/service",
+        STORE_PROTOCOL, STORE_ID);
+
+    client.fetchNodes(0, 0);
+    client.fetchNodes(3, 3);
+    client.fetchMetadata("abc123");
+    client.fetchMetadata("abc123");
+
+    assertEquals(2, WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint))
+        .withHeader("Host", equalTo("localhost:8089"))).size());
+    assertEquals(1, WireMock.findAll(getRequestedFor(urlEqualTo(metadataEndpoint + "abc123"))
+        .withHeader("Host", equalTo("localhost:8089"))).size());
+    assertEquals(1, WireMock.findAll(getRequestedFor(urlEqualTo(metadataEndpoint + "abc123"))
+        .withHeader("Host", equalTo("127.0.0.1:8089"))).size());
+  }
+
+  @Test
+  public void whenTheFirstNodeKeepsFailingChangesShouldBeReadFromAnotherNode() throws Exception {
+    stubResult("{ \"docs\": [ ], \"last_txn_id\": \"3\", \"last_acl_changeset_id\": \"3\" }");
+    client = new WebScriptsAlfrescoClient("http", "localhost:1,localhost:8089", "/alfresco/service",
+        STORE_PROTOCOL, STORE_ID);
+    ((WebScriptsAlfrescoClient) client).setRetries(3, 10);
+
+    AlfrescoResponse response = client.fetchNodes(0, 0);
+
+    assertEquals(3, response.getLastTransactionId());
+    assertEquals(1, WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint))).size());
+  }
+
+  @Test
+  public void whenAListenerIsSetItShouldBeToldAboutEveryRequest() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint)).inScenario("metrics")
+        .whenScenarioStateIs(Scenario.STARTED)
+        .willReturn(aResponse().withStatus(503))
+        .willSetStateTo("available"));
+    stubFor(get(urlMatching(changesEndpoint)).inScenario("metrics")
+        .whenScenarioStateIs("available")
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ { \"uuid\": \"a\" }, { \"uuid\": \"b\" } ], " +
+                "\"last_txn_id\": \"3\", \"last_acl_changeset_id\": \"3\" }")));
+    HistogramClientListener listener = new HistogramClientListener();
+    WebScriptsAlfrescoClient webScriptsClient = (WebScriptsAlfrescoClient) client;
+    webScriptsClient.setRetries(1, 10);
+    webScriptsClient.setListener(listener);
+
+    client.fetchNodes(0, 0);
+
+    HistogramClientListener.OperationStats changes = listener.getOperationStats("changes");
+    assertEquals(2, changes.getLatency().getCount());
+    assertEquals(1, changes.getErrors());
+    assertEquals(1, changes.getRetries());
+    assertEquals(1, changes.getBytes().getCount());
+    assertTrue(changes.getBytes().getTotal() > 0);
+    assertEquals(1, listener.getDocumentsPerPage().getCount());
+    assertEquals(2, listener.getDocumentsPerPage().getMax());
+    assertEquals(2, listener.getPoolWaitTime().getCount());
+  }
+
+  @Test
+  public void whenATraceIdIsSetItShouldIdentifyTheRequestsAndServerTimingsShouldBeRecorded() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint))
+        .withHeader("X-Request-Id", WireMock.matching("process-1234-\\d+"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withHeader("Server-Timing", "sql.select_NodeIndexesByTransactionId;dur=12.4, node.path;dur=3")
+            .withBody("{ \"docs\": [ ], \"last_txn_id\": \"3\", \"last_acl_changeset_id\": \"3\" }")));
+    HistogramClientListener listener = new HistogramClientListener();
+    ((WebScriptsAlfrescoClient) client).setListener(listener);
+
+    client.setTraceId("process-1234");
+    AlfrescoResponse response = client.fetchNodes(0, 0);
+    client.setTraceId(null);
+
+    assertEquals(3, response.getLastTransactionId());
+    Map<String, Histogram> serverTimes = listener.getOperationStats("changes").getServerTimes();
+    assertEquals(12, serverTimes.get("sql.select_NodeIndexesByTransactionId").getMax());
+    assertEquals(3, serverTimes.get("node.path").getMax());
+  }
+
+  @Test
+  public void whenAlfrescoRefusesTheRequestItShouldNeitherBeRetriedNorOpenTheCircuitBreaker() throws Exception {
+    stubFor(get(urlMatching(metadataEndpoint + ".*")).willReturn(aResponse()
+        .withStatus(400)
+        .withHeader("Content-Type", "application/json")
+        .withBody("{ \"message\": \"Invalid fields\" }")));
+    WebScriptsAlfrescoClient webScriptsClient = (WebScriptsAlfrescoClient) client;
+    webScriptsClient.setRetries(2, 10);
+    webScriptsClient.setCircuitBreaker(new CircuitBreaker(1, 60000));
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        client.fetchMetadata("abc123");
+        Assert.fail("Alfresco refused the request, fetching metadata should fail");
+      } catch (AlfrescoRequestException e) {
+        assertEquals(400, e.getStatusCode());
+      }
+    }
+
+    assertEquals(2, WireMock.findAll(getRequestedFor(urlMatching(metadataEndpoint + ".*"))).size());
+  }
+
+  @Test
+  public void whenAlfrescoKeepsFailingTheCircuitBreakerShouldFailFast() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint)).willReturn(aResponse().withFault(Fault.EMPTY_RESPONSE)));
+    WebScriptsAlfrescoClient webScriptsClient = (WebScriptsAlfrescoClient) client;
+    webScriptsClient.setRetries(0, 10);
+    webScriptsClient.setCircuitBreaker(new CircuitBreaker(2, 60000));
+
+    for (int i = 0; i < 3; i++) {
+      try {
+        client.fetchNodes(0, 0);
+        Assert.fail("Alfresco is down, fetching nodes should fail");
+      } catch (AlfrescoDownException e) {
+        //expected
+      }
+    }
+
+    assertEquals(2, WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint))).size());
+  }
+
+  @Test
+  public void whenTheTrialRequestIsInterruptedTheNextRequestShouldBeTried() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint)).willReturn(aResponse().withFault(Fault.EMPTY_RESPONSE)));
+    WebScriptsAlfrescoClient webScriptsClient = (WebScriptsAlfrescoClient) client;
+    webScriptsClient.setRetries(0, 10);
+    webScriptsClient.setCircuitBreaker(new CircuitBreaker(1, 10));
+    try {
+      client.fetchNodes(0, 0);
+      Assert.fail("Alfresco is down, fetching nodes should fail");
+    } catch (AlfrescoDownException e) {
+      //expected, the circuit is now open
+    }
+    Thread.sleep(20);
+
+    //The trial request is interrupted while waiting to retry
+    webScriptsClient.setRetries(1, 10);
+    Thread.currentThread().interrupt();
+    try {
+      client.fetchNodes(0, 0);
+      Assert.fail("The trial request should be interrupted");
+    } catch (AlfrescoDownException e) {
+      //expected
+    } finally {
+      Thread.interrupted();
+    }
+
+    stubResult("{ \"docs\": [ ], \"last_txn_id\": \"3\", \"last_acl_changeset_id\": \"3\" }");
+    assertEquals(3, client.fetchNodes(0, 0).getLastTransactionId());
+  }
+
+  @Test
+  public void whenNoNodeHasChangedTheClientShouldWaitForEventsAndFetchNodesAgain() throws Exception {
+    stubResult("{ \"docs\": [ ], " +
+        "\"store_id\": \"" + STORE_ID + "\", " +
+        "\"store_protocol\": \"" + STORE_PROTOCOL + "\", " +
+        "\"last_txn_id\": 7," +
+        "\"last_acl_changeset_id\": 7  } ");
+    stubFor(get(urlEqualTo(eventsEndpoint))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"events\": [ ], \"last_event_id\": \"5\", \"overflow\": false }")));
+    stubFor(get(urlMatching(eventsEndpoint + "\\?lastEventId=5&timeout=[0-9]+"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"events\": [ { \"id\": 6, \"uuid\": \"abc123\" } ], " +
+                "\"last_event_id\": \"6\", \"overflow\": false }")));
+
+    client.waitForNodes(7, 7);
+
+    assertEquals(1, WireMock.findAll(getRequestedFor(urlMatching(eventsEndpoint + "\\?lastEventId=5.*"))).size());
+    assertEquals(2, WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint))).size());
+  }
+
+  @Test
+  public void whenNodeEventsAreNotAvailableTheClientShouldNotWait() throws Exception {
+    stubResult("{ \"docs\": [ ], " +
+        "\"store_id\": \"" + STORE_ID + "\", " +
+        "\"store_protocol\": \"" + STORE_PROTOCOL + "\", " +
+        "\"last_txn_id\": 7," +
+        "\"last_acl_changeset_id\": 7  } ");
+    stubFor(get(urlMatching(eventsEndpoint + ".*")).willReturn(aResponse().withStatus(404)));
+
+    AlfrescoResponse response = client.waitForNodes(7, 7);
+
+    assertEquals(7, response.getLastTransactionId());
+    assertEquals(1, WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint))).size());
+  }
+
+  @Test
+  public void whenStatusIsFetchedLastIdsAndNodeCountsShouldBeReturned() throws Exception {
+    stubFor(get(urlEqualTo("/alfresco/service/node/status"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"last_txn_id\": \"42\", \"last_acl_changeset_id\": \"7\", " +
+                "\"node_counts\": [ { \"store\": \"workspace://SpacesStore\", \"type\": \"cm:content\", \"count\": 12 } ] }")));
+
+    AlfrescoStatus status = client.fetchStatus();
+
+    assertEquals(42, status.getLastTransactionId());
+    assertEquals(7, status.getLastAclChangesetId());
+    assertEquals(Long.valueOf(12), status.getNodeCounts().get("workspace://SpacesStore").get("cm:content"));
+  }
+
   @Test
   public void whenAProperNodeIsGivenThenTheMetadataEndpointIsQueried()
       throws Exception {
@@ -184,6 +677,52 @@ public class AlfrescoClientTest {
     Assert.assertEquals("5", metadata.get("foo"));
   }
 
+  @Test
+  public void whenContentIsFetchedItShouldBeSpilledToDiskAboveTheThreshold() throws Exception {
+    String uuid = "abc123";
+    stubFor(get(urlEqualTo(contentEndpoint + uuid + "/content"))
+        .willReturn(aResponse().withStatus(200)
+            .withHeader("Content-Type", "text/plain;charset=UTF-8").withBody("some content")));
+    WebScriptsAlfrescoClient webScriptsClient = (WebScriptsAlfrescoClient) client;
+
+    AlfrescoContent content = webScriptsClient.fetchContent(uuid);
+    assertEquals(12, content.getLength());
+    assertEquals("text/plain", content.getMimeType());
+    assertFalse(content.isSpilled());
+    content.close();
+
+    webScriptsClient.setContentLimits(4, -1);
+    content = webScriptsClient.fetchContent(uuid);
+    assertTrue(content.isSpilled());
+    assertEquals("some content", CharStreams.toString(new InputStreamReader(content.getInputStream(), "UTF-8")));
+    content.close();
+
+    webScriptsClient.setContentLimits(4, 8);
+    try {
+      webScriptsClient.fetchContent(uuid);
+      Assert.fail("Content larger than the maximum size should not be fetched");
+    } catch (AlfrescoContentTooLargeException e) {
+      //expected
+    }
+  }
+
+  @Test
+  public void whenTextIsFetchedItsSourceShouldBeReturned() throws Exception {
+    String uuid = "abc123";
+    stubFor(get(urlEqualTo(textEndpoint + uuid))
+        .willReturn(aResponse().withStatus(200)
+            .withHeader("Content-Type", "text/plain;charset=UTF-8")
+            .withHeader("X-Indexer-Content-Source", "transformation")
+            .withBody("extracted text")));
+
+    AlfrescoContent content = client.fetchText(uuid);
+
+    assertEquals(AlfrescoContent.SOURCE_TRANSFORMATION, content.getSource());
+    assertEquals("text/plain", content.getMimeType());
+    assertEquals("extracted text", CharStreams.toString(new InputStreamReader(content.getInputStream(), "UTF-8")));
+    content.close();
+  }
+
   @Test
   public void whenFetchUserAuthoritiesIsCalledTheCorrectUserAndAuthoritiesShouldBeReturned()
       throws Exception {
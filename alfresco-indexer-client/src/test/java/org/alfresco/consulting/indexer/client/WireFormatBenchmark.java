@@ -0,0 +1,133 @@
+package org.alfresco.consulting.indexer.client;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares JSON and Smile for a changes page and a node details response: payload size (raw and gzipped)
+ * and encode/decode throughput. Not a unit test; run it with
+ * mvn test-compile exec:java -Dexec.mainClass=org.alfresco.consulting.indexer.client.WireFormatBenchmark -Dexec.classpathScope=test
+ */
+public class WireFormatBenchmark {
+  private static final int WARMUP = 200;
+  private static final int ITERATIONS = 1000;
+
+  public static void main(String[] args) throws IOException {
+    int documents = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    JsonFactory json = new JsonFactory();
+    SmileFactory smile = new SmileFactory();
+
+    System.out.println(String.format("%-8s %-6s %10s %10s %14s %14s", "payload", "format", "bytes", "gzipped",
+        "encode/s", "decode/s"));
+    for (String payload : new String[]{"changes", "details"}) {
+      run(payload, "json", json, "application/json", documents);
+      run(payload, "smile", smile, DocumentReader.SMILE_MIMETYPE, documents);
+    }
+  }
+
+  private static void run(String payload, String format, JsonFactory factory, String contentType, int documents)
+      throws IOException {
+    byte[] encoded = encode(payload, factory, documents);
+    for (int i = 0; i < WARMUP; i++) {
+      encode(payload, factory, documents);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      encode(payload, factory, documents);
+    }
+    double encodeRate = ITERATIONS / ((System.nanoTime() - start) / 1e9);
+
+    DocumentReader reader = new DocumentReader();
+    for (int i = 0; i < WARMUP; i++) {
+      reader.readObject(new ByteArrayInputStream(encoded), contentType);
+    }
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      reader.readObject(new ByteArrayInputStream(encoded), contentType);
+    }
+    double decodeRate = ITERATIONS / ((System.nanoTime() - start) / 1e9);
+
+    System.out.println(String.format("%-8s %-6s %10d %10d %14.0f %14.0f", payload, format, encoded.length,
+        gzip(encoded), encodeRate, decodeRate));
+  }
+
+  private static byte[] encode(String payload, JsonFactory factory, int documents) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonGenerator generator = factory.createGenerator(out);
+    if ("changes".equals(payload)) {
+      writeChanges(generator, documents);
+    } else {
+      writeDetails(generator);
+    }
+    generator.close();
+    return out.toByteArray();
+  }
+
+  /**
+   * Same structure as changes.get.json.ftl
+   */
+  private static void writeChanges(JsonGenerator generator, int documents) throws IOException {
+    generator.writeStartObject();
+    generator.writeArrayFieldStart("docs");
+    for (int i = 0; i < documents; i++) {
+      String uuid = new UUID(i, i).toString();
+      generator.writeStartObject();
+      generator.writeStringField("propertiesUrl", "/alfresco/service/node/details/workspace/SpacesStore/" + uuid);
+      generator.writeStringField("uuid", uuid);
+      generator.writeStringField("type", i % 10 == 0 ? "cm:folder" : "cm:content");
+      generator.writeBooleanField("deleted", i % 20 == 0);
+      generator.writeEndObject();
+    }
+    generator.writeEndArray();
+    generator.writeStringField("last_txn_id", "123456");
+    generator.writeStringField("last_acl_changeset_id", "789");
+    generator.writeNumberField("collapsed_changes", 0);
+    generator.writeStringField("store_id", "SpacesStore");
+    generator.writeStringField("store_protocol", "workspace");
+    generator.writeEndObject();
+  }
+
+  /**
+   * Same structure as details.get.json.ftl
+   */
+  private static void writeDetails(JsonGenerator generator) throws IOException {
+    generator.writeStartObject();
+    generator.writeArrayFieldStart("readableAuthorities");
+    for (String authority : new String[]{"GROUP_EVERYONE", "GROUP_site_swsdp", "GROUP_site_swsdp_SiteManager"}) {
+      generator.writeString(authority);
+    }
+    generator.writeEndArray();
+    generator.writeStringField("path", "/app:company_home/st:sites/cm:swsdp/cm:documentLibrary/cm:Agency_x0020_Files");
+    generator.writeStringField("contentUrlPath", "/api/node/content/workspace/SpacesStore/abc123");
+    generator.writeArrayFieldStart("aspects");
+    for (String aspect : new String[]{"cm:titled", "cm:auditable", "sys:referenceable", "cm:versionable"}) {
+      generator.writeString(aspect);
+    }
+    generator.writeEndArray();
+    generator.writeArrayFieldStart("properties");
+    for (int i = 0; i < 30; i++) {
+      generator.writeStartObject();
+      generator.writeStringField("name", "cm:property" + i);
+      generator.writeStringField("type", "d:text");
+      generator.writeStringField("value", "Value of property " + i);
+      generator.writeEndObject();
+    }
+    generator.writeEndArray();
+    generator.writeEndObject();
+  }
+
+  private static int gzip(byte[] encoded) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+    gzip.write(encoded);
+    gzip.close();
+    return compressed.size();
+  }
+}
@@ -2,12 +2,14 @@
   "docs" : [
     <#list nodes as node>
       {
-        <#assign qname=QName.createQName(node.getTypeNamespace(),node.getTypeName()) >
         <#assign suffix="/"+storeProtocol+"/"+storeId+"/"+node.uuid >
         "propertiesUrl" : "${propertiesUrlTemplate + suffix}",
         "uuid" : "${node.uuid}",
-        "type" : "${qname.toPrefixString(nsResolver)}",
-        "deleted" : ${node.getDeleted(qnameDao)?string}
+        "type" : "${dictionaryMetadataCache.getPrefixStringById(node.typeQNameId)}",
+        "deleted" : ${node.isRemoved(qnameDao)?string}<#if node.contentUrl??>,
+        "contentUrl" : "${node.contentUrl}",
+        "contentSize" : ${node.contentSize?c},
+        "contentMimetype" : "${node.contentMimetype!""}"</#if>
       }
       <#if node_has_next>,</#if>
     </#list>
@@ -18,6 +20,7 @@
   <#if lastAclChangesetId??>
     "last_acl_changeset_id" : "${lastAclChangesetId?c}",
   </#if>
+  "collapsed_changes" : ${collapsedChanges?c},
   "store_id" : "${storeId}",
   "store_protocol" : "${storeProtocol}"
 }
\ No newline at end of file
@@ -19,6 +19,11 @@
   <#if previewUrlPath??>
     "previewUrlPath" : "${previewUrlPrefix + previewUrlPath}",
   </#if>
+  <#if contentUrl??>
+    "contentUrl" : "${contentUrl}",
+    "contentSize" : ${contentSize?c},
+    "contentMimetype" : "${contentMimetype}",
+  </#if>
 
   <#assign propNames = properties?keys>
   "aspects" : [
@@ -0,0 +1,15 @@
+{
+  "events" : [
+    <#list events as event>
+      {
+        "id" : ${event.id?c},
+        "uuid" : "${event.nodeRef.id}"
+      }
+      <#if event_has_next>,</#if>
+    </#list>
+  ],
+  "last_event_id" : "${lastEventId?c}",
+  "overflow" : ${overflow?string},
+  "store_id" : "${storeId}",
+  "store_protocol" : "${storeProtocol}"
+}
\ No newline at end of file
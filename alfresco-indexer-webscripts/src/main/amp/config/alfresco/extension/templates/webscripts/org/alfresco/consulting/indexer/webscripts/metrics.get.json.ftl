@@ -0,0 +1,25 @@
+{
+  "timers" : {
+    <#list timers as timer>
+      "${timer.name}" : {
+        "count" : ${timer.count?c},
+        "rate" : ${timer.rate?c},
+        "mean" : ${timer.mean?c},
+        "max" : ${timer.max?c},
+        "p50" : ${timer.p50?c},
+        "p95" : ${timer.p95?c},
+        "p99" : ${timer.p99?c},
+        "rows" : ${timer.rows?c}
+      }<#if timer_has_next>,</#if>
+    </#list>
+  },
+  "caches" : {
+    <#list caches as cache>
+      "${cache.name}" : {
+        "hits" : ${cache.hits?c},
+        "misses" : ${cache.misses?c},
+        "hitRatio" : ${cache.hitRatio?c}
+      }<#if cache_has_next>,</#if>
+    </#list>
+  }
+}
\ No newline at end of file
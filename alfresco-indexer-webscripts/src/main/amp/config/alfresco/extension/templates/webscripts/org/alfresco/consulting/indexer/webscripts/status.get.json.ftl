@@ -0,0 +1,14 @@
+{
+  "last_txn_id" : "${maxTxnId?c}",
+  "last_acl_changeset_id" : "${maxAclChangesetId?c}",
+  "node_counts" : [
+    <#list nodeCounts as nodeCount>
+      {
+        "store" : "${nodeCount.store}",
+        "type" : "${nodeCount.type}",
+        "count" : ${nodeCount.count?c}
+      }
+      <#if nodeCount_has_next>,</#if>
+    </#list>
+  ]
+}
\ No newline at end of file
@@ -0,0 +1,232 @@
+package org.alfresco.consulting.indexer.cache;
+
+import org.alfresco.consulting.indexer.metrics.IndexerMetrics;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.qname.QNameDAO;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.Behaviour;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary lookups repeated for every node and every property by the indexer WebScripts, which only change
+ * when a model is deployed: QNames (and alf_qname ids) rendered out as prefix strings, content-aware types
+ * and the alf_qname ids of the allowed (and excluded) types and aspects.
+ * Everything is cleared once a transaction changing a model (cm:dictionaryModel) is committed, and every ttl
+ * milliseconds, so that models changed on another node of the cluster are eventually taken into account.
+ * Lookups are counted by {@link IndexerMetrics} as cache.dictionary
+ */
+public class DictionaryMetadataCache extends TransactionListenerAdapter implements
+    NodeServicePolicies.OnCreateNodePolicy, NodeServicePolicies.OnUpdateNodePolicy, NodeServicePolicies.OnDeleteNodePolicy {
+
+  protected static final Log logger = LogFactory.getLog(DictionaryMetadataCache.class);
+
+  private static final String KEY_MODEL_CHANGED = DictionaryMetadataCache.class.getName() + ".modelChanged";
+  private static final String CACHE_NAME = "cache.dictionary";
+
+  private final Map<QName, String> prefixStrings = new ConcurrentHashMap<QName, String>();
+  private final Map<Long, QName> qnames = new ConcurrentHashMap<Long, QName>();
+  private final Map<QName, Long> qnameIds = new ConcurrentHashMap<QName, Long>();
+  private final Map<QName, Boolean> contentAwareTypes = new ConcurrentHashMap<QName, Boolean>();
+  private final Map<Collection<String>, Set<Long>> qnameIdSets = new ConcurrentHashMap<Collection<String>, Set<Long>>();
+  private volatile long clearTime = System.currentTimeMillis();
+
+  public void init() {
+    policyComponent.bindClassBehaviour(NodeServicePolicies.OnCreateNodePolicy.QNAME, ContentModel.TYPE_DICTIONARY_MODEL,
+        new JavaBehaviour(this, "onCreateNode", Behaviour.NotificationFrequency.EVERY_EVENT));
+    policyComponent.bindClassBehaviour(NodeServicePolicies.OnUpdateNodePolicy.QNAME, ContentModel.TYPE_DICTIONARY_MODEL,
+        new JavaBehaviour(this, "onUpdateNode", Behaviour.NotificationFrequency.EVERY_EVENT));
+    policyComponent.bindClassBehaviour(NodeServicePolicies.OnDeleteNodePolicy.QNAME, ContentModel.TYPE_DICTIONARY_MODEL,
+        new JavaBehaviour(this, "onDeleteNode", Behaviour.NotificationFrequency.EVERY_EVENT));
+  }
+
+  /**
+   * @return the QName as a prefix string (i.e. cm:content)
+   */
+  public String getPrefixString(QName qname) {
+    String prefixString = get(prefixStrings, qname);
+    if (prefixString == null) {
+      prefixString = qname.toPrefixString(namespaceService);
+      prefixStrings.put(qname, prefixString);
+    }
+    return prefixString;
+  }
+
+  /**
+   * @return the QName stored in alf_qname with the given id, as a prefix string
+   */
+  public String getPrefixStringById(Long qnameId) {
+    return getPrefixString(getQName(qnameId));
+  }
+
+  /**
+   * @return the QName stored in alf_qname with the given id
+   */
+  public QName getQName(Long qnameId) {
+    QName qname = get(qnames, qnameId);
+    if (qname == null) {
+      qname = qnameDao.getQName(qnameId).getSecond();
+      qnames.put(qnameId, qname);
+    }
+    return qname;
+  }
+
+  /**
+   * @return the alf_qname id of the QName, null if it is not (yet) stored in alf_qname
+   */
+  public Long getQNameId(QName qname) {
+    Long qnameId = get(qnameIds, qname);
+    if (qnameId == null) {
+      Pair<Long, QName> qnamePair = qnameDao.getQName(qname);
+      if (qnamePair != null) {
+        qnameId = qnamePair.getFirst();
+        qnameIds.put(qname, qnameId);
+      }
+    }
+    return qnameId;
+  }
+
+  /**
+   * Resolves QNames (i.e. the allowed types) into alf_qname ids; QNames that are not (yet) stored in alf_qname
+   * are left out, and resolved again on the next invocation
+   * @param qnames full QName strings, such as {http://www.alfresco.org/model/content/1.0}content
+   */
+  public Set<Long> getQNameIds(Collection<String> qnames) {
+    Set<Long> ids = get(qnameIdSets, qnames);
+    if (ids != null) {
+      return ids;
+    }
+    ids = new HashSet<Long>();
+    boolean allResolved = true;
+    for (String qname : qnames) {
+      if (qname.trim().isEmpty()) {
+        continue;
+      }
+      Long qnameId = getQNameId(QName.createQName(qname.trim()));
+      if (qnameId == null) {
+        allResolved = false;
+      } else {
+        ids.add(qnameId);
+      }
+    }
+    ids = Collections.unmodifiableSet(ids);
+    if (allResolved) {
+      qnameIdSets.put(qnames, ids);
+    }
+    return ids;
+  }
+
+  /**
+   * @return true if the type is (a subtype of) cm:content
+   */
+  public boolean isContentAware(QName type) {
+    Boolean contentAware = get(contentAwareTypes, type);
+    if (contentAware == null) {
+      contentAware = dictionaryService.isSubClass(type, ContentModel.TYPE_CONTENT);
+      contentAwareTypes.put(type, contentAware);
+    }
+    return contentAware;
+  }
+
+  private <K, V> V get(Map<K, V> cache, K key) {
+    if (ttl > 0 && System.currentTimeMillis() - clearTime > ttl) {
+      logger.debug("The dictionary metadata has expired, clearing it");
+      clear();
+    }
+    V value = cache.get(key);
+    if (value == null) {
+      metrics.cacheMiss(CACHE_NAME);
+    } else {
+      metrics.cacheHit(CACHE_NAME);
+    }
+    return value;
+  }
+
+  public void clear() {
+    clearTime = System.currentTimeMillis();
+    prefixStrings.clear();
+    qnames.clear();
+    qnameIds.clear();
+    contentAwareTypes.clear();
+    qnameIdSets.clear();
+  }
+
+  public void onCreateNode(ChildAssociationRef childAssocRef) {
+    modelChanged();
+  }
+
+  public void onUpdateNode(NodeRef nodeRef) {
+    modelChanged();
+  }
+
+  public void onDeleteNode(ChildAssociationRef childAssocRef, boolean isNodeArchived) {
+    modelChanged();
+  }
+
+  /**
+   * Models are (re)loaded by the dictionary once the transaction is committed, so is the cache cleared
+   */
+  private void modelChanged() {
+    if (AlfrescoTransactionSupport.getResource(KEY_MODEL_CHANGED) == null) {
+      AlfrescoTransactionSupport.bindResource(KEY_MODEL_CHANGED, Boolean.TRUE);
+      AlfrescoTransactionSupport.bindListener(this);
+    }
+  }
+
+  @Override
+  public void afterCommit() {
+    logger.debug("A model has been changed, clearing the dictionary metadata");
+    clear();
+  }
+
+  private DictionaryService dictionaryService;
+  private NamespaceService namespaceService;
+  private QNameDAO qnameDao;
+  private PolicyComponent policyComponent;
+  private long ttl = 3600000;
+  private IndexerMetrics metrics;
+
+  public void setDictionaryService(DictionaryService dictionaryService) {
+    this.dictionaryService = dictionaryService;
+  }
+
+  public void setNamespaceService(NamespaceService namespaceService) {
+    this.namespaceService = namespaceService;
+  }
+
+  public void setQnameDao(QNameDAO qnameDao) {
+    this.qnameDao = qnameDao;
+  }
+
+  public void setPolicyComponent(PolicyComponent policyComponent) {
+    this.policyComponent = policyComponent;
+  }
+
+  /**
+   * @param ttl how long (in milliseconds) the metadata is kept, 0 (or less) until a model changes
+   */
+  public void setTtl(long ttl) {
+    this.ttl = ttl;
+  }
+
+  public void setMetrics(IndexerMetrics metrics) {
+    this.metrics = metrics;
+  }
+}
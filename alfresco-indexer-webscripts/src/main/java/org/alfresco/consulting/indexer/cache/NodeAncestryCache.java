@@ -0,0 +1,166 @@
+package org.alfresco.consulting.indexer.cache;
+
+import org.alfresco.consulting.indexer.metrics.IndexerMetrics;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.Behaviour;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.InvalidNodeRefException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded (LRU) cache of primary parents, telling whether a node lies within a set of sites or folders;
+ * siblings share their ancestors, therefore the scope of a node costs one parent lookup in the common case.
+ * The parent of the checked node itself is never cached, since changed nodes are mostly documents and may
+ * just have been moved; ancestors that are moved are evicted once the move is committed.
+ * Evictions are local to this Alfresco node: parents cached before a move made on another node of the cluster
+ * are looked up again once they are older than ttl milliseconds
+ */
+public class NodeAncestryCache extends TransactionListenerAdapter implements NodeServicePolicies.OnMoveNodePolicy {
+
+  protected static final Log logger = LogFactory.getLog(NodeAncestryCache.class);
+
+  private static final String KEY_MOVED_NODES = NodeAncestryCache.class.getName() + ".movedNodes";
+  /** Guards against cycles in a corrupted hierarchy */
+  private static final int MAX_DEPTH = 1000;
+
+  /**
+   * The primary parent of a node, along with the time it has been looked up
+   */
+  private static class Parent {
+    private final NodeRef nodeRef;
+    private final long time;
+
+    private Parent(NodeRef nodeRef, long time) {
+      this.nodeRef = nodeRef;
+      this.time = time;
+    }
+  }
+
+  private Map<NodeRef, Parent> parents;
+
+  public void init() {
+    final int capacity = this.capacity;
+    parents = new LinkedHashMap<NodeRef, Parent>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<NodeRef, Parent> eldest) {
+        return size() > capacity;
+      }
+    };
+    policyComponent.bindClassBehaviour(NodeServicePolicies.OnMoveNodePolicy.QNAME, ContentModel.TYPE_BASE,
+        new JavaBehaviour(this, "onMoveNode", Behaviour.NotificationFrequency.EVERY_EVENT));
+  }
+
+  /**
+   * @return true if the node, or one of its primary ancestors, is part of the scope
+   */
+  public boolean isInScope(NodeRef nodeRef, Set<NodeRef> scope) {
+    return scope.contains(nodeRef) || hasAncestorIn(nodeRef, scope);
+  }
+
+  /**
+   * @return true if one of the primary ancestors of the node (not the node itself) is one of the given nodes
+   */
+  public boolean hasAncestorIn(NodeRef nodeRef, Set<NodeRef> nodeRefs) {
+    try {
+      NodeRef ancestor = nodeService.getPrimaryParent(nodeRef).getParentRef();
+      for (int depth = 0; ancestor != null && depth < MAX_DEPTH; depth++) {
+        if (nodeRefs.contains(ancestor)) {
+          return true;
+        }
+        ancestor = getParent(ancestor);
+      }
+    } catch (InvalidNodeRefException e) {
+      logger.debug("Node " + nodeRef + " (or one of its ancestors) has been deleted, it has no ancestor left");
+    }
+    return false;
+  }
+
+  private NodeRef getParent(NodeRef nodeRef) {
+    long now = System.currentTimeMillis();
+    synchronized (parents) {
+      Parent cached = parents.get(nodeRef);
+      if (cached != null && (ttl <= 0 || now - cached.time <= ttl)) {
+        metrics.cacheHit("cache.ancestry");
+        return cached.nodeRef;
+      }
+    }
+    metrics.cacheMiss("cache.ancestry");
+    //Root nodes are cached too, with a null parent
+    NodeRef parent = nodeService.getPrimaryParent(nodeRef).getParentRef();
+    synchronized (parents) {
+      parents.put(nodeRef, new Parent(parent, now));
+    }
+    return parent;
+  }
+
+  public void evict(NodeRef nodeRef) {
+    synchronized (parents) {
+      parents.remove(nodeRef);
+    }
+  }
+
+  public void onMoveNode(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef) {
+    NodeRef nodeRef = newChildAssocRef.getChildRef();
+    evict(nodeRef);
+    //Evicting again after commit, as concurrent lookups may cache the old parent in the meantime
+    Set<NodeRef> movedNodes = AlfrescoTransactionSupport.getResource(KEY_MOVED_NODES);
+    if (movedNodes == null) {
+      movedNodes = new HashSet<NodeRef>();
+      AlfrescoTransactionSupport.bindResource(KEY_MOVED_NODES, movedNodes);
+      AlfrescoTransactionSupport.bindListener(this);
+    }
+    movedNodes.add(nodeRef);
+  }
+
+  @Override
+  public void afterCommit() {
+    Set<NodeRef> movedNodes = AlfrescoTransactionSupport.getResource(KEY_MOVED_NODES);
+    if (movedNodes != null) {
+      for (NodeRef nodeRef : movedNodes) {
+        evict(nodeRef);
+      }
+    }
+  }
+
+  private NodeService nodeService;
+  private PolicyComponent policyComponent;
+  private int capacity = 50000;
+  private long ttl = 300000;
+  private IndexerMetrics metrics;
+
+  public void setNodeService(NodeService nodeService) {
+    this.nodeService = nodeService;
+  }
+
+  public void setPolicyComponent(PolicyComponent policyComponent) {
+    this.policyComponent = policyComponent;
+  }
+
+  public void setCapacity(int capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * @param ttl how long (in milliseconds) a parent is cached, 0 (or less) for as long as it is not evicted
+   */
+  public void setTtl(long ttl) {
+    this.ttl = ttl;
+  }
+
+  public void setMetrics(IndexerMetrics metrics) {
+    this.metrics = metrics;
+  }
+}
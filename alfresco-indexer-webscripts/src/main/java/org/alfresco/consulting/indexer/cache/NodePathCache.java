@@ -0,0 +1,271 @@
+package org.alfresco.consulting.indexer.cache;
+
+import org.alfresco.consulting.indexer.metrics.IndexerMetrics;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.Behaviour;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.Path;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded (LRU) cache of resolved primary paths (prefix strings) and site names, keyed by parent node;
+ * siblings share their parent, therefore the path and site of a node cost one parent lookup in the common case.
+ * As the paths of all its descendants change, the paths cached under a container (those starting with its old
+ * path) are evicted whenever it is moved or renamed, and once more when the transaction is committed; moving or
+ * renaming a document affects its own path only, which is never cached. Evictions are only made on the Alfresco
+ * node where the change is made, therefore paths older than ttl milliseconds are resolved again, so that the other
+ * nodes of a cluster catch up
+ */
+public class NodePathCache extends TransactionListenerAdapter
+    implements NodeServicePolicies.OnMoveNodePolicy, NodeServicePolicies.OnUpdatePropertiesPolicy {
+
+  protected static final Log logger = LogFactory.getLog(NodePathCache.class);
+
+  private static final String KEY_CHANGED_PATHS = NodePathCache.class.getName() + ".changedPaths";
+  private static final String SITES = "sites";
+
+  /**
+   * The primary path of a node, as a prefix string, and the name of the site it is part of (if any)
+   */
+  public static class NodePath {
+    private final String path;
+    private final String siteName;
+    /** Whether the last element of the path is the sites folder, hence the next one is a site */
+    private final boolean sites;
+
+    private NodePath(String path, String siteName, boolean sites) {
+      this.path = path;
+      this.siteName = siteName;
+      this.sites = sites;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public String getSiteName() {
+      return siteName;
+    }
+
+    private NodePath child(Path.Element element, NamespaceService namespaceService) {
+      String childPath = path + ("/".equals(path) ? "" : "/") + element.getPrefixedString(namespaceService);
+      String name = getLocalName(element);
+      if (siteName != null) {
+        return new NodePath(childPath, siteName, false);
+      } else if (name.equals(SITES)) {
+        return new NodePath(childPath, null, true);
+      } else {
+        return new NodePath(childPath, sites ? name : null, false);
+      }
+    }
+  }
+
+  /**
+   * A resolved path, along with the time it has been resolved
+   */
+  private static class CachedPath {
+    private final NodePath path;
+    private final long time;
+
+    private CachedPath(NodePath path, long time) {
+      this.path = path;
+      this.time = time;
+    }
+  }
+
+  private Map<NodeRef, CachedPath> paths;
+
+  public void init() {
+    final int capacity = this.capacity;
+    paths = new LinkedHashMap<NodeRef, CachedPath>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<NodeRef, CachedPath> eldest) {
+        return size() > capacity;
+      }
+    };
+    policyComponent.bindClassBehaviour(NodeServicePolicies.OnMoveNodePolicy.QNAME, ContentModel.TYPE_BASE,
+        new JavaBehaviour(this, "onMoveNode", Behaviour.NotificationFrequency.EVERY_EVENT));
+    policyComponent.bindClassBehaviour(NodeServicePolicies.OnUpdatePropertiesPolicy.QNAME, ContentModel.TYPE_BASE,
+        new JavaBehaviour(this, "onUpdateProperties", Behaviour.NotificationFrequency.EVERY_EVENT));
+  }
+
+  /**
+   * @return the primary path and site name of the node, the same as resolved by {@link NodeService#getPath}
+   */
+  public NodePath getPath(NodeRef nodeRef) {
+    ChildAssociationRef primaryParent = nodeService.getPrimaryParent(nodeRef);
+    if (primaryParent.getParentRef() == null) {
+      return resolve(nodeService.getPath(nodeRef));
+    }
+    return getParentPath(primaryParent.getParentRef()).child(new Path.ChildAssocElement(primaryParent), namespaceService);
+  }
+
+  private NodePath getParentPath(NodeRef parentRef) {
+    long now = System.currentTimeMillis();
+    synchronized (paths) {
+      CachedPath cached = paths.get(parentRef);
+      if (cached != null && (ttl <= 0 || now - cached.time <= ttl)) {
+        metrics.cacheHit("cache.path");
+        return cached.path;
+      }
+    }
+    metrics.cacheMiss("cache.path");
+    NodePath parentPath = resolve(nodeService.getPath(parentRef));
+    synchronized (paths) {
+      paths.put(parentRef, new CachedPath(parentPath, now));
+    }
+    return parentPath;
+  }
+
+  private NodePath resolve(Path path) {
+    //Scan the Path to find the Alfresco Site name
+    String siteName = null;
+    boolean sites = false;
+    Iterator<Path.Element> pathIter = path.iterator();
+    while (pathIter.hasNext() && siteName == null) {
+      String name = getLocalName(pathIter.next());
+      if (name.equals(SITES)) {
+        sites = true;
+      } else if (sites) {
+        siteName = name;
+      }
+    }
+    return new NodePath(path.toPrefixString(namespaceService), siteName, sites && siteName == null);
+  }
+
+  private static String getLocalName(Path.Element element) {
+    //Stripping out namespace from PathElement
+    String name = element.getElementString();
+    int firstChar = name.lastIndexOf('}');
+    return firstChar > 0 ? name.substring(firstChar + 1) : name;
+  }
+
+  public void clear() {
+    synchronized (paths) {
+      paths.clear();
+    }
+  }
+
+  /**
+   * Evicts the paths starting with the given path: the one of the container itself, and those of its descendants
+   */
+  public void evict(String path) {
+    String descendants = path + ("/".equals(path) ? "" : "/");
+    int evicted = 0;
+    synchronized (paths) {
+      Iterator<CachedPath> iterator = paths.values().iterator();
+      while (iterator.hasNext()) {
+        String cachedPath = iterator.next().path.getPath();
+        if (cachedPath.equals(path) || cachedPath.startsWith(descendants)) {
+          iterator.remove();
+          evicted++;
+        }
+      }
+    }
+    logger.debug(String.format("Evicted %d node paths under %s", evicted, path));
+  }
+
+  public void onMoveNode(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef) {
+    NodeRef nodeRef = newChildAssocRef.getChildRef();
+    if (isContainer(nodeRef) && oldChildAssocRef.getParentRef() != null) {
+      //The old path is the one of the old parent (which has not moved) followed by the old association
+      pathChanged(getParentPath(oldChildAssocRef.getParentRef())
+          .child(new Path.ChildAssocElement(oldChildAssocRef), namespaceService).getPath());
+    }
+  }
+
+  public void onUpdateProperties(NodeRef nodeRef, Map<QName, Serializable> before, Map<QName, Serializable> after) {
+    Serializable nameBefore = before.get(ContentModel.PROP_NAME);
+    Serializable nameAfter = after.get(ContentModel.PROP_NAME);
+    if (nameBefore != null && !nameBefore.equals(nameAfter) && isContainer(nodeRef)) {
+      //Paths are made of association names, a rename changing them moves the node, see onMoveNode
+      pathChanged(getPath(nodeRef).getPath());
+    }
+  }
+
+  /**
+   * Moving or renaming a document affects its own path only, which is never cached
+   */
+  private boolean isContainer(NodeRef nodeRef) {
+    return !dictionaryService.isSubClass(nodeService.getType(nodeRef), ContentModel.TYPE_CONTENT);
+  }
+
+  private void pathChanged(String oldPath) {
+    evict(oldPath);
+    //Evicting again after commit, as concurrent lookups may cache the old paths in the meantime
+    Set<String> changedPaths = AlfrescoTransactionSupport.getResource(KEY_CHANGED_PATHS);
+    if (changedPaths == null) {
+      changedPaths = new HashSet<String>();
+      AlfrescoTransactionSupport.bindResource(KEY_CHANGED_PATHS, changedPaths);
+      AlfrescoTransactionSupport.bindListener(this);
+    }
+    changedPaths.add(oldPath);
+  }
+
+  @Override
+  public void afterCommit() {
+    Set<String> changedPaths = AlfrescoTransactionSupport.getResource(KEY_CHANGED_PATHS);
+    if (changedPaths != null) {
+      for (String changedPath : changedPaths) {
+        evict(changedPath);
+      }
+    }
+  }
+
+  private NodeService nodeService;
+  private NamespaceService namespaceService;
+  private DictionaryService dictionaryService;
+  private PolicyComponent policyComponent;
+  private int capacity = 50000;
+  private long ttl = 300000;
+  private IndexerMetrics metrics;
+
+  public void setNodeService(NodeService nodeService) {
+    this.nodeService = nodeService;
+  }
+
+  public void setNamespaceService(NamespaceService namespaceService) {
+    this.namespaceService = namespaceService;
+  }
+
+  public void setDictionaryService(DictionaryService dictionaryService) {
+    this.dictionaryService = dictionaryService;
+  }
+
+  public void setPolicyComponent(PolicyComponent policyComponent) {
+    this.policyComponent = policyComponent;
+  }
+
+  public void setCapacity(int capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * @param ttl how long (in milliseconds) a path is cached, 0 (or less) for as long as it is not cleared
+   */
+  public void setTtl(long ttl) {
+    this.ttl = ttl;
+  }
+
+  public void setMetrics(IndexerMetrics metrics) {
+    this.metrics = metrics;
+  }
+}
@@ -1,21 +1,36 @@
 package org.alfresco.consulting.indexer.dao;
 
+import org.alfresco.consulting.indexer.cache.DictionaryMetadataCache;
 import org.alfresco.consulting.indexer.entities.NodeBatchLoadEntity;
+import org.alfresco.consulting.indexer.entities.NodeCountEntity;
 import org.alfresco.consulting.indexer.entities.NodeEntity;
+import org.alfresco.consulting.indexer.metrics.IndexerMetrics;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.util.Pair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.ibatis.session.RowBounds;
 import org.mybatis.spring.SqlSessionTemplate;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class IndexingDaoImpl {
 
   private static final String SELECT_NODES_BY_ACLS = "alfresco.index.select_NodeIndexesByAclChangesetId";
   private static final String SELECT_NODES_BY_TXNS = "alfresco.index.select_NodeIndexesByTransactionId";
+  private static final String SELECT_MAX_TXN_ID = "alfresco.index.status.select_MaxTransactionId";
+  private static final String SELECT_MAX_ACL_CHANGESET_ID = "alfresco.index.status.select_MaxAclChangesetId";
+  private static final String SELECT_NODE_COUNTS = "alfresco.index.status.select_NodeCounts";
 
   protected static final Log logger = LogFactory.getLog(IndexingDaoImpl.class);
 
@@ -27,15 +42,31 @@ public class IndexingDaoImpl {
 
     logger.debug("[getNodesByAclChangesetId] On Store "+storeRef.getProtocol()+"://"+storeRef.getIdentifier());
 
-    NodeBatchLoadEntity nodeLoadEntity = new NodeBatchLoadEntity();
-    nodeLoadEntity.setStoreId(store.getFirst());
-    nodeLoadEntity.setStoreProtocol(storeRef.getProtocol());
-    nodeLoadEntity.setStoreIdentifier(storeRef.getIdentifier());
+    NodeBatchLoadEntity nodeLoadEntity = createNodeLoadEntity(store);
+    if (nodeLoadEntity == null) {
+      return new ArrayList<NodeEntity>();
+    }
     nodeLoadEntity.setMinId(lastAclChangesetId);
     nodeLoadEntity.setMaxId(lastAclChangesetId+maxResults);
-    nodeLoadEntity.setAllowedTypes(this.allowedTypes);
 
-    return (List<NodeEntity>) template.selectList(SELECT_NODES_BY_ACLS, nodeLoadEntity, new RowBounds(0, Integer.MAX_VALUE));
+    List<NodeEntity> nodes = selectNodes(SELECT_NODES_BY_ACLS, nodeLoadEntity);
+    if (nodes.size() < maxRows) {
+      return nodes;
+    }
+
+    //The page has been truncated by the row limit; the last ACL changeset may be incomplete
+    Long lastId = nodes.get(nodes.size()-1).getAclChangesetId();
+    while (!nodes.isEmpty() && nodes.get(nodes.size()-1).getAclChangesetId().equals(lastId)) {
+      nodes.remove(nodes.size()-1);
+    }
+    if (nodes.isEmpty()) {
+      logger.debug("[getNodesByAclChangesetId] ACL changeset "+lastId+" exceeds "+maxRows+" rows, loading it as a whole");
+      nodeLoadEntity.setMinId(lastId-1);
+      nodeLoadEntity.setMaxId(lastId);
+      nodeLoadEntity.setMaxRows(null);
+      return select(SELECT_NODES_BY_ACLS, nodeLoadEntity, new RowBounds(0, Integer.MAX_VALUE));
+    }
+    return nodes;
   }
 
   public List<NodeEntity> getNodesByTransactionId(Pair<Long, StoreRef> store, Long lastTransactionId, int maxResults) {
@@ -46,23 +77,261 @@ public class IndexingDaoImpl {
 
     logger.debug("[getNodesByTransactionId] On Store "+storeRef.getProtocol()+"://"+storeRef.getIdentifier());
 
+    NodeBatchLoadEntity nodeLoadEntity = createNodeLoadEntity(store);
+    if (nodeLoadEntity == null) {
+      return new ArrayList<NodeEntity>();
+    }
+    nodeLoadEntity.setMinId(lastTransactionId);
+    nodeLoadEntity.setMaxId(lastTransactionId+maxResults);
+
+    List<NodeEntity> nodes = selectNodes(SELECT_NODES_BY_TXNS, nodeLoadEntity);
+    if (nodes.size() < maxRows) {
+      return nodes;
+    }
+
+    //The page has been truncated by the row limit; the last transaction may be incomplete
+    Long lastId = nodes.get(nodes.size()-1).getTransactionId();
+    while (!nodes.isEmpty() && nodes.get(nodes.size()-1).getTransactionId().equals(lastId)) {
+      nodes.remove(nodes.size()-1);
+    }
+    if (nodes.isEmpty()) {
+      logger.debug("[getNodesByTransactionId] Transaction "+lastId+" exceeds "+maxRows+" rows, loading it as a whole");
+      nodeLoadEntity.setMinId(lastId-1);
+      nodeLoadEntity.setMaxId(lastId);
+      nodeLoadEntity.setMaxRows(null);
+      return select(SELECT_NODES_BY_TXNS, nodeLoadEntity, new RowBounds(0, Integer.MAX_VALUE));
+    }
+    return nodes;
+  }
+
+  public Long getMaxTransactionId() {
+    Long maxId = (Long) template.selectOne(SELECT_MAX_TXN_ID);
+    return (maxId == null ? 0L : maxId);
+  }
+
+  public Long getMaxAclChangesetId() {
+    Long maxId = (Long) template.selectOne(SELECT_MAX_ACL_CHANGESET_ID);
+    return (maxId == null ? 0L : maxId);
+  }
+
+  /**
+   * Counts nodes of allowed types, per store and type; counting requires a scan of alf_node, therefore
+   * results are cached for nodeCountsTtl milliseconds. Once they expire, a single thread counts again while
+   * the others keep getting the previous counts
+   */
+  public List<NodeCountEntity> getNodeCounts() {
+    List<NodeCountEntity> counts = this.nodeCounts;
+    if (counts != null && System.currentTimeMillis() - nodeCountsTime < nodeCountsTtl) {
+      return counts;
+    }
+    if (counts == null) {
+      nodeCountsLock.lock();
+    } else if (!nodeCountsLock.tryLock()) {
+      return counts;
+    }
+    try {
+      counts = this.nodeCounts;
+      if (counts != null && System.currentTimeMillis() - nodeCountsTime < nodeCountsTtl) {
+        return counts;
+      }
+      return countNodes();
+    } finally {
+      nodeCountsLock.unlock();
+    }
+  }
+
+  private List<NodeCountEntity> countNodes() {
+    NodeBatchLoadEntity nodeLoadEntity = new NodeBatchLoadEntity();
+    if (this.allowedTypes != null) {
+      Set<Long> allowedTypeIds = getAllowedTypeIds();
+      if (allowedTypeIds.isEmpty()) {
+        return new ArrayList<NodeCountEntity>();
+      }
+      nodeLoadEntity.setAllowedTypeIds(allowedTypeIds);
+    }
+    List<NodeCountEntity> counts = select(SELECT_NODE_COUNTS, nodeLoadEntity, RowBounds.DEFAULT);
+    this.nodeCounts = counts;
+    this.nodeCountsTime = System.currentTimeMillis();
+    return counts;
+  }
+
+  /**
+   * Returns null if none of the allowed types exists in the repository yet, hence no node can match
+   */
+  private NodeBatchLoadEntity createNodeLoadEntity(Pair<Long, StoreRef> store) {
+    StoreRef storeRef = store.getSecond();
     NodeBatchLoadEntity nodeLoadEntity = new NodeBatchLoadEntity();
     nodeLoadEntity.setStoreId(store.getFirst());
     nodeLoadEntity.setStoreProtocol(storeRef.getProtocol());
     nodeLoadEntity.setStoreIdentifier(storeRef.getIdentifier());
-    nodeLoadEntity.setMinId(lastTransactionId);
-    nodeLoadEntity.setMaxId(lastTransactionId+maxResults);
-    nodeLoadEntity.setAllowedTypes(this.allowedTypes);
+    nodeLoadEntity.setMaxRows(maxRows);
+    if (this.allowedTypes != null) {
+      Set<Long> allowedTypeIds = getAllowedTypeIds();
+      if (allowedTypeIds.isEmpty()) {
+        return null;
+      }
+      nodeLoadEntity.setAllowedTypeIds(allowedTypeIds);
+    }
+    if (this.includeContentData) {
+      nodeLoadEntity.setContentQNameId(getContentQNameId());
+    }
+
+    //Exclusions are only pushed into the query when at least one of their ids is known
+    Set<Long> excludedTypeIds = getExcludedTypeIds();
+    if (!excludedTypeIds.isEmpty()) {
+      nodeLoadEntity.setExcludedTypeIds(excludedTypeIds);
+    }
+    Set<Long> excludedAspectIds = getExcludedAspectIds();
+    if (!excludedAspectIds.isEmpty()) {
+      nodeLoadEntity.setExcludedAspectIds(excludedAspectIds);
+    }
+    Set<Long> excludedParentIds = getExcludedParentIds(storeRef);
+    if (!excludedParentIds.isEmpty()) {
+      nodeLoadEntity.setExcludedParentIds(excludedParentIds);
+    }
+    return nodeLoadEntity;
+  }
+
+  private List<NodeEntity> selectNodes(String statement, NodeBatchLoadEntity nodeLoadEntity) {
+    //Dialects without native row limiting rely on RowBounds to stop reading the result set
+    List<NodeEntity> nodes = select(statement, nodeLoadEntity, new RowBounds(0, maxRows));
+    return new ArrayList<NodeEntity>(nodes);
+  }
+
+  /**
+   * Runs the statement, timed (along with the rows it returned) as sql.{statement id}
+   */
+  @SuppressWarnings("unchecked")
+  private <T> List<T> select(String statement, Object parameter, RowBounds rowBounds) {
+    long start = System.nanoTime();
+    List<T> rows = (List<T>) template.selectList(statement, parameter, rowBounds);
+    metrics.time("sql." + statement.substring(statement.lastIndexOf('.') + 1), start, rows.size());
+    return rows;
+  }
+
+  /**
+   * Resolves allowed types into alf_qname ids, so that SqlMaps can filter on node.type_qname_id
+   * instead of concatenating namespace and local name for every row
+   */
+  private Set<Long> getAllowedTypeIds() {
+    return dictionaryMetadataCache.getQNameIds(allowedTypes);
+  }
+
+  /**
+   * Resolves excluded types into alf_qname ids
+   */
+  private Set<Long> getExcludedTypeIds() {
+    return dictionaryMetadataCache.getQNameIds(excludedTypes);
+  }
+
+  /**
+   * Resolves excluded aspects (such as cm:workingcopy, sys:hidden or renditions) into alf_qname ids
+   */
+  private Set<Long> getExcludedAspectIds() {
+    return dictionaryMetadataCache.getQNameIds(excludedAspects);
+  }
+
+  /**
+   * Resolves the excluded parent paths (XPaths such as /app:company_home/app:dictionary) of the given
+   * store into node ids; paths are resolved on every query (a few cached child lookups), so that parents
+   * which are created, moved or recreated are excluded right away
+   */
+  private Set<Long> getExcludedParentIds(StoreRef storeRef) {
+    Set<Long> parentIds = new HashSet<Long>();
+    for (NodeRef nodeRef : getExcludedParents(storeRef)) {
+      Pair<Long, NodeRef> nodePair = nodeDao.getNodePair(nodeRef);
+      if (nodePair != null) {
+        parentIds.add(nodePair.getFirst());
+      }
+    }
+    return parentIds;
+  }
+
+  /**
+   * Resolves the excluded parent paths of the given store into nodeRefs; queries only flag their direct
+   * children, deeper descendants are to be found by walking up their ancestors
+   */
+  public Set<NodeRef> getExcludedParents(StoreRef storeRef) {
+    Set<NodeRef> parents = new HashSet<NodeRef>();
+    if (excludedParents.isEmpty()) {
+      return parents;
+    }
+    NodeRef rootNodeRef = nodeService.getRootNode(storeRef);
+    for (String excludedParent : excludedParents) {
+      if (excludedParent.trim().isEmpty()) {
+        continue;
+      }
+      parents.addAll(searchService.selectNodes(rootNodeRef, excludedParent.trim(), null, namespaceService, false));
+    }
+    return parents;
+  }
 
-    return (List<NodeEntity>) template.selectList(SELECT_NODES_BY_TXNS, nodeLoadEntity, new RowBounds(0, Integer.MAX_VALUE));
+  /**
+   * Resolves cm:content into its alf_qname id, used to join the content data of each node; null (no join)
+   * until the property is stored in alf_qname
+   */
+  private Long getContentQNameId() {
+    return dictionaryMetadataCache.getQNameId(ContentModel.PROP_CONTENT);
   }
 
   private SqlSessionTemplate template;
+  private DictionaryMetadataCache dictionaryMetadataCache;
+  private IndexerMetrics metrics;
   private Set<String> allowedTypes;
+  private Set<String> excludedTypes = new HashSet<String>();
+  private Set<String> excludedAspects = new HashSet<String>();
+  private Set<String> excludedParents = new HashSet<String>();
+  private NodeService nodeService;
+  private NodeDAO nodeDao;
+  private SearchService searchService;
+  private NamespaceService namespaceService;
+  private boolean includeContentData = true;
+  private int maxRows = 5000;
+  private volatile List<NodeCountEntity> nodeCounts;
+  private volatile long nodeCountsTime;
+  private final ReentrantLock nodeCountsLock = new ReentrantLock();
+  private long nodeCountsTtl = 600000;
+
   public void setSqlSessionTemplate(SqlSessionTemplate sqlSessionTemplate) {
     this.template = sqlSessionTemplate;
   }
+  public void setDictionaryMetadataCache(DictionaryMetadataCache dictionaryMetadataCache) {
+    this.dictionaryMetadataCache = dictionaryMetadataCache;
+  }
+  public void setMetrics(IndexerMetrics metrics) {
+    this.metrics = metrics;
+  }
   public void setAllowedTypes(Set<String> allowedTypes) {
     this.allowedTypes = allowedTypes;
   }
+  public void setExcludedTypes(Set<String> excludedTypes) {
+    this.excludedTypes = excludedTypes;
+  }
+  public void setExcludedAspects(Set<String> excludedAspects) {
+    this.excludedAspects = excludedAspects;
+  }
+  public void setExcludedParents(Set<String> excludedParents) {
+    this.excludedParents = excludedParents;
+  }
+  public void setNodeService(NodeService nodeService) {
+    this.nodeService = nodeService;
+  }
+  public void setNodeDao(NodeDAO nodeDao) {
+    this.nodeDao = nodeDao;
+  }
+  public void setSearchService(SearchService searchService) {
+    this.searchService = searchService;
+  }
+  public void setNamespaceService(NamespaceService namespaceService) {
+    this.namespaceService = namespaceService;
+  }
+  public void setIncludeContentData(boolean includeContentData) {
+    this.includeContentData = includeContentData;
+  }
+  public void setMaxRows(int maxRows) {
+    this.maxRows = maxRows;
+  }
+  public void setNodeCountsTtl(long nodeCountsTtl) {
+    this.nodeCountsTtl = nodeCountsTtl;
+  }
 }
@@ -1,19 +1,56 @@
 package org.alfresco.consulting.indexer.entities;
 
-import java.util.List;
 import java.util.Set;
 
 public class NodeBatchLoadEntity extends org.alfresco.repo.domain.node.ibatis.NodeBatchLoadEntity {
   private Long minId;
   private Long maxId;
-  private Set<String> allowedTypes;
+  private Set<Long> allowedTypeIds;
+  private Set<Long> excludedTypeIds;
+  private Set<Long> excludedAspectIds;
+  private Set<Long> excludedParentIds;
+  private Integer maxRows;
+  private Long contentQNameId;
 
   //These input values will be set on all returned NodeEntity objects returned by iBatis mappers
   private String storeProtocol;
   private String storeIdentifier;
 
-  public Set<String> getAllowedTypes() {
-    return allowedTypes;
+  public Set<Long> getAllowedTypeIds() {
+    return allowedTypeIds;
+  }
+
+  public void setAllowedTypeIds(Set<Long> allowedTypeIds) {
+    this.allowedTypeIds = allowedTypeIds;
+  }
+
+  public Set<Long> getExcludedTypeIds() {
+    return excludedTypeIds;
+  }
+
+  public void setExcludedTypeIds(Set<Long> excludedTypeIds) {
+    this.excludedTypeIds = excludedTypeIds;
+  }
+
+  public Set<Long> getExcludedAspectIds() {
+    return excludedAspectIds;
+  }
+
+  public void setExcludedAspectIds(Set<Long> excludedAspectIds) {
+    this.excludedAspectIds = excludedAspectIds;
+  }
+
+  public Set<Long> getExcludedParentIds() {
+    return excludedParentIds;
+  }
+
+  public void setExcludedParentIds(Set<Long> excludedParentIds) {
+    this.excludedParentIds = excludedParentIds;
+  }
+
+  //Excluded parents are matched on primary associations only
+  public Boolean getIsPrimary() {
+    return Boolean.TRUE;
   }
 
   public Long getMinId() {
@@ -32,8 +69,20 @@ public class NodeBatchLoadEntity extends org.alfresco.repo.domain.node.ibatis.No
     this.maxId = maxId;
   }
 
-  public void setAllowedTypes(Set<String> allowedTypes) {
-    this.allowedTypes = allowedTypes;
+  public Integer getMaxRows() {
+    return maxRows;
+  }
+
+  public void setMaxRows(Integer maxRows) {
+    this.maxRows = maxRows;
+  }
+
+  public Long getContentQNameId() {
+    return contentQNameId;
+  }
+
+  public void setContentQNameId(Long contentQNameId) {
+    this.contentQNameId = contentQNameId;
   }
 
   public String getStoreProtocol() {
@@ -0,0 +1,49 @@
+package org.alfresco.consulting.indexer.entities;
+
+public class NodeCountEntity {
+  private String storeProtocol;
+  private String storeIdentifier;
+  private String typeName;
+  private String typeNamespace;
+  private Long count;
+
+  public String getStoreProtocol() {
+    return storeProtocol;
+  }
+
+  public void setStoreProtocol(String storeProtocol) {
+    this.storeProtocol = storeProtocol;
+  }
+
+  public String getStoreIdentifier() {
+    return storeIdentifier;
+  }
+
+  public void setStoreIdentifier(String storeIdentifier) {
+    this.storeIdentifier = storeIdentifier;
+  }
+
+  public String getTypeName() {
+    return typeName;
+  }
+
+  public void setTypeName(String typeName) {
+    this.typeName = typeName;
+  }
+
+  public String getTypeNamespace() {
+    return typeNamespace;
+  }
+
+  public void setTypeNamespace(String typeNamespace) {
+    this.typeNamespace = typeNamespace;
+  }
+
+  public Long getCount() {
+    return count;
+  }
+
+  public void setCount(Long count) {
+    this.count = count;
+  }
+}
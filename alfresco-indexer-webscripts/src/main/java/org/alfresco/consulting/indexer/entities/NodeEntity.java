@@ -1,10 +1,16 @@
 package org.alfresco.consulting.indexer.entities;
 
+import org.alfresco.repo.domain.qname.QNameDAO;
+
 public class NodeEntity extends org.alfresco.repo.domain.node.NodeEntity {
-  private String typeName;
-  private String typeNamespace;
   private Long aclChangesetId;
   private Long transactionId;
+  //Content data of the cm:content property, only loaded when IndexingDaoImpl.includeContentData is set
+  private String contentUrl;
+  private Long contentSize;
+  private String contentMimetype;
+  //Set when the node has an excluded aspect or an excluded primary parent (see IndexingDaoImpl), or is out of scope
+  private boolean excluded;
 
   @Override
   public int hashCode()
@@ -25,22 +31,6 @@ public class NodeEntity extends org.alfresco.repo.domain.node.NodeEntity {
     return this.getUuid().equals(that.getUuid()) && this.getVersion().equals(that.getVersion());
   }
 
-  public String getTypeName() {
-    return typeName;
-  }
-
-  public void setTypeName(String typeName) {
-    this.typeName = typeName;
-  }
-
-  public String getTypeNamespace() {
-    return typeNamespace;
-  }
-
-  public void setTypeNamespace(String typeNamespace) {
-    this.typeNamespace = typeNamespace;
-  }
-
   public Long getAclChangesetId() {
     return aclChangesetId;
   }
@@ -56,4 +46,43 @@ public class NodeEntity extends org.alfresco.repo.domain.node.NodeEntity {
   public void setTransactionId(Long transactionId) {
     this.transactionId = transactionId;
   }
+
+  public String getContentUrl() {
+    return contentUrl;
+  }
+
+  public void setContentUrl(String contentUrl) {
+    this.contentUrl = contentUrl;
+  }
+
+  public Long getContentSize() {
+    return contentSize;
+  }
+
+  public void setContentSize(Long contentSize) {
+    this.contentSize = contentSize;
+  }
+
+  public String getContentMimetype() {
+    return contentMimetype;
+  }
+
+  public void setContentMimetype(String contentMimetype) {
+    this.contentMimetype = contentMimetype;
+  }
+
+  public boolean isExcluded() {
+    return excluded;
+  }
+
+  public void setExcluded(boolean excluded) {
+    this.excluded = excluded;
+  }
+
+  /**
+   * A node that has been deleted, or that is now excluded from the changes, must be removed from the index
+   */
+  public boolean isRemoved(QNameDAO qnameDao) {
+    return excluded || getDeleted(qnameDao);
+  }
 }
@@ -0,0 +1,37 @@
+package org.alfresco.consulting.indexer.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hits and misses of a cache
+ */
+public class CacheStats implements CacheStatsMBean {
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public void hit() {
+    hits.incrementAndGet();
+  }
+
+  public void miss() {
+    misses.incrementAndGet();
+  }
+
+  @Override
+  public long getHits() {
+    return hits.get();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public double getHitRatio() {
+    long hits = this.hits.get();
+    long lookups = hits + misses.get();
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+}
@@ -0,0 +1,16 @@
+package org.alfresco.consulting.indexer.metrics;
+
+/**
+ * JMX view of {@link CacheStats}
+ */
+public interface CacheStatsMBean {
+
+  long getHits();
+
+  long getMisses();
+
+  /**
+   * @return hits over lookups, 0 if there has been no lookup yet
+   */
+  double getHitRatio();
+}
@@ -0,0 +1,173 @@
+package org.alfresco.consulting.indexer.metrics;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Timers of the indexer endpoints (endpoint.changes, endpoint.details, ..) and of their stages (sql.*, acl.*,
+ * node.*, render), and hit ratios of the indexer caches (cache.*).
+ *
+ * Each timer and cache is registered as an MBean (Alfresco:type=Indexer,category=timer|cache,name=..) once it is
+ * first used, and unregistered when the module context is closed; the /indexer/metrics WebScript renders out
+ * the same data as JSON. Requests sent with a request id are also traced stage by stage, see {@link RequestTrace}
+ */
+public class IndexerMetrics {
+
+  protected static final Log logger = LogFactory.getLog(IndexerMetrics.class);
+
+  private static final String DOMAIN = "Alfresco";
+
+  private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+  private final ConcurrentMap<String, CacheStats> caches = new ConcurrentHashMap<String, CacheStats>();
+
+  /**
+   * Records an operation started at startNanos (System.nanoTime), which returned no row
+   */
+  public void time(String name, long startNanos) {
+    time(name, startNanos, 0);
+  }
+
+  /**
+   * Records an operation started at startNanos (System.nanoTime), which returned the given rows
+   */
+  public void time(String name, long startNanos, long rows) {
+    long nanos = System.nanoTime() - startNanos;
+    getTimer(name).update(nanos, rows);
+    RequestTrace trace = RequestTrace.get();
+    if (trace != null) {
+      trace.stage(name, nanos, rows);
+    }
+  }
+
+  /**
+   * Starts tracing the request served by the current thread, if the client has sent a request id
+   * @return the trace, null if the request is not traced
+   */
+  public RequestTrace startTrace(String requestId) {
+    if (requestId == null || requestId.trim().isEmpty()) {
+      return null;
+    }
+    return RequestTrace.start(requestId.trim());
+  }
+
+  /**
+   * Stops tracing the request served by the current thread (if traced), logging it if slow
+   */
+  public void endTrace() {
+    RequestTrace trace = RequestTrace.get();
+    if (trace != null) {
+      trace.end(slowRequestThreshold);
+    }
+  }
+
+  public void cacheHit(String name) {
+    getCacheStats(name).hit();
+  }
+
+  public void cacheMiss(String name) {
+    getCacheStats(name).miss();
+  }
+
+  public Timer getTimer(String name) {
+    Timer timer = timers.get(name);
+    if (timer == null) {
+      Timer newTimer = new Timer();
+      timer = timers.putIfAbsent(name, newTimer);
+      if (timer == null) {
+        timer = newTimer;
+        register("timer", name, timer, TimerMBean.class);
+      }
+    }
+    return timer;
+  }
+
+  public CacheStats getCacheStats(String name) {
+    CacheStats cacheStats = caches.get(name);
+    if (cacheStats == null) {
+      CacheStats newCacheStats = new CacheStats();
+      cacheStats = caches.putIfAbsent(name, newCacheStats);
+      if (cacheStats == null) {
+        cacheStats = newCacheStats;
+        register("cache", name, cacheStats, CacheStatsMBean.class);
+      }
+    }
+    return cacheStats;
+  }
+
+  /**
+   * @return the timers, sorted by name
+   */
+  public Map<String, Timer> getTimers() {
+    return new TreeMap<String, Timer>(timers);
+  }
+
+  /**
+   * @return the cache statistics, sorted by name
+   */
+  public Map<String, CacheStats> getCaches() {
+    return new TreeMap<String, CacheStats>(caches);
+  }
+
+  public void destroy() {
+    if (mbeanServer == null) {
+      return;
+    }
+    for (String name : timers.keySet()) {
+      unregister("timer", name);
+    }
+    for (String name : caches.keySet()) {
+      unregister("cache", name);
+    }
+  }
+
+  private <T> void register(String category, String name, T mbean, Class<T> mbeanInterface) {
+    if (mbeanServer == null) {
+      return;
+    }
+    try {
+      ObjectName objectName = getObjectName(category, name);
+      if (!mbeanServer.isRegistered(objectName)) {
+        mbeanServer.registerMBean(new StandardMBean(mbean, mbeanInterface), objectName);
+      }
+    } catch (Exception e) {
+      logger.warn("Cannot register the " + name + " MBean", e);
+    }
+  }
+
+  private void unregister(String category, String name) {
+    try {
+      ObjectName objectName = getObjectName(category, name);
+      if (mbeanServer.isRegistered(objectName)) {
+        mbeanServer.unregisterMBean(objectName);
+      }
+    } catch (Exception e) {
+      logger.warn("Cannot unregister the " + name + " MBean", e);
+    }
+  }
+
+  private ObjectName getObjectName(String category, String name) throws Exception {
+    return new ObjectName(DOMAIN + ":type=Indexer,category=" + category + ",name=" + ObjectName.quote(name));
+  }
+
+  private MBeanServer mbeanServer;
+  private long slowRequestThreshold = 5000;
+
+  public void setMbeanServer(MBeanServer mbeanServer) {
+    this.mbeanServer = mbeanServer;
+  }
+
+  /**
+   * Sets how long (in milliseconds) a traced request takes before it is logged at info level; negative to never
+   */
+  public void setSlowRequestThreshold(long slowRequestThreshold) {
+    this.slowRequestThreshold = slowRequestThreshold;
+  }
+}
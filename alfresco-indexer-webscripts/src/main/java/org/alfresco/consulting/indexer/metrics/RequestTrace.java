@@ -0,0 +1,85 @@
+package org.alfresco.consulting.indexer.metrics;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The stages of an indexer request, traced under the request id sent by the indexer client (X-Request-Id
+ * header): each stage timed by {@link IndexerMetrics} on the serving thread is logged (debug) under that id,
+ * and summed up per stage to be sent back in the Server-Timing response header.
+ * Traces are bound to the serving thread, from {@link IndexerMetrics#startTrace} to {@link IndexerMetrics#endTrace}
+ */
+public class RequestTrace {
+
+  protected static final Log logger = LogFactory.getLog(RequestTrace.class);
+
+  public static final String REQUEST_ID_HEADER = "X-Request-Id";
+  public static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+  private static final ThreadLocal<RequestTrace> current = new ThreadLocal<RequestTrace>();
+
+  private final String requestId;
+  private final long startNanos = System.nanoTime();
+  private final Map<String, Long> stages = new LinkedHashMap<String, Long>();
+
+  private RequestTrace(String requestId) {
+    this.requestId = requestId;
+  }
+
+  static RequestTrace start(String requestId) {
+    RequestTrace trace = new RequestTrace(requestId);
+    current.set(trace);
+    return trace;
+  }
+
+  /**
+   * @return the trace of the request served by the current thread, null if it is not traced
+   */
+  public static RequestTrace get() {
+    return current.get();
+  }
+
+  /**
+   * Unbinds the trace from the current thread, logging the request at info level if it took longer than
+   * slowThreshold milliseconds (at debug level otherwise)
+   */
+  void end(long slowThreshold) {
+    current.remove();
+    long elapsed = (System.nanoTime() - startNanos) / 1000000;
+    if (slowThreshold >= 0 && elapsed > slowThreshold) {
+      logger.info(String.format("Slow request %s: %d ms (%s)", requestId, elapsed, getServerTiming()));
+    } else if (logger.isDebugEnabled()) {
+      logger.debug(String.format("Request %s: %d ms (%s)", requestId, elapsed, getServerTiming()));
+    }
+  }
+
+  void stage(String name, long nanos, long rows) {
+    Long total = stages.get(name);
+    stages.put(name, total == null ? nanos : total + nanos);
+    if (logger.isDebugEnabled()) {
+      logger.debug(String.format(Locale.ENGLISH, "Request %s: %s took %.1f ms, %d rows", requestId, name, nanos / 1e6, rows));
+    }
+  }
+
+  public String getRequestId() {
+    return requestId;
+  }
+
+  /**
+   * @return the stages timed so far, as a Server-Timing header value (i.e. sql.selectNodes;dur=12.5, render.changes;dur=3.1)
+   */
+  public String getServerTiming() {
+    StringBuilder serverTiming = new StringBuilder();
+    for (Map.Entry<String, Long> stage : stages.entrySet()) {
+      if (serverTiming.length() > 0) {
+        serverTiming.append(", ");
+      }
+      serverTiming.append(String.format(Locale.ENGLISH, "%s;dur=%.1f", stage.getKey(), stage.getValue() / 1e6));
+    }
+    return serverTiming.toString();
+  }
+}
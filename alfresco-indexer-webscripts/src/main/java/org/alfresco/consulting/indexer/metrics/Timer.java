@@ -0,0 +1,101 @@
+package org.alfresco.consulting.indexer.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count, rate and latency of an operation (an endpoint or a stage of it), along with the rows it returned.
+ * Percentiles are computed over the most recent samples (up to SAMPLES of them), so that they follow
+ * the current behaviour rather than the one since startup
+ */
+public class Timer implements TimerMBean {
+
+  private static final int SAMPLES = 1024;
+  private static final double NANOS_PER_MILLI = 1000000d;
+
+  private final long startTime = System.currentTimeMillis();
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+  private final AtomicLong rows = new AtomicLong();
+  private final long[] samples = new long[SAMPLES];
+  //Position of the next sample, wrapping around once all SAMPLES have been taken
+  private int nextSample = 0;
+  private boolean samplesFull = false;
+
+  /**
+   * @param nanos the duration of the operation, in nanoseconds
+   * @param rows  the rows (or items) returned by the operation
+   */
+  public void update(long nanos, long rows) {
+    count.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+    this.rows.addAndGet(rows);
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+    synchronized (samples) {
+      samples[nextSample] = nanos;
+      nextSample = (nextSample + 1) % SAMPLES;
+      if (nextSample == 0) {
+        samplesFull = true;
+      }
+    }
+  }
+
+  @Override
+  public long getCount() {
+    return count.get();
+  }
+
+  @Override
+  public double getRate() {
+    long elapsed = System.currentTimeMillis() - startTime;
+    return elapsed <= 0 ? 0 : count.get() * 1000d / elapsed;
+  }
+
+  @Override
+  public double getMean() {
+    long count = this.count.get();
+    return count == 0 ? 0 : totalNanos.get() / NANOS_PER_MILLI / count;
+  }
+
+  @Override
+  public double getMax() {
+    return maxNanos.get() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double get50thPercentile() {
+    return getPercentile(0.5);
+  }
+
+  @Override
+  public double get95thPercentile() {
+    return getPercentile(0.95);
+  }
+
+  @Override
+  public double get99thPercentile() {
+    return getPercentile(0.99);
+  }
+
+  @Override
+  public long getRows() {
+    return rows.get();
+  }
+
+  private double getPercentile(double quantile) {
+    long[] sorted;
+    synchronized (samples) {
+      sorted = Arrays.copyOf(samples, samplesFull ? SAMPLES : nextSample);
+    }
+    if (sorted.length == 0) {
+      return 0;
+    }
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(quantile * sorted.length) - 1;
+    return sorted[Math.max(0, index)] / NANOS_PER_MILLI;
+  }
+}
@@ -0,0 +1,29 @@
+package org.alfresco.consulting.indexer.metrics;
+
+/**
+ * JMX view of a {@link Timer}; latencies are in milliseconds
+ */
+public interface TimerMBean {
+
+  long getCount();
+
+  /**
+   * @return the mean number of timed operations per second, since the timer has been created
+   */
+  double getRate();
+
+  double getMean();
+
+  double getMax();
+
+  double get50thPercentile();
+
+  double get95thPercentile();
+
+  double get99thPercentile();
+
+  /**
+   * @return the total number of rows (or items) returned by the timed operations
+   */
+  long getRows();
+}
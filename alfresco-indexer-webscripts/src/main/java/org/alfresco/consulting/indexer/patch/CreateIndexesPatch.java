@@ -0,0 +1,121 @@
+package org.alfresco.consulting.indexer.patch;
+
+import org.alfresco.repo.module.AbstractModuleComponent;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.StringUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Creates the indexes used by the changes SqlMaps (see alfresco/ibatis/{dialect}/indexing-SqlMap.xml),
+ * unless an index with the same leading columns already exists on the table.
+ *
+ * Each index definition is expressed as "index_name=table_name(column1,column2,...)"
+ */
+public class CreateIndexesPatch extends AbstractModuleComponent {
+
+  protected static final Log logger = LogFactory.getLog(CreateIndexesPatch.class);
+
+  @Override
+  protected void executeInternal() throws Throwable {
+    Connection connection = dataSource.getConnection();
+    try {
+      for (String indexDefinition : indexDefinitions) {
+        createIndexIfMissing(connection, indexDefinition.trim());
+      }
+    } finally {
+      connection.close();
+    }
+  }
+
+  private void createIndexIfMissing(Connection connection, String indexDefinition) throws SQLException {
+    int equalsPos = indexDefinition.indexOf('=');
+    int openPos = indexDefinition.indexOf('(');
+    int closePos = indexDefinition.lastIndexOf(')');
+    if (equalsPos <= 0 || openPos <= equalsPos || closePos <= openPos) {
+      throw new IllegalArgumentException("Invalid index definition: " + indexDefinition);
+    }
+    String indexName = indexDefinition.substring(0, equalsPos).trim();
+    String tableName = indexDefinition.substring(equalsPos + 1, openPos).trim();
+    List<String> columns = new ArrayList<String>();
+    for (String column : indexDefinition.substring(openPos + 1, closePos).split(",")) {
+      columns.add(column.trim().toLowerCase());
+    }
+
+    for (Map.Entry<String, List<String>> index : getIndexes(connection, tableName).entrySet()) {
+      List<String> indexColumns = index.getValue();
+      if (index.getKey().equalsIgnoreCase(indexName) ||
+          (indexColumns.size() >= columns.size() && indexColumns.subList(0, columns.size()).equals(columns))) {
+        logger.debug("Index " + index.getKey() + " on " + tableName + indexColumns + " already covers " + indexName);
+        return;
+      }
+    }
+
+    String sql = String.format("CREATE INDEX %s ON %s (%s)", indexName, tableName,
+        StringUtils.collectionToCommaDelimitedString(columns));
+    logger.info("Creating index: " + sql);
+    Statement statement = connection.createStatement();
+    try {
+      statement.execute(sql);
+    } finally {
+      statement.close();
+    }
+  }
+
+  /**
+   * Returns the columns (in key order) of all indexes defined on the given table, keyed by index name
+   */
+  private Map<String, List<String>> getIndexes(Connection connection, String tableName) throws SQLException {
+    DatabaseMetaData metaData = connection.getMetaData();
+    //Table names are stored upper-case by some databases (i.e. Oracle) and lower-case by others
+    String storedTableName = metaData.storesUpperCaseIdentifiers() ? tableName.toUpperCase() : tableName.toLowerCase();
+
+    Map<String, Map<Short, String>> columnsByIndex = new HashMap<String, Map<Short, String>>();
+    ResultSet rs = metaData.getIndexInfo(null, null, storedTableName, false, true);
+    try {
+      while (rs.next()) {
+        String indexName = rs.getString("INDEX_NAME");
+        String columnName = rs.getString("COLUMN_NAME");
+        if (indexName == null || columnName == null) {
+          continue;
+        }
+        Map<Short, String> columns = columnsByIndex.get(indexName);
+        if (columns == null) {
+          columns = new TreeMap<Short, String>();
+          columnsByIndex.put(indexName, columns);
+        }
+        columns.put(rs.getShort("ORDINAL_POSITION"), columnName.toLowerCase());
+      }
+    } finally {
+      rs.close();
+    }
+
+    Map<String, List<String>> ret = new HashMap<String, List<String>>();
+    for (Map.Entry<String, Map<Short, String>> entry : columnsByIndex.entrySet()) {
+      ret.put(entry.getKey(), new ArrayList<String>(entry.getValue().values()));
+    }
+    return ret;
+  }
+
+  private DataSource dataSource;
+  private List<String> indexDefinitions;
+
+  public void setDataSource(DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  public void setIndexDefinitions(List<String> indexDefinitions) {
+    this.indexDefinitions = indexDefinitions;
+  }
+}
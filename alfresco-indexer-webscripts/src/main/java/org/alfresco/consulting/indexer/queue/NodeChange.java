@@ -0,0 +1,24 @@
+package org.alfresco.consulting.indexer.queue;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * A node change appended to the {@link NodeChangeQueue}; ids are assigned in commit order
+ */
+public class NodeChange {
+  private final long id;
+  private final NodeRef nodeRef;
+
+  public NodeChange(long id, NodeRef nodeRef) {
+    this.id = id;
+    this.nodeRef = nodeRef;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public NodeRef getNodeRef() {
+    return nodeRef;
+  }
+}
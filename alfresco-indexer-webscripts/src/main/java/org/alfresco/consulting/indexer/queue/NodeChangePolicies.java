@@ -0,0 +1,172 @@
+package org.alfresco.consulting.indexer.queue;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.Behaviour;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.security.permissions.PermissionServicePolicies;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Collects nodes that are created, updated, moved, deleted or whose permissions change within a transaction,
+ * and appends them to the {@link NodeChangeQueue} once the transaction has been committed.
+ * Only nodes of the stores and (allowed, not excluded) types served by the Node Changes WebScript are collected,
+ * so that thumbnails, versions and system nodes don't push actual changes out of the queue
+ */
+public class NodeChangePolicies extends TransactionListenerAdapter implements
+    NodeServicePolicies.OnCreateNodePolicy,
+    NodeServicePolicies.OnUpdateNodePolicy,
+    NodeServicePolicies.OnMoveNodePolicy,
+    NodeServicePolicies.BeforeDeleteNodePolicy,
+    PermissionServicePolicies.OnGrantLocalPermission,
+    PermissionServicePolicies.OnRevokeLocalPermission,
+    PermissionServicePolicies.OnInheritPermissionsEnabled,
+    PermissionServicePolicies.OnInheritPermissionsDisabled {
+
+  protected static final Log logger = LogFactory.getLog(NodeChangePolicies.class);
+
+  private static final String KEY_CHANGED_NODES = NodeChangePolicies.class.getName() + ".changedNodes";
+
+  private Set<QName> allowedTypeQNames;
+  private final Set<QName> excludedTypeQNames = new HashSet<QName>();
+
+  public void init() {
+    if (allowedTypes != null) {
+      allowedTypeQNames = toQNames(allowedTypes);
+    }
+    excludedTypeQNames.addAll(toQNames(excludedTypes));
+    bind(NodeServicePolicies.OnCreateNodePolicy.QNAME, "onCreateNode");
+    bind(NodeServicePolicies.OnUpdateNodePolicy.QNAME, "onUpdateNode");
+    bind(NodeServicePolicies.OnMoveNodePolicy.QNAME, "onMoveNode");
+    bind(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME, "beforeDeleteNode");
+    bind(PermissionServicePolicies.OnGrantLocalPermission.QNAME, "onGrantLocalPermission");
+    bind(PermissionServicePolicies.OnRevokeLocalPermission.QNAME, "onRevokeLocalPermission");
+    bind(PermissionServicePolicies.OnInheritPermissionsEnabled.QNAME, "onInheritPermissionsEnabled");
+    bind(PermissionServicePolicies.OnInheritPermissionsDisabled.QNAME, "onInheritPermissionsDisabled");
+  }
+
+  private static Set<QName> toQNames(Set<String> qnames) {
+    Set<QName> result = new HashSet<QName>();
+    for (String qname : qnames) {
+      if (!qname.trim().isEmpty()) {
+        result.add(QName.createQName(qname.trim()));
+      }
+    }
+    return result;
+  }
+
+  private void bind(QName policy, String method) {
+    policyComponent.bindClassBehaviour(policy, ContentModel.TYPE_BASE,
+        new JavaBehaviour(this, method, Behaviour.NotificationFrequency.EVERY_EVENT));
+  }
+
+  public void onCreateNode(ChildAssociationRef childAssocRef) {
+    nodeChanged(childAssocRef.getChildRef());
+  }
+
+  public void onUpdateNode(NodeRef nodeRef) {
+    nodeChanged(nodeRef);
+  }
+
+  public void onMoveNode(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef) {
+    nodeChanged(newChildAssocRef.getChildRef());
+  }
+
+  public void beforeDeleteNode(NodeRef nodeRef) {
+    nodeChanged(nodeRef);
+  }
+
+  public void onGrantLocalPermission(NodeRef nodeRef, String authority, String permission) {
+    nodeChanged(nodeRef);
+  }
+
+  public void onRevokeLocalPermission(NodeRef nodeRef, String authority, String permission) {
+    nodeChanged(nodeRef);
+  }
+
+  public void onInheritPermissionsEnabled(NodeRef nodeRef) {
+    nodeChanged(nodeRef);
+  }
+
+  public void onInheritPermissionsDisabled(NodeRef nodeRef, boolean async) {
+    nodeChanged(nodeRef);
+  }
+
+  private void nodeChanged(NodeRef nodeRef) {
+    if (!isServed(nodeRef)) {
+      return;
+    }
+    Set<NodeRef> changedNodes = AlfrescoTransactionSupport.getResource(KEY_CHANGED_NODES);
+    if (changedNodes == null) {
+      changedNodes = new LinkedHashSet<NodeRef>();
+      AlfrescoTransactionSupport.bindResource(KEY_CHANGED_NODES, changedNodes);
+      AlfrescoTransactionSupport.bindListener(this);
+    }
+    changedNodes.add(nodeRef);
+  }
+
+  private boolean isServed(NodeRef nodeRef) {
+    if (!stores.contains(nodeRef.getStoreRef().toString())) {
+      return false;
+    }
+    QName type = nodeService.getType(nodeRef);
+    return (allowedTypeQNames == null || allowedTypeQNames.contains(type)) && !excludedTypeQNames.contains(type);
+  }
+
+  @Override
+  public void afterCommit() {
+    Set<NodeRef> changedNodes = AlfrescoTransactionSupport.getResource(KEY_CHANGED_NODES);
+    if (changedNodes == null) {
+      return;
+    }
+    try {
+      nodeChangeQueue.append(changedNodes);
+    } catch (RuntimeException e) {
+      //The Node Changes WebScript still reports these nodes, only the long-poll wake-up is lost
+      logger.warn("Cannot append " + changedNodes.size() + " changed nodes to the queue", e);
+    }
+  }
+
+  private PolicyComponent policyComponent;
+  private NodeChangeQueue nodeChangeQueue;
+  private NodeService nodeService;
+  private Set<String> stores = new HashSet<String>();
+  private Set<String> allowedTypes;
+  private Set<String> excludedTypes = new HashSet<String>();
+
+  public void setPolicyComponent(PolicyComponent policyComponent) {
+    this.policyComponent = policyComponent;
+  }
+
+  public void setNodeChangeQueue(NodeChangeQueue nodeChangeQueue) {
+    this.nodeChangeQueue = nodeChangeQueue;
+  }
+
+  public void setNodeService(NodeService nodeService) {
+    this.nodeService = nodeService;
+  }
+
+  public void setStores(Set<String> stores) {
+    this.stores = stores;
+  }
+
+  public void setAllowedTypes(Set<String> allowedTypes) {
+    this.allowedTypes = allowedTypes;
+  }
+
+  public void setExcludedTypes(Set<String> excludedTypes) {
+    this.excludedTypes = excludedTypes;
+  }
+}
@@ -0,0 +1,288 @@
+package org.alfresco.consulting.indexer.queue;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of node changes, appended by {@link NodeChangePolicies} after each commit and read by
+ * the Node Events WebScript (long-poll).
+ *
+ * Changes are never removed by readers, so multiple indexers can consume the same queue; once the queue
+ * exceeds its capacity the oldest changes are dropped and readers lagging behind are notified with an
+ * overflow, which means they have to rely on the Node Changes WebScript to catch up.
+ *
+ * Each committed batch is persisted using the AttributeService, so that the queue (and readers' positions)
+ * survive a restart. Batches are written by a background thread, several at a time, rather than by the
+ * committing thread; batches appended shortly before a shutdown are written by {@link #destroy()}.
+ * A batch larger than the capacity (i.e. a bulk import) only keeps its latest changes, both in memory and
+ * once persisted.
+ *
+ * The queue is local to the Alfresco instance that performed the change; in a cluster it should be used as
+ * a wake-up signal for the Node Changes WebScript, which covers all instances.
+ */
+public class NodeChangeQueue {
+
+  protected static final Log logger = LogFactory.getLog(NodeChangeQueue.class);
+
+  private static final String ATTR_KEY_APP = "alfresco-indexer";
+  private static final String ATTR_KEY_QUEUE = "nodeChangeQueue";
+
+  private final LinkedList<NodeChange> changes = new LinkedList<NodeChange>();
+  //First change id of each persisted batch, in order
+  private final LinkedList<Long> persistedBatches = new LinkedList<Long>();
+  private long lastId = 0;
+  //Batches (and dropped batches) not written yet, by first change id
+  private final Map<Long, ArrayList<String>> pendingBatches = new TreeMap<Long, ArrayList<String>>();
+  private final List<Long> pendingDrops = new ArrayList<Long>();
+  private boolean writeScheduled = false;
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "indexer-node-change-queue");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  public void init() {
+    final Map<Long, List<String>> batches = new TreeMap<Long, List<String>>();
+    transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+      public Void execute() throws Throwable {
+        attributeService.getAttributes(new AttributeService.AttributeQueryCallback() {
+          @SuppressWarnings("unchecked")
+          public boolean handleAttribute(Long id, Serializable value, Serializable[] keys) {
+            batches.put((Long) keys[2], (List<String>) value);
+            return true;
+          }
+        }, ATTR_KEY_APP, ATTR_KEY_QUEUE);
+        return null;
+      }
+    }, true, false);
+
+    List<Long> droppedBatches = new ArrayList<Long>();
+    synchronized (this) {
+      for (Map.Entry<Long, List<String>> batch : batches.entrySet()) {
+        long id = batch.getKey();
+        persistedBatches.add(id);
+        for (String nodeRef : batch.getValue()) {
+          changes.add(new NodeChange(id++, new NodeRef(nodeRef)));
+        }
+        lastId = id - 1;
+      }
+      //The capacity may have been lowered since the batches were persisted
+      trim(droppedBatches);
+    }
+    if (!droppedBatches.isEmpty()) {
+      synchronized (pendingBatches) {
+        pendingDrops.addAll(droppedBatches);
+      }
+      write();
+    }
+    logger.info("Node change queue restored with " + changes.size() + " changes, last change id is " + lastId);
+  }
+
+  /**
+   * Appends the given nodes, assigning them consecutive ids; must be invoked after the transaction
+   * that changed the nodes has been committed
+   */
+  public void append(Collection<NodeRef> nodeRefs) {
+    if (nodeRefs.isEmpty()) {
+      return;
+    }
+    //Only the latest changes of a batch larger than the queue are kept; the earlier ones still take their ids,
+    //so that readers lagging behind are told about the overflow
+    List<NodeRef> kept = new ArrayList<NodeRef>(nodeRefs);
+    int skipped = Math.max(0, kept.size() - capacity);
+    kept = kept.subList(skipped, kept.size());
+    final long firstId;
+    final List<Long> droppedBatches = new ArrayList<Long>();
+    synchronized (this) {
+      lastId += skipped;
+      firstId = lastId + 1;
+      for (NodeRef nodeRef : kept) {
+        changes.add(new NodeChange(++lastId, nodeRef));
+      }
+      persistedBatches.add(firstId);
+      trim(droppedBatches);
+      notifyAll();
+    }
+
+    ArrayList<String> batch = new ArrayList<String>(kept.size());
+    for (NodeRef nodeRef : kept) {
+      batch.add(nodeRef.toString());
+    }
+    synchronized (pendingBatches) {
+      pendingBatches.put(firstId, batch);
+      pendingDrops.addAll(droppedBatches);
+      if (writeScheduled) {
+        return;
+      }
+      writeScheduled = true;
+    }
+    writer.execute(new Runnable() {
+      public void run() {
+        write();
+      }
+    });
+  }
+
+  /**
+   * Drops the oldest changes beyond the capacity, along with the persisted batches they are all part of
+   */
+  private void trim(List<Long> droppedBatches) {
+    while (changes.size() > capacity) {
+      changes.removeFirst();
+    }
+    //A batch can be deleted once the following one starts within the retained changes
+    while (persistedBatches.size() > 1 && !changes.isEmpty() && persistedBatches.get(1) <= changes.getFirst().getId()) {
+      droppedBatches.add(persistedBatches.removeFirst());
+    }
+  }
+
+  /**
+   * Writes the pending batches, and deletes the dropped ones, in a single transaction
+   */
+  private void write() {
+    final Map<Long, ArrayList<String>> batches;
+    final List<Long> drops;
+    synchronized (pendingBatches) {
+      batches = new TreeMap<Long, ArrayList<String>>(pendingBatches);
+      drops = new ArrayList<Long>(pendingDrops);
+      pendingBatches.clear();
+      pendingDrops.clear();
+      writeScheduled = false;
+    }
+    //A batch dropped before being written is not written at all
+    for (Long drop : new ArrayList<Long>(drops)) {
+      if (batches.remove(drop) != null) {
+        drops.remove(drop);
+      }
+    }
+    if (batches.isEmpty() && drops.isEmpty()) {
+      return;
+    }
+    try {
+      transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+        public Void execute() throws Throwable {
+          for (Map.Entry<Long, ArrayList<String>> batch : batches.entrySet()) {
+            attributeService.setAttribute(batch.getValue(), ATTR_KEY_APP, ATTR_KEY_QUEUE, batch.getKey());
+          }
+          for (Long droppedBatch : drops) {
+            attributeService.removeAttribute(ATTR_KEY_APP, ATTR_KEY_QUEUE, droppedBatch);
+          }
+          return null;
+        }
+      }, false, true);
+    } catch (RuntimeException e) {
+      //Readers are notified anyway, only a restart would lose these changes
+      logger.warn("Cannot persist " + batches.size() + " batches of node changes", e);
+    }
+  }
+
+  /**
+   * Writes the batches still pending and stops the background writer
+   */
+  public void destroy() {
+    writer.shutdown();
+    try {
+      writer.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    write();
+  }
+
+  /**
+   * Waits until changes with an id greater than sinceId are available, or until the timeout expires
+   * @return the changes of the given store with an id greater than sinceId (at most maxChanges of them)
+   */
+  public synchronized Page poll(StoreRef storeRef, long sinceId, long timeoutMillis, int maxChanges)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (lastId == sinceId) {
+      long wait = deadline - System.currentTimeMillis();
+      if (wait <= 0) {
+        break;
+      }
+      wait(wait);
+    }
+
+    Page page = new Page();
+    page.lastId = lastId;
+    //Changes after sinceId have been dropped from the queue, or were never part of it (i.e. the queue has been reset)
+    page.overflow = sinceId > lastId || (!changes.isEmpty() && sinceId < changes.getFirst().getId() - 1);
+    if (changes.isEmpty() || sinceId >= lastId) {
+      return page;
+    }
+    //Changes ids are contiguous, from the first retained change to lastId
+    int skip = (int) Math.max(0, sinceId - changes.getFirst().getId() + 1);
+    for (NodeChange change : changes.subList(skip, changes.size())) {
+      if (page.changes.size() >= maxChanges) {
+        //The reader will continue from the last change being returned
+        page.lastId = page.changes.get(page.changes.size() - 1).getId();
+        break;
+      }
+      if (change.getNodeRef().getStoreRef().equals(storeRef)) {
+        page.changes.add(change);
+      }
+    }
+    return page;
+  }
+
+  public synchronized long getLastId() {
+    return lastId;
+  }
+
+  /**
+   * A page of changes; lastId is the position the reader should continue from
+   */
+  public static class Page {
+    private final List<NodeChange> changes = new ArrayList<NodeChange>();
+    private long lastId;
+    private boolean overflow;
+
+    public List<NodeChange> getChanges() {
+      return changes;
+    }
+
+    public long getLastId() {
+      return lastId;
+    }
+
+    public boolean isOverflow() {
+      return overflow;
+    }
+  }
+
+  private TransactionService transactionService;
+  private AttributeService attributeService;
+  private int capacity = 10000;
+
+  public void setTransactionService(TransactionService transactionService) {
+    this.transactionService = transactionService;
+  }
+
+  public void setAttributeService(AttributeService attributeService) {
+    this.attributeService = attributeService;
+  }
+
+  public void setCapacity(int capacity) {
+    this.capacity = capacity;
+  }
+}
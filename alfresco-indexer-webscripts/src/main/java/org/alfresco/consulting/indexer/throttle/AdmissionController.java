@@ -0,0 +1,141 @@
+package org.alfresco.consulting.indexer.throttle;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.webscripts.WebScript;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of concurrent requests of each indexer WebScript (endpoint), so that a crawler burst
+ * cannot take all Tomcat threads and database connections away from interactive users.
+ *
+ * Requests beyond the permits of an endpoint wait (first come, first served) up to maxWait milliseconds,
+ * at most queueSize of them; others are rejected straight away with 503 (Service Unavailable) and a
+ * Retry-After header, which the indexer client honours before sending further requests.
+ * Endpoints are named after their WebScript descriptor (i.e. changes, details, text); endpoints without
+ * (positive) permits are not limited
+ */
+public class AdmissionController {
+
+  protected static final Log logger = LogFactory.getLog(AdmissionController.class);
+
+  private static class Endpoint {
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private Endpoint(int permits) {
+      this.permits = new Semaphore(permits, true);
+    }
+  }
+
+  private final Map<String, Endpoint> endpoints = new HashMap<String, Endpoint>();
+
+  public void init() {
+    for (Map.Entry<String, Integer> entry : permits.entrySet()) {
+      if (entry.getValue() != null && entry.getValue() > 0) {
+        endpoints.put(entry.getKey(), new Endpoint(entry.getValue()));
+      }
+    }
+    logger.info(String.format("Admission control: permits %s, queue size %s, max wait %s ms", permits, queueSize, maxWait));
+  }
+
+  /**
+   * @return the endpoint name of the WebScript, i.e. changes for org/alfresco/consulting/indexer/webscripts/changes.get
+   */
+  public static String getEndpoint(WebScript webScript) {
+    String id = webScript.getDescription().getId();
+    String name = id.substring(id.lastIndexOf('/') + 1);
+    int dot = name.indexOf('.');
+    return dot > 0 ? name.substring(0, dot) : name;
+  }
+
+  /**
+   * Waits for a permit of the endpoint, as long as the wait queue is not full
+   * @return false if the request has to be rejected; otherwise, {@link #release} must be invoked once it is served
+   */
+  public boolean acquire(String endpoint) {
+    Endpoint limit = endpoints.get(endpoint);
+    if (limit == null || limit.permits.tryAcquire()) {
+      return true;
+    }
+    if (limit.queued.incrementAndGet() > queueSize) {
+      limit.queued.decrementAndGet();
+      logger.debug(String.format("Rejecting %s request, %s requests are already waiting", endpoint, queueSize));
+      return false;
+    }
+    try {
+      boolean acquired = limit.permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+      if (!acquired) {
+        logger.debug(String.format("Rejecting %s request, no permit within %s ms", endpoint, maxWait));
+      }
+      return acquired;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      limit.queued.decrementAndGet();
+    }
+  }
+
+  public void release(String endpoint) {
+    Endpoint limit = endpoints.get(endpoint);
+    if (limit != null) {
+      limit.permits.release();
+    }
+  }
+
+  /**
+   * Rejects the request with 503 (Service Unavailable), asking the client to retry after retryAfter seconds
+   */
+  public void reject(String endpoint, WebScriptResponse res) throws IOException {
+    res.setStatus(503);
+    res.setHeader("Retry-After", String.valueOf(retryAfter));
+    res.setContentType("application/json");
+    res.setContentEncoding("UTF-8");
+    res.getWriter().write(String.format("{\"status\" : 503, \"message\" : \"Too many concurrent %s requests\"}", endpoint));
+  }
+
+  /**
+   * @return the number of requests currently being served by the endpoint (null if it is not limited)
+   */
+  public Integer getActive(String endpoint) {
+    Endpoint limit = endpoints.get(endpoint);
+    return limit == null ? null : permits.get(endpoint) - limit.permits.availablePermits();
+  }
+
+  /**
+   * @return the number of requests currently waiting for a permit of the endpoint (null if it is not limited)
+   */
+  public Integer getQueued(String endpoint) {
+    Endpoint limit = endpoints.get(endpoint);
+    return limit == null ? null : limit.queued.get();
+  }
+
+  private Map<String, Integer> permits = new HashMap<String, Integer>();
+  private int queueSize = 16;
+  private long maxWait = 2000;
+  private int retryAfter = 5;
+
+  public void setPermits(Map<String, Integer> permits) {
+    this.permits = permits;
+  }
+
+  public void setQueueSize(int queueSize) {
+    this.queueSize = queueSize;
+  }
+
+  public void setMaxWait(long maxWait) {
+    this.maxWait = maxWait;
+  }
+
+  public void setRetryAfter(int retryAfter) {
+    this.retryAfter = retryAfter;
+  }
+}
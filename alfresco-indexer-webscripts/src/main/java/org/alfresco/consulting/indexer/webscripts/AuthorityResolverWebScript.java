@@ -11,7 +11,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.cxf.common.util.StringUtils;
 import org.springframework.extensions.webscripts.Cache;
-import org.springframework.extensions.webscripts.DeclarativeWebScript;
 import org.springframework.extensions.webscripts.Status;
 import org.springframework.extensions.webscripts.WebScriptRequest;
 
@@ -26,7 +25,7 @@ import java.util.*;
  * List of pending activities (or TODOs)
  * - Using JSON libraries (or StringBuffer), render out the payload without passing through FreeMarker template
  */
-public class AuthorityResolverWebScript extends DeclarativeWebScript {
+public class AuthorityResolverWebScript extends CompressingWebScript {
 
   protected static final Log logger = LogFactory.getLog(AuthorityResolverWebScript.class);
 
@@ -0,0 +1,293 @@
+package org.alfresco.consulting.indexer.webscripts;
+
+import org.alfresco.consulting.indexer.metrics.IndexerMetrics;
+import org.alfresco.consulting.indexer.metrics.RequestTrace;
+import org.alfresco.consulting.indexer.throttle.AdmissionController;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A DeclarativeWebScript that compresses the rendered payload (gzip or deflate, depending on the request
+ * Accept-Encoding header) once it grows beyond compressionThreshold bytes; smaller payloads are sent as they are.
+ *
+ * The response is proxied (rather than wrapped into a servlet filter) so that it works with any container
+ * response, including the ones buffered by Alfresco until the transaction commits.
+ * Concurrent requests are limited by the {@link AdmissionController} (if any), before anything is rendered
+ * and before the (read-only) transaction of the request starts;
+ * requests (endpoint.*), rejections (rejected.*) and template rendering (render.*) are timed by {@link IndexerMetrics},
+ * and traced under the request id sent by the client (if any), see {@link RequestTrace}
+ */
+public abstract class CompressingWebScript extends DeclarativeWebScript {
+
+  private static final Log logger = LogFactory.getLog(CompressingWebScript.class);
+
+  private int compressionThreshold = 8192;
+  private AdmissionController admissionController;
+  private TransactionService transactionService;
+  private IndexerMetrics metrics;
+
+  @Override
+  public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+    String endpoint = AdmissionController.getEndpoint(this);
+    long start = System.nanoTime();
+    res = ServerTimingResponse.wrap(res, metrics.startTrace(req.getHeader(RequestTrace.REQUEST_ID_HEADER)));
+    try {
+      if (admissionController != null && !admissionController.acquire(endpoint)) {
+        admissionController.reject(endpoint, res);
+        metrics.time("rejected." + endpoint, start);
+        return;
+      }
+      try {
+        renderInTransaction(req, res);
+      } finally {
+        if (admissionController != null) {
+          admissionController.release(endpoint);
+        }
+        metrics.time("endpoint." + endpoint, start);
+      }
+    } finally {
+      metrics.endTrace();
+    }
+  }
+
+  /**
+   * Renders within a read-only transaction; WebScripts require none (see their descriptors), so that requests
+   * waiting for an admission permit hold neither a transaction nor a database connection.
+   * The payload is written while rendering (inline documents are loaded as they are written out), therefore the
+   * transaction is never retried: a retry would write a second payload after the first one
+   */
+  private void renderInTransaction(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+    RetryingTransactionHelper txnHelper = transactionService.getRetryingTransactionHelper();
+    txnHelper.setMaxRetries(0);
+    try {
+      txnHelper.doInTransaction(new RetryingTransactionCallback<Void>() {
+        public Void execute() throws Throwable {
+          compressAndRender(req, res);
+          return null;
+        }
+      }, true);
+    } catch (AlfrescoRuntimeException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private void compressAndRender(WebScriptRequest req, WebScriptResponse res) throws IOException {
+    String encoding = getAcceptedEncoding(req.getHeader("Accept-Encoding"));
+    if (encoding == null || compressionThreshold < 0) {
+      render(req, res);
+      return;
+    }
+
+    res.setHeader("Vary", "Accept-Encoding");
+    CompressingResponse compressingResponse = new CompressingResponse(res, encoding, compressionThreshold);
+    render(req, compressingResponse.getProxy());
+    compressingResponse.finish();
+
+    logger.debug(String.format("Rendered %s: %s bytes, %s bytes sent (%s)", req.getURL(),
+        compressingResponse.output.getRawCount(), compressingResponse.output.getSentCount(),
+        compressingResponse.output.isCompressed() ? encoding : "not compressed"));
+  }
+
+  /**
+   * Renders the WebScript payload into the (possibly compressing) response; by default, using the format templates
+   */
+  protected void render(WebScriptRequest req, WebScriptResponse res) throws IOException {
+    super.execute(req, res);
+  }
+
+  @Override
+  protected void renderTemplate(String templatePath, Map<String, Object> model, Writer writer) {
+    long start = System.nanoTime();
+    super.renderTemplate(templatePath, model, writer);
+    metrics.time("render." + AdmissionController.getEndpoint(this), start);
+  }
+
+  /**
+   * @return gzip or deflate (in order of preference) if accepted by the client, null otherwise
+   */
+  static String getAcceptedEncoding(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    boolean deflate = false;
+    for (String token : acceptEncoding.split(",")) {
+      String[] parts = token.trim().split(";");
+      String coding = parts[0].trim().toLowerCase();
+      if (parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?")) {
+        continue;
+      }
+      if ("gzip".equals(coding)) {
+        return "gzip";
+      } else if ("deflate".equals(coding)) {
+        deflate = true;
+      }
+    }
+    return deflate ? "deflate" : null;
+  }
+
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  public void setAdmissionController(AdmissionController admissionController) {
+    this.admissionController = admissionController;
+  }
+
+  public void setTransactionService(TransactionService transactionService) {
+    this.transactionService = transactionService;
+  }
+
+  public void setMetrics(IndexerMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  protected IndexerMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Forwards all calls to the container response, except for the ones returning its writer or output stream
+   */
+  private static class CompressingResponse implements InvocationHandler {
+    private final WebScriptResponse res;
+    private final CompressingOutputStream output;
+    private String contentEncoding = "UTF-8";
+    private Writer writer;
+
+    CompressingResponse(WebScriptResponse res, String encoding, int threshold) {
+      this.res = res;
+      this.output = new CompressingOutputStream(res, encoding, threshold);
+    }
+
+    WebScriptResponse getProxy() {
+      return (WebScriptResponse) Proxy.newProxyInstance(WebScriptResponse.class.getClassLoader(),
+          new Class<?>[]{WebScriptResponse.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if ("getOutputStream".equals(name)) {
+        return output;
+      } else if ("getWriter".equals(name)) {
+        if (writer == null) {
+          writer = new OutputStreamWriter(output, contentEncoding);
+        }
+        return writer;
+      } else if ("setContentEncoding".equals(name) && args[0] != null) {
+        contentEncoding = (String) args[0];
+      } else if ("reset".equals(name)) {
+        writer = null;
+        output.reset();
+      }
+      try {
+        return method.invoke(res, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+
+    void finish() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      }
+      output.finish();
+    }
+  }
+
+  /**
+   * Buffers the payload up to the threshold; beyond it, sets the Content-Encoding header and compresses
+   * (buffered and following) bytes into the container response
+   */
+  private static class CompressingOutputStream extends OutputStream {
+    private final WebScriptResponse res;
+    private final String encoding;
+    private final int threshold;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private CountingOutputStream sent;
+    private DeflaterOutputStream compressed;
+    private long rawCount = 0;
+
+    CompressingOutputStream(WebScriptResponse res, String encoding, int threshold) {
+      this.res = res;
+      this.encoding = encoding;
+      this.threshold = threshold;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      rawCount += len;
+      if (compressed != null) {
+        compressed.write(b, off, len);
+        return;
+      }
+      buffer.write(b, off, len);
+      if (buffer.size() > threshold) {
+        res.setHeader("Content-Encoding", encoding);
+        sent = new CountingOutputStream(res.getOutputStream());
+        compressed = "gzip".equals(encoding) ? new GZIPOutputStream(sent, 8192) : new DeflaterOutputStream(sent);
+        buffer.writeTo(compressed);
+        buffer = null;
+      }
+    }
+
+    void reset() {
+      if (compressed == null) {
+        buffer.reset();
+        rawCount = 0;
+      }
+    }
+
+    void finish() throws IOException {
+      if (compressed != null) {
+        compressed.finish();
+        sent.flush();
+      } else {
+        sent = new CountingOutputStream(res.getOutputStream());
+        buffer.writeTo(sent);
+        sent.flush();
+      }
+    }
+
+    boolean isCompressed() {
+      return compressed != null;
+    }
+
+    long getRawCount() {
+      return rawCount;
+    }
+
+    long getSentCount() {
+      return sent == null ? 0 : sent.getByteCount();
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package org.alfresco.consulting.indexer.webscripts;
+
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.namespace.NamespaceException;
+import org.alfresco.service.namespace.NamespacePrefixResolver;
+import org.alfresco.service.namespace.QName;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The properties and aspects of a node to be rendered out, parsed from the fields parameter: comma separated
+ * prefixed QNames of properties and aspects, excluded when starting with "-" (i.e. cm:name,cm:titled,-sys:referenceable).
+ * Once a property (or an aspect) is included, all properties (or aspects) that are not included are left out
+ */
+class FieldProjection {
+
+  private final Set<QName> includedProperties = new HashSet<QName>();
+  private final Set<QName> excludedProperties = new HashSet<QName>();
+  private final Set<QName> includedAspects = new HashSet<QName>();
+  private final Set<QName> excludedAspects = new HashSet<QName>();
+
+  /**
+   * @return null if fields is empty, hence everything is rendered out
+   * @throws WebScriptException (400) if a field has an unknown namespace prefix
+   */
+  static FieldProjection parse(String fields, NamespacePrefixResolver namespaceService, DictionaryService dictionaryService) {
+    if (fields == null || fields.trim().isEmpty()) {
+      return null;
+    }
+    FieldProjection projection = new FieldProjection();
+    for (String field : fields.split(",")) {
+      field = field.trim();
+      boolean excluded = field.startsWith("-");
+      if (excluded) {
+        field = field.substring(1).trim();
+      }
+      if (field.isEmpty()) {
+        continue;
+      }
+      QName qname;
+      try {
+        qname = QName.createQName(field, namespaceService);
+      } catch (NamespaceException e) {
+        throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid field: " + field, e);
+      }
+      //Anything that is not an aspect is a property, residual properties included
+      if (dictionaryService.getAspect(qname) != null) {
+        (excluded ? projection.excludedAspects : projection.includedAspects).add(qname);
+      } else {
+        (excluded ? projection.excludedProperties : projection.includedProperties).add(qname);
+      }
+    }
+    return projection;
+  }
+
+  Map<QName, Serializable> filterProperties(Map<QName, Serializable> properties) {
+    Map<QName, Serializable> filtered = new HashMap<QName, Serializable>();
+    for (Map.Entry<QName, Serializable> property : properties.entrySet()) {
+      if (isIncluded(property.getKey(), includedProperties, excludedProperties)) {
+        filtered.put(property.getKey(), property.getValue());
+      }
+    }
+    return filtered;
+  }
+
+  Set<QName> filterAspects(Set<QName> aspects) {
+    Set<QName> filtered = new HashSet<QName>();
+    for (QName aspect : aspects) {
+      if (isIncluded(aspect, includedAspects, excludedAspects)) {
+        filtered.add(aspect);
+      }
+    }
+    return filtered;
+  }
+
+  private boolean isIncluded(QName qname, Set<QName> included, Set<QName> excluded) {
+    return (included.isEmpty() || included.contains(qname)) && !excluded.contains(qname);
+  }
+}
@@ -0,0 +1,67 @@
+package org.alfresco.consulting.indexer.webscripts;
+
+import org.alfresco.consulting.indexer.metrics.CacheStats;
+import org.alfresco.consulting.indexer.metrics.IndexerMetrics;
+import org.alfresco.consulting.indexer.metrics.Timer;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders out the indexer metrics, the same exposed as MBeans (see {@link IndexerMetrics}):
+ * - Timers of endpoints and of their stages: count, rate (per second), latencies (mean, max and percentiles,
+ *   in milliseconds) and rows returned
+ * - Hits, misses and hit ratio of the indexer caches
+ *
+ * Please check src/main/amp/config/alfresco/extension/templates/webscripts/com/findwise/alfresco/metrics.get.desc.xml
+ * to know more about the RestFul interface to invoke the WebScript
+ */
+public class IndexingMetricsWebScript extends DeclarativeWebScript {
+
+  @Override
+  protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+    List<Map<String, Object>> timers = new ArrayList<Map<String, Object>>();
+    for (Map.Entry<String, Timer> entry : metrics.getTimers().entrySet()) {
+      Timer timer = entry.getValue();
+      Map<String, Object> values = new HashMap<String, Object>(16, 1.0f);
+      values.put("name", entry.getKey());
+      values.put("count", timer.getCount());
+      values.put("rate", timer.getRate());
+      values.put("mean", timer.getMean());
+      values.put("max", timer.getMax());
+      values.put("p50", timer.get50thPercentile());
+      values.put("p95", timer.get95thPercentile());
+      values.put("p99", timer.get99thPercentile());
+      values.put("rows", timer.getRows());
+      timers.add(values);
+    }
+
+    List<Map<String, Object>> caches = new ArrayList<Map<String, Object>>();
+    for (Map.Entry<String, CacheStats> entry : metrics.getCaches().entrySet()) {
+      CacheStats cacheStats = entry.getValue();
+      Map<String, Object> values = new HashMap<String, Object>(4, 1.0f);
+      values.put("name", entry.getKey());
+      values.put("hits", cacheStats.getHits());
+      values.put("misses", cacheStats.getMisses());
+      values.put("hitRatio", cacheStats.getHitRatio());
+      caches.add(values);
+    }
+
+    Map<String, Object> model = new HashMap<String, Object>(1, 1.0f);
+    model.put("timers", timers);
+    model.put("caches", caches);
+    return model;
+  }
+
+  private IndexerMetrics metrics;
+
+  public void setMetrics(IndexerMetrics metrics) {
+    this.metrics = metrics;
+  }
+}
@@ -0,0 +1,64 @@
+package org.alfresco.consulting.indexer.webscripts;
+
+import org.alfresco.consulting.indexer.dao.IndexingDaoImpl;
+import org.alfresco.consulting.indexer.entities.NodeCountEntity;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders out the current state of the repository, which clients compare with the last indexed
+ * transaction and ACL changeset ids to know how far behind they are:
+ * - The max transaction id and the max ACL changeset id
+ * - The (approximate, as cached) number of nodes per store and allowed type
+ *
+ * Please check src/main/amp/config/alfresco/extension/templates/webscripts/com/findwise/alfresco/status.get.desc.xml
+ * to know more about the RestFul interface to invoke the WebScript
+ */
+public class IndexingStatusWebScript extends DeclarativeWebScript {
+
+  protected static final Log logger = LogFactory.getLog(IndexingStatusWebScript.class);
+
+  @Override
+  protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+    Long maxTxnId = indexingService.getMaxTransactionId();
+    Long maxAclChangesetId = indexingService.getMaxAclChangesetId();
+
+    List<Map<String, Object>> nodeCounts = new ArrayList<Map<String, Object>>();
+    for (NodeCountEntity nodeCount : indexingService.getNodeCounts()) {
+      Map<String, Object> count = new HashMap<String, Object>(3, 1.0f);
+      count.put("store", nodeCount.getStoreProtocol() + "://" + nodeCount.getStoreIdentifier());
+      count.put("type", QName.createQName(nodeCount.getTypeNamespace(), nodeCount.getTypeName()).toPrefixString(namespaceService));
+      count.put("count", nodeCount.getCount());
+      nodeCounts.add(count);
+    }
+
+    logger.debug(String.format("Max transaction id: %s, max ACL changeset id: %s", maxTxnId, maxAclChangesetId));
+
+    Map<String, Object> model = new HashMap<String, Object>(1, 1.0f);
+    model.put("maxTxnId", maxTxnId);
+    model.put("maxAclChangesetId", maxAclChangesetId);
+    model.put("nodeCounts", nodeCounts);
+    return model;
+  }
+
+  private IndexingDaoImpl indexingService;
+  private NamespaceService namespaceService;
+
+  public void setIndexingService(IndexingDaoImpl indexingService) {
+    this.indexingService = indexingService;
+  }
+  public void setNamespaceService(NamespaceService namespaceService) {
+    this.namespaceService = namespaceService;
+  }
+}
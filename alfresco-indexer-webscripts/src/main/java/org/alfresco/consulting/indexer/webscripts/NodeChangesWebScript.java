@@ -1,19 +1,25 @@
 package org.alfresco.consulting.indexer.webscripts;
 
+import org.alfresco.consulting.indexer.cache.DictionaryMetadataCache;
+import org.alfresco.consulting.indexer.cache.NodeAncestryCache;
 import org.alfresco.consulting.indexer.dao.IndexingDaoImpl;
 import org.alfresco.consulting.indexer.entities.NodeEntity;
-import freemarker.ext.beans.BeansWrapper;
-import freemarker.template.TemplateHashModel;
-import org.alfresco.error.AlfrescoRuntimeException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
 import org.alfresco.repo.domain.node.NodeDAO;
 import org.alfresco.repo.domain.qname.QNameDAO;
+import org.alfresco.service.cmr.repository.InvalidNodeRefException;
+import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.StoreRef;
-import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.cmr.site.SiteInfo;
+import org.alfresco.service.cmr.site.SiteService;
 import org.alfresco.util.Pair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.extensions.webscripts.*;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -22,6 +28,16 @@ import java.util.*;
  * - Node content
  * - Node ACLs
  *
+ * Changes can be restricted to the subtrees of some sites (sites=shortName,..) and folders (folders=nodeRef,..);
+ * nodes out of scope are rendered out as deleted, so that a node moved out of the scope leaves the index
+ *
+ * Nodes that have been deleted, or that are now excluded (see IndexingDaoImpl), are rendered out as deleted;
+ * so are the descendants of excluded parents, found by walking up their ancestors (see NodeAncestryCache)
+ *
+ * With include=properties,aspects,acl,path (or a subset of it), the details of every node that is not deleted are
+ * rendered inline (see {@link NodeDetailsLoader}), so that clients need no further request per node; nodes of the
+ * page are bulk loaded upfront and each document is loaded while it is written out, without any template
+ *
  * Please check src/main/amp/config/alfresco/extension/templates/webscripts/com/findwise/alfresco/changes.get.desc.xml
  * to know more about the RestFul interface to invoke the WebScript
  *
@@ -30,10 +46,12 @@ import java.util.*;
  * - Using JSON libraries (or StringBuffer), render out the payload without passing through FreeMarker template
  * - Wrap (or Proxy) IndexingDaoImpl into an IndexingService, which (optionally) performs any object manipulation
  */
-public class NodeChangesWebScript extends DeclarativeWebScript {
+public class NodeChangesWebScript extends SmileWebScript {
 
   protected static final Log logger = LogFactory.getLog(NodeChangesWebScript.class);
 
+  private static final String FORMAT_NDJSON = "ndjson";
+
   @Override
   protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
 
@@ -45,6 +63,10 @@ public class NodeChangesWebScript extends DeclarativeWebScript {
     String lastAclChangesetIdString = req.getParameter("lastAclChangesetId");
     String maxTxnsString = req.getParameter("maxTxns");
     String maxAclChangesetsString = req.getParameter("maxAclChangesets");
+    String sitesString = req.getParameter("sites");
+    String foldersString = req.getParameter("folders");
+    Set<String> include = nodeDetailsLoader.parseInclude(req.getParameter("include"));
+    FieldProjection projection = include == null ? null : nodeDetailsLoader.parseFields(req.getParameter("fields"));
 
     //Parsing parameters passed from the WebScript invocation
     Long lastTxnId = (lastTxnIdString == null ? null : Long.valueOf(lastTxnIdString));
@@ -65,7 +87,10 @@ public class NodeChangesWebScript extends DeclarativeWebScript {
         throw new IllegalArgumentException("Invalid store reference: " + storeProtocol + "://" + storeId);
     }
 
-    Set<NodeEntity> nodes = new HashSet<NodeEntity>();
+    //Nodes are keyed by node id, so that a node changed by both a transaction and an ACL changeset
+    //is rendered once, in feed order (transactions first, then ACL changesets)
+    Map<Long, NodeEntity> nodes = new LinkedHashMap<Long, NodeEntity>();
+    int collapsedChanges = 0;
     //Updating the last IDs being processed
     //Depending on params passed to the request, results will be rendered out
     if (lastTxnId == null) {
@@ -73,7 +98,7 @@ public class NodeChangesWebScript extends DeclarativeWebScript {
     }
     List<NodeEntity> nodesFromTxns = indexingService.getNodesByTransactionId(store, lastTxnId, maxTxns);
     if (nodesFromTxns != null && nodesFromTxns.size() > 0) {
-      nodes.addAll(nodesFromTxns);
+      collapsedChanges += addNodes(nodes, nodesFromTxns);
       lastTxnId = nodesFromTxns.get(nodesFromTxns.size()-1).getTransactionId();
     }
 
@@ -82,49 +107,245 @@ public class NodeChangesWebScript extends DeclarativeWebScript {
     }
     List<NodeEntity> nodesFromAcls = indexingService.getNodesByAclChangesetId(store, lastAclChangesetId, maxAclChangesets);
     if (nodesFromAcls != null && nodesFromAcls.size() > 0) {
-      nodes.addAll(nodesFromAcls);
+      collapsedChanges += addNodes(nodes, nodesFromAcls);
       lastAclChangesetId = nodesFromAcls.get(nodesFromAcls.size()-1).getAclChangesetId();
     }
 
+    //Queries only flag the direct children of excluded parents, deeper descendants are found by their ancestors
+    Set<NodeRef> excludedParents = indexingService.getExcludedParents(store.getSecond());
+    if (!excludedParents.isEmpty()) {
+      excludeDescendants(nodes.values(), store.getSecond(), excludedParents);
+    }
+
+    //Restricting changes to the requested sites and folders (if any); last IDs still cover the whole page
+    Set<NodeRef> scope = getScope(sitesString, foldersString);
+    if (scope != null) {
+      excludeOutOfScope(nodes.values(), store.getSecond(), scope);
+    }
+
+    //Warming up the node caches for the whole page, rather than loading nodes one by one while rendering
+    if (include != null) {
+      cacheNodes(nodes.values());
+    }
+
     //Render them out
     Map<String, Object> model = new HashMap<String, Object>(1, 1.0f);
     model.put("qnameDao", qnameDao);
-    model.put("nsResolver", namespaceService);
-    model.put("nodes", nodes);
+    model.put("dictionaryMetadataCache", dictionaryMetadataCache);
+    model.put("nodes", nodes.values());
+    model.put("collapsedChanges", collapsedChanges);
     model.put("lastTxnId", lastTxnId);
     model.put("lastAclChangesetId", lastAclChangesetId);
     model.put("storeId", storeId);
     model.put("storeProtocol", storeProtocol);
     model.put("propertiesUrlTemplate", propertiesUrlTemplate);
-
-    //This allows to call the static method QName.createQName from the FTL template
-    try {
-      BeansWrapper wrapper = BeansWrapper.getDefaultInstance();
-      TemplateHashModel staticModels = wrapper.getStaticModels();
-      TemplateHashModel qnameStatics = (TemplateHashModel) staticModels.get("org.alfresco.service.namespace.QName");
-      model.put("QName",qnameStatics);
-    } catch (Exception e) {
-      throw new AlfrescoRuntimeException(
-          "Cannot add BeansWrapper for static QName.createQName method to be used from a Freemarker template", e);
+    model.put("format", req.getFormat());
+    if (include != null) {
+      model.put("include", include);
+      model.put("projection", projection);
     }
 
-    logger.debug(String.format("Attaching %s nodes to the WebScript template", nodes.size()));
+    logger.debug(String.format("Attaching %s nodes to the WebScript template (%s changes collapsed)", nodes.size(), collapsedChanges));
 
     return model;
   }
 
-  private NamespaceService namespaceService;
+  /**
+   * Newline delimited JSON is always written by the generator, line by line; so are pages including full documents
+   */
+  @Override
+  protected boolean isStreamed(WebScriptRequest req) {
+    String include = req.getParameter("include");
+    return FORMAT_NDJSON.equals(req.getFormat()) || (include != null && !include.trim().isEmpty());
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void writeModel(Map<String, Object> model, JsonGenerator generator) throws IOException {
+    Collection<NodeEntity> nodes = (Collection<NodeEntity>) model.get("nodes");
+
+    //Newline delimited JSON: one node per line, then the last ids. Only the writing is streamed, rows of the page
+    //are read (and collapsed) upfront, their number being bounded by maxRows per query
+    if (FORMAT_NDJSON.equals(model.get("format")) && !(generator instanceof SmileGenerator)) {
+      generator.setRootValueSeparator(new SerializedString("\n"));
+      for (NodeEntity node : nodes) {
+        writeNode(model, node, generator);
+      }
+      generator.writeStartObject();
+      writeWatermarks(model, generator);
+      generator.writeEndObject();
+      generator.writeRaw('\n');
+      return;
+    }
+
+    generator.writeStartObject();
+    generator.writeArrayFieldStart("docs");
+    for (NodeEntity node : nodes) {
+      writeNode(model, node, generator);
+    }
+    generator.writeEndArray();
+    writeWatermarks(model, generator);
+    generator.writeEndObject();
+  }
+
+  @SuppressWarnings("unchecked")
+  private void writeNode(Map<String, Object> model, NodeEntity node, JsonGenerator generator) throws IOException {
+    String storeProtocol = (String) model.get("storeProtocol");
+    String storeId = (String) model.get("storeId");
+    Set<String> include = (Set<String>) model.get("include");
+    boolean deleted = node.isRemoved(qnameDao);
+
+    //Loading the inline document first, as the node may have been deleted since the page was read
+    Map<String, Object> details = null;
+    if (include != null && !deleted) {
+      try {
+        details = nodeDetailsLoader.load(new NodeRef(storeProtocol, storeId, node.getUuid()),
+            (FieldProjection) model.get("projection"), include);
+      } catch (InvalidNodeRefException e) {
+        logger.debug("Node " + node.getUuid() + " has been deleted in the meantime");
+        deleted = true;
+      }
+    }
+
+    generator.writeStartObject();
+    generator.writeStringField("propertiesUrl", propertiesUrlTemplate + "/" + storeProtocol + "/" + storeId + "/" + node.getUuid());
+    generator.writeStringField("uuid", node.getUuid());
+    generator.writeStringField("type", dictionaryMetadataCache.getPrefixStringById(node.getTypeQNameId()));
+    generator.writeBooleanField("deleted", deleted);
+    if (node.getContentUrl() != null) {
+      generator.writeStringField("contentUrl", node.getContentUrl());
+      generator.writeNumberField("contentSize", node.getContentSize());
+      generator.writeStringField("contentMimetype", node.getContentMimetype() == null ? "" : node.getContentMimetype());
+    }
+    if (details != null) {
+      //The content fingerprint of the page is the one being rendered out
+      if (node.getContentUrl() != null) {
+        details.remove("contentUrl");
+      }
+      nodeDetailsLoader.write(details, generator);
+    }
+    generator.writeEndObject();
+  }
+
+  private void writeWatermarks(Map<String, Object> model, JsonGenerator generator) throws IOException {
+    generator.writeStringField("last_txn_id", model.get("lastTxnId").toString());
+    generator.writeStringField("last_acl_changeset_id", model.get("lastAclChangesetId").toString());
+    generator.writeNumberField("collapsed_changes", (Integer) model.get("collapsedChanges"));
+    generator.writeStringField("store_id", (String) model.get("storeId"));
+    generator.writeStringField("store_protocol", (String) model.get("storeProtocol"));
+  }
+
+  /**
+   * Bulk loads the nodes (and their properties and aspects) that are not deleted into the node caches
+   */
+  private void cacheNodes(Collection<NodeEntity> nodes) {
+    List<Long> nodeIds = new ArrayList<Long>(nodes.size());
+    for (NodeEntity node : nodes) {
+      if (!node.isRemoved(qnameDao)) {
+        nodeIds.add(node.getId());
+      }
+    }
+    if (!nodeIds.isEmpty()) {
+      nodeDao.cacheNodesById(nodeIds);
+    }
+  }
+
+  /**
+   * Resolves site short names and folder nodeRefs (comma separated) into the nodes delimiting the scope
+   * @return null if no scope has been requested
+   */
+  private Set<NodeRef> getScope(String sites, String folders) {
+    if ((sites == null || sites.trim().isEmpty()) && (folders == null || folders.trim().isEmpty())) {
+      return null;
+    }
+    Set<NodeRef> scope = new HashSet<NodeRef>();
+    if (sites != null) {
+      for (String site : sites.split(",")) {
+        if (site.trim().isEmpty()) {
+          continue;
+        }
+        SiteInfo siteInfo = siteService.getSite(site.trim());
+        if (siteInfo == null) {
+          logger.debug("Site " + site + " does not exist, it is ignored");
+        } else {
+          scope.add(siteInfo.getNodeRef());
+        }
+      }
+    }
+    if (folders != null) {
+      for (String folder : folders.split(",")) {
+        if (folder.trim().isEmpty()) {
+          continue;
+        }
+        if (!NodeRef.isNodeRef(folder.trim())) {
+          throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid folder nodeRef: " + folder);
+        }
+        scope.add(new NodeRef(folder.trim()));
+      }
+    }
+    return scope;
+  }
+
+  /**
+   * Excludes nodes that are not part of the scope, so that they are rendered out as deleted (a node may have
+   * been moved out of the scope since it was indexed; deleting a node that has never been indexed is harmless)
+   */
+  private void excludeOutOfScope(Collection<NodeEntity> nodes, StoreRef storeRef, Set<NodeRef> scope) {
+    int excluded = 0;
+    for (NodeEntity node : nodes) {
+      if (!node.isRemoved(qnameDao) && !nodeAncestryCache.isInScope(new NodeRef(storeRef, node.getUuid()), scope)) {
+        node.setExcluded(true);
+        excluded++;
+      }
+    }
+    logger.debug(String.format("Excluded %s nodes out of scope %s", excluded, scope));
+  }
+
+  /**
+   * Excludes the descendants of excluded parents, so that they are rendered out as deleted
+   */
+  private void excludeDescendants(Collection<NodeEntity> nodes, StoreRef storeRef, Set<NodeRef> excludedParents) {
+    int excluded = 0;
+    for (NodeEntity node : nodes) {
+      if (!node.isRemoved(qnameDao) && nodeAncestryCache.hasAncestorIn(new NodeRef(storeRef, node.getUuid()), excludedParents)) {
+        node.setExcluded(true);
+        excluded++;
+      }
+    }
+    logger.debug(String.format("Excluded %s descendants of %s", excluded, excludedParents));
+  }
+
+  /**
+   * Adds nodes that are not yet part of the page, keeping the first position of each node
+   * @return the number of changes collapsed into nodes already part of the page
+   */
+  private int addNodes(Map<Long, NodeEntity> nodes, List<NodeEntity> nodesToAdd) {
+    int collapsed = 0;
+    for (NodeEntity node : nodesToAdd) {
+      if (nodes.containsKey(node.getId())) {
+        collapsed++;
+      } else {
+        nodes.put(node.getId(), node);
+      }
+    }
+    return collapsed;
+  }
+
+  private DictionaryMetadataCache dictionaryMetadataCache;
   private QNameDAO qnameDao;
   private IndexingDaoImpl indexingService;
   private NodeDAO nodeDao;
+  private SiteService siteService;
+  private NodeAncestryCache nodeAncestryCache;
+  private NodeDetailsLoader nodeDetailsLoader;
 
   private String propertiesUrlTemplate;
   private int maxNodesPerAcl = 1000;
   private int maxNodesPerTxns = 1000;
 
 
-  public void setNamespaceService(NamespaceService namespaceService) {
-    this.namespaceService = namespaceService;
+  public void setDictionaryMetadataCache(DictionaryMetadataCache dictionaryMetadataCache) {
+    this.dictionaryMetadataCache = dictionaryMetadataCache;
   }
   public void setQnameDao(QNameDAO qnameDao) {
     this.qnameDao = qnameDao;
@@ -135,6 +356,15 @@ public class NodeChangesWebScript extends DeclarativeWebScript {
   public void setNodeDao(NodeDAO nodeDao) {
     this.nodeDao = nodeDao;
   }
+  public void setSiteService(SiteService siteService) {
+    this.siteService = siteService;
+  }
+  public void setNodeAncestryCache(NodeAncestryCache nodeAncestryCache) {
+    this.nodeAncestryCache = nodeAncestryCache;
+  }
+  public void setNodeDetailsLoader(NodeDetailsLoader nodeDetailsLoader) {
+    this.nodeDetailsLoader = nodeDetailsLoader;
+  }
 
   public void setPropertiesUrlTemplate(String propertiesUrlTemplate) {
     this.propertiesUrlTemplate = propertiesUrlTemplate;
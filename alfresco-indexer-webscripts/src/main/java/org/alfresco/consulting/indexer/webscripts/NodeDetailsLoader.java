@@ -0,0 +1,370 @@
+package org.alfresco.consulting.indexer.webscripts;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.consulting.indexer.cache.DictionaryMetadataCache;
+import org.alfresco.consulting.indexer.cache.NodePathCache;
+import org.alfresco.consulting.indexer.metrics.IndexerMetrics;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.domain.permissions.Acl;
+import org.alfresco.repo.domain.permissions.AclDAO;
+import org.alfresco.repo.security.permissions.AccessControlEntry;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.gdata.util.common.base.StringUtil;
+
+/**
+ * Loads all data about a node (except binary content), shared by the Node Details WebScript and by the
+ * Node Changes WebScript when documents are requested inline (include=properties,aspects,acl,path):
+ * - properties: node metadata and URLs
+ * - aspects: node aspects
+ * - acl: authorities having a granted permission on the node
+ * - path: node path and Share URL, see {@link NodePathCache}
+ *
+ * Properties and aspects can be restricted with a {@link FieldProjection}; each part is timed by {@link IndexerMetrics}
+ * (node.properties, node.aspects, acl.readableAuthorities and node.path)
+ *
+ * List of pending activities (or TODOs)
+ * - Refactor recursive getAllAcls (direct recursion) . Evaluate the possibility to write a SQL statement for that
+ * - Move the following methods (and related SQL statements) into IndexingDaoImpl
+ * -- nodeService.getProperties
+ * -- nodeService.getAspects
+ * -- nodeDao.getNodeAclId
+ * -- nodeService.getType and dictionaryService.isSubClass (should be merged into one)
+ */
+public class NodeDetailsLoader {
+
+  protected static final Log logger = LogFactory.getLog(NodeDetailsLoader.class);
+  /** SimpleDateFormat is not thread-safe, and details are loaded by concurrent changes and details requests */
+  protected static final ThreadLocal<SimpleDateFormat> sdf = new ThreadLocal<SimpleDateFormat>() {
+    @Override
+    protected SimpleDateFormat initialValue() {
+      return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    }
+  };
+
+  public static final String PROPERTIES = "properties";
+  public static final String ASPECTS = "aspects";
+  public static final String ACL = "acl";
+  public static final String PATH = "path";
+  public static final Set<String> ALL = Collections.unmodifiableSet(
+      new LinkedHashSet<String>(Arrays.asList(PROPERTIES, ASPECTS, ACL, PATH)));
+
+  /**
+   * @return the requested parts (comma separated), null if include is empty
+   * @throws WebScriptException (400) if a part is unknown
+   */
+  public Set<String> parseInclude(String include) {
+    if (include == null || include.trim().isEmpty()) {
+      return null;
+    }
+    Set<String> parts = new LinkedHashSet<String>();
+    for (String part : include.split(",")) {
+      part = part.trim();
+      if (part.isEmpty()) {
+        continue;
+      }
+      if (!ALL.contains(part)) {
+        throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid include: " + part + ", expected one of " + ALL);
+      }
+      parts.add(part);
+    }
+    return parts;
+  }
+
+  /**
+   * @see FieldProjection#parse
+   */
+  FieldProjection parseFields(String fields) {
+    return FieldProjection.parse(fields, namespaceService, dictionaryService);
+  }
+
+  /**
+   * @param projection null to load all properties and aspects
+   * @param parts the parts to load, see {@link #ALL}
+   * @return the node details, keyed as expected by details.get.json.ftl
+   */
+  Map<String, Object> load(NodeRef nodeRef, FieldProjection projection, Set<String> parts) {
+    Map<String, Object> model = new HashMap<String, Object>(1, 1.0f);
+    model.put("nsResolver", namespaceService);
+    model.put("contentUrlPrefix", contentUrlPrefix);
+    model.put("shareUrlPrefix", shareUrlPrefix);
+    model.put("thumbnailUrlPrefix", thumbnailUrlPrefix);
+    model.put("previewUrlPrefix", previewUrlPrefix);
+
+    long start = System.nanoTime();
+    Map<QName,Serializable> propertyMap = nodeService.getProperties(nodeRef);
+
+    if (parts.contains(PROPERTIES)) {
+      //Processing properties, leaving out fields that are not requested before converting them
+      model.put("properties", toStringMap(projection == null ? propertyMap : projection.filterProperties(propertyMap)));
+      addUrlPaths(model, nodeRef, propertyMap);
+    }
+    metrics.time("node.properties", start, propertyMap.size());
+
+    if (parts.contains(ASPECTS)) {
+      start = System.nanoTime();
+      Set<QName> aspectsSet = nodeService.getAspects(nodeRef);
+      model.put("aspects", toStringSet(projection == null ? aspectsSet : projection.filterAspects(aspectsSet)));
+      metrics.time("node.aspects", start, aspectsSet.size());
+    }
+
+    if (parts.contains(ACL)) {
+      start = System.nanoTime();
+      Long dbId = (Long)propertyMap.get(ContentModel.PROP_NODE_DBID);
+      List<String> readableAuthorities = getReadableAuthorities(nodeDao.getNodeAclId(dbId));
+      model.put("readableAuthorities", readableAuthorities);
+      metrics.time("acl.readableAuthorities", start, readableAuthorities.size());
+    }
+
+    if (parts.contains(PATH)) {
+      //Getting path and siteName, resolved from the ones of the parent (mostly cached)
+      start = System.nanoTime();
+      NodePathCache.NodePath nodePath = nodePathCache.getPath(nodeRef);
+      metrics.time("node.path", start);
+      model.put("path", nodePath.getPath());
+      String siteName = nodePath.getSiteName();
+
+      //Rendering out the (relative) URL path to Alfresco Share
+      if (!StringUtil.isEmpty(siteName)) {
+        String shareUrlPath = String.format(
+            "/page/site/%s/document-details?nodeRef=%s",
+            siteName,
+            nodeRef.toString());
+        model.put("shareUrlPath", shareUrlPath);
+      }
+    }
+    return model;
+  }
+
+  /**
+   * Writes the loaded parts as fields of the current object, with the same structure as details.get.json.ftl
+   */
+  @SuppressWarnings("unchecked")
+  public void write(Map<String, Object> model, JsonGenerator generator) throws IOException {
+    if (model.containsKey("readableAuthorities")) {
+      generator.writeArrayFieldStart("readableAuthorities");
+      for (String readableAuthority : (List<String>) model.get("readableAuthorities")) {
+        generator.writeString(readableAuthority);
+      }
+      generator.writeEndArray();
+    }
+    if (model.containsKey("path")) {
+      generator.writeStringField("path", (String) model.get("path"));
+    }
+    writeUrlField(generator, "shareUrlPath", shareUrlPrefix, model.get("shareUrlPath"));
+    writeUrlField(generator, "contentUrlPath", contentUrlPrefix, model.get("contentUrlPath"));
+    writeUrlField(generator, "thumbnailUrlPath", thumbnailUrlPrefix, model.get("thumbnailUrlPath"));
+    writeUrlField(generator, "previewUrlPath", previewUrlPrefix, model.get("previewUrlPath"));
+    if (model.containsKey("contentUrl")) {
+      generator.writeStringField("contentUrl", (String) model.get("contentUrl"));
+      generator.writeNumberField("contentSize", (Long) model.get("contentSize"));
+      generator.writeStringField("contentMimetype", (String) model.get("contentMimetype"));
+    }
+
+    if (model.containsKey("aspects")) {
+      generator.writeArrayFieldStart("aspects");
+      for (String aspect : (Set<String>) model.get("aspects")) {
+        generator.writeString(aspect);
+      }
+      generator.writeEndArray();
+    }
+    if (model.containsKey("properties")) {
+      generator.writeArrayFieldStart("properties");
+      for (Map.Entry<String, Pair<String, String>> property : ((Map<String, Pair<String, String>>) model.get("properties")).entrySet()) {
+        generator.writeStartObject();
+        generator.writeStringField("name", property.getKey());
+        generator.writeStringField("type", property.getValue().getFirst());
+        generator.writeStringField("value", property.getValue().getSecond());
+        generator.writeEndObject();
+      }
+      generator.writeEndArray();
+    }
+  }
+
+  private void addUrlPaths(Map<String, Object> model, NodeRef nodeRef, Map<QName, Serializable> propertyMap) {
+    String storeProtocol = nodeRef.getStoreRef().getProtocol();
+    String storeId = nodeRef.getStoreRef().getIdentifier();
+    String uuid = nodeRef.getId();
+
+    //Calculating the contentUrlPath and adding it only if the contentType is child of cm:content
+    boolean isContentAware = isContentAware(nodeRef);
+    if (isContentAware) {
+      String contentUrlPath = String.format("/api/node/%s/%s/%s/content",storeProtocol,storeId,uuid);
+      model.put("contentUrlPath", contentUrlPath);
+
+      //Content fingerprint, telling clients whether the binary has changed since they last fetched it
+      ContentData contentData = (ContentData) propertyMap.get(ContentModel.PROP_CONTENT);
+      if (contentData != null && contentData.getContentUrl() != null) {
+        model.put("contentUrl", contentData.getContentUrl());
+        model.put("contentSize", contentData.getSize());
+        model.put("contentMimetype", contentData.getMimetype() == null ? "" : contentData.getMimetype());
+      }
+    }
+
+    String thumbnailUrlPath = String.format(
+        "/api/node/%s/%s/%s/content/thumbnails/doclib?c=queue&ph=true&lastModified=1",
+        storeProtocol,
+        storeId,
+        uuid);
+    model.put("thumbnailUrlPath", thumbnailUrlPath);
+
+    String previewUrlPath = String.format(
+        "/api/node/%s/%s/%s/content/thumbnails/webpreview",
+        storeProtocol,
+        storeId,
+        uuid);
+    model.put("previewUrlPath", previewUrlPath);
+  }
+
+  private List<String> getReadableAuthorities(Long nodeAclId) {
+    List<String> readableAuthorities = new ArrayList<String>();
+
+    //Get also the inherited ones
+    List<Acl> acls = getAllAcls(nodeAclId);
+    //@TODO - avoid reverse by implementing direct recursion
+    Collections.reverse(acls);
+
+    //Walk through ACLs and related ACEs, rendering out authority names having a granted permission on the node
+    for (Acl acl : acls) {
+      List<AccessControlEntry> aces = aclDao.getAccessControlList(acl.getId()).getEntries();
+      for(AccessControlEntry ace : aces) {
+        if (ace.getAccessStatus().equals(AccessStatus.ALLOWED)) {
+          if (!readableAuthorities.contains(ace.getAuthority())) {
+            readableAuthorities.add(ace.getAuthority());
+          }
+        }
+      }
+    }
+    return readableAuthorities;
+  }
+
+  private void writeUrlField(JsonGenerator generator, String fieldName, String prefix, Object path) throws IOException {
+    if (path != null) {
+      generator.writeStringField(fieldName, prefix + path);
+    }
+  }
+
+  private boolean isContentAware(NodeRef nodeRef) {
+    return dictionaryMetadataCache.isContentAware(nodeService.getType(nodeRef));
+  }
+
+  private Set<String> toStringSet(Set<QName> aspectsSet) {
+    Set<String> ret = new HashSet<String>();
+    for(QName aspect : aspectsSet) {
+      ret.add(dictionaryMetadataCache.getPrefixString(aspect));
+    }
+    return ret;
+  }
+
+  private Map<String, Pair<String, String>> toStringMap(Map<QName, Serializable> propertyMap) {
+    Map<String, Pair<String, String>> ret = new HashMap<String, Pair<String, String>>(1,1.0f);
+    for(QName propertyName : propertyMap.keySet()) {
+      Serializable propertyValue = propertyMap.get(propertyName);
+      if (propertyValue != null) {
+        String propertyType = propertyValue.getClass().getName();
+        String stringValue = propertyValue.toString();
+        if (propertyType.equals("java.util.Date")) {
+          stringValue = sdf.get().format(propertyValue);
+        }
+        ret.put(dictionaryMetadataCache.getPrefixString(propertyName), new Pair<String, String>(propertyType,stringValue));
+      }
+    }
+    return ret;
+  }
+
+  private List<Acl> getAllAcls(Long nodeAclId) {
+    logger.debug("getAllAcls from "+nodeAclId);
+    Acl acl = aclDao.getAcl(nodeAclId);
+    Long parentNodeAclId = acl.getInheritsFrom();
+    logger.debug("parent acl is  "+parentNodeAclId);
+    if (parentNodeAclId == null || !acl.getInherits()) {
+      List<Acl> ret = new ArrayList<Acl>();
+      ret.add(acl);
+      return ret;
+    } else {
+      List<Acl> inheritedAcls = getAllAcls(parentNodeAclId);
+      logger.debug("Current acl with id "+nodeAclId+" is "+acl);
+      inheritedAcls.add(acl);
+      return inheritedAcls;
+    }
+  }
+
+  private DictionaryService dictionaryService;
+  private NamespaceService namespaceService;
+  private NodeService nodeService;
+  private NodeDAO nodeDao;
+  private AclDAO aclDao;
+  private NodePathCache nodePathCache;
+  private DictionaryMetadataCache dictionaryMetadataCache;
+  private IndexerMetrics metrics;
+  private String contentUrlPrefix;
+  private String shareUrlPrefix;
+  private String previewUrlPrefix;
+  private String thumbnailUrlPrefix;
+
+  public void setDictionaryService(DictionaryService dictionaryService) {
+    this.dictionaryService = dictionaryService;
+  }
+  public void setNamespaceService(NamespaceService namespaceService) {
+    this.namespaceService = namespaceService;
+  }
+  public void setNodeService(NodeService nodeService) {
+    this.nodeService = nodeService;
+  }
+  public void setNodeDao(NodeDAO nodeDao) {
+    this.nodeDao = nodeDao;
+  }
+  public void setAclDao(AclDAO aclDao) {
+    this.aclDao = aclDao;
+  }
+  public void setNodePathCache(NodePathCache nodePathCache) {
+    this.nodePathCache = nodePathCache;
+  }
+  public void setDictionaryMetadataCache(DictionaryMetadataCache dictionaryMetadataCache) {
+    this.dictionaryMetadataCache = dictionaryMetadataCache;
+  }
+  public void setMetrics(IndexerMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public void setContentUrlPrefix(String contentUrlPrefix) {
+    this.contentUrlPrefix = contentUrlPrefix;
+  }
+
+  public void setShareUrlPrefix(String shareUrlPrefix) {
+    this.shareUrlPrefix = shareUrlPrefix;
+  }
+
+  public void setPreviewUrlPrefix(String previewUrlPrefix) {
+    this.previewUrlPrefix = previewUrlPrefix;
+  }
+
+  public void setThumbnailUrlPrefix(String thumbnailUrlPrefix) {
+    this.thumbnailUrlPrefix = thumbnailUrlPrefix;
+  }
+}
@@ -0,0 +1,111 @@
+package org.alfresco.consulting.indexer.webscripts;
+
+import org.alfresco.consulting.indexer.queue.NodeChangeQueue;
+import org.alfresco.consulting.indexer.throttle.AdmissionController;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Long-poll endpoint on top of the {@link NodeChangeQueue}: blocks until nodes of the given store change
+ * after the given event id, or until the timeout expires.
+ *
+ * Please check src/main/amp/config/alfresco/extension/templates/webscripts/com/findwise/alfresco/events.get.desc.xml
+ * to know more about the RestFul interface to invoke the WebScript
+ *
+ * When no lastEventId is given, the WebScript returns immediately with the current last_event_id, which
+ * clients should use as the starting point; when overflow is true the client missed some events and
+ * must rely on the Node Changes WebScript to catch up.
+ *
+ * As each poll holds a Tomcat thread until the timeout expires, concurrent polls are limited by the
+ * {@link AdmissionController} (if any)
+ */
+public class NodeEventsWebScript extends DeclarativeWebScript {
+
+  protected static final Log logger = LogFactory.getLog(NodeEventsWebScript.class);
+
+  @Override
+  public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+    String endpoint = AdmissionController.getEndpoint(this);
+    if (admissionController != null && !admissionController.acquire(endpoint)) {
+      admissionController.reject(endpoint, res);
+      return;
+    }
+    try {
+      super.execute(req, res);
+    } finally {
+      if (admissionController != null) {
+        admissionController.release(endpoint);
+      }
+    }
+  }
+
+  @Override
+  protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+
+    //Fetching request params
+    Map<String, String> templateArgs = req.getServiceMatch().getTemplateVars();
+    String storeId = templateArgs.get("storeId");
+    String storeProtocol = templateArgs.get("storeProtocol");
+    String lastEventIdString = req.getParameter("lastEventId");
+    String timeoutString = req.getParameter("timeout");
+
+    //Parsing parameters passed from the WebScript invocation
+    long lastEventId = (lastEventIdString == null ? nodeChangeQueue.getLastId() : Long.valueOf(lastEventIdString));
+    long timeout = (timeoutString == null || lastEventIdString == null ? 0 : Long.valueOf(timeoutString));
+    timeout = Math.min(Math.max(timeout, 0), maxTimeout);
+
+    logger.debug(String.format("Invoking Events Webscript, using the following params\n" +
+        "lastEventId: %s\n" +
+        "timeout: %s\n" +
+        "storeId: %s\n" +
+        "storeProtocol: %s\n", lastEventId, timeout, storeId, storeProtocol));
+
+    NodeChangeQueue.Page page;
+    try {
+      page = nodeChangeQueue.poll(new StoreRef(storeProtocol, storeId), lastEventId, timeout, maxEvents);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE, "Interrupted while waiting for node changes");
+    }
+
+    Map<String, Object> model = new HashMap<String, Object>(1, 1.0f);
+    model.put("events", page.getChanges());
+    model.put("lastEventId", page.getLastId());
+    model.put("overflow", page.isOverflow());
+    model.put("storeId", storeId);
+    model.put("storeProtocol", storeProtocol);
+    return model;
+  }
+
+  private NodeChangeQueue nodeChangeQueue;
+  private AdmissionController admissionController;
+  private long maxTimeout = 60000;
+  private int maxEvents = 1000;
+
+  public void setNodeChangeQueue(NodeChangeQueue nodeChangeQueue) {
+    this.nodeChangeQueue = nodeChangeQueue;
+  }
+
+  public void setAdmissionController(AdmissionController admissionController) {
+    this.admissionController = admissionController;
+  }
+
+  public void setMaxTimeout(long maxTimeout) {
+    this.maxTimeout = maxTimeout;
+  }
+
+  public void setMaxEvents(int maxEvents) {
+    this.maxEvents = maxEvents;
+  }
+}
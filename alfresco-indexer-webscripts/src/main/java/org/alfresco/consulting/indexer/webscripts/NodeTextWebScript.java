@@ -0,0 +1,241 @@
+package org.alfresco.consulting.indexer.webscripts;
+
+import org.alfresco.consulting.indexer.metrics.IndexerMetrics;
+import org.alfresco.consulting.indexer.metrics.RequestTrace;
+import org.alfresco.consulting.indexer.throttle.AdmissionController;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.rendition.RenditionService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.ContentTransformer;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.TransformationOptions;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Given a nodeRef, streams out its content as plain text, so that clients don't need to extract text
+ * from the original binary again:
+ * - the plain text rendition (indexer.text.rendition), if the node has one
+ * - otherwise, a plain text transformation of the content, if Alfresco has a transformer for its mimetype
+ * - otherwise, the raw content
+ *
+ * The X-Indexer-Content-Source header tells which one (rendition, transformation or raw) has been sent.
+ * Concurrent requests are limited by the {@link AdmissionController} (if any), as transformations are expensive,
+ * before the (read-only) transaction of the request starts;
+ * transformations are timed (text.transform) and traced under the request id sent by the client, if any
+ *
+ * Please check src/main/amp/config/alfresco/extension/templates/webscripts/com/findwise/alfresco/text.get.desc.xml
+ * to know more about the RestFul interface to invoke the WebScript
+ */
+public class NodeTextWebScript extends AbstractWebScript {
+
+  protected static final Log logger = LogFactory.getLog(NodeTextWebScript.class);
+
+  public static final String SOURCE_HEADER = "X-Indexer-Content-Source";
+  public static final String SOURCE_RENDITION = "rendition";
+  public static final String SOURCE_TRANSFORMATION = "transformation";
+  public static final String SOURCE_RAW = "raw";
+
+  @Override
+  public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+    String endpoint = AdmissionController.getEndpoint(this);
+    long start = System.nanoTime();
+    res = ServerTimingResponse.wrap(res, metrics.startTrace(req.getHeader(RequestTrace.REQUEST_ID_HEADER)));
+    try {
+      if (admissionController != null && !admissionController.acquire(endpoint)) {
+        admissionController.reject(endpoint, res);
+        metrics.time("rejected." + endpoint, start);
+        return;
+      }
+      try {
+        sendTextInTransaction(req, res);
+      } finally {
+        if (admissionController != null) {
+          admissionController.release(endpoint);
+        }
+        metrics.time("endpoint." + endpoint, start);
+      }
+    } finally {
+      metrics.endTrace();
+    }
+  }
+
+  /**
+   * The text to be sent: a reader on the content, rendition or transformation, and which one it is
+   */
+  private static class Text {
+    private final NodeRef nodeRef;
+    private final ContentReader reader;
+    private final String source;
+
+    private Text(NodeRef nodeRef, ContentReader reader, String source) {
+      this.nodeRef = nodeRef;
+      this.reader = reader;
+      this.source = source;
+    }
+  }
+
+  /**
+   * Finds (or transforms) the text within a read-only transaction, only started once the admission permit has
+   * been acquired; the text is sent once the transaction is over, so that a retried transaction doesn't send it
+   * twice, and a slow client doesn't hold a database connection
+   */
+  private void sendTextInTransaction(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+    Text text = transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Text>() {
+      public Text execute() throws Throwable {
+        return getText(req);
+      }
+    }, true);
+    sendText(text, res);
+  }
+
+  private Text getText(WebScriptRequest req) {
+    Map<String, String> templateArgs = req.getServiceMatch().getTemplateVars();
+    NodeRef nodeRef = new NodeRef(templateArgs.get("storeProtocol"), templateArgs.get("storeId"), templateArgs.get("uuid"));
+
+    if (!nodeService.exists(nodeRef)) {
+      throw new WebScriptException(Status.STATUS_NOT_FOUND, "Node " + nodeRef + " does not exist");
+    }
+    ContentReader reader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+    if (reader == null || !reader.exists()) {
+      throw new WebScriptException(Status.STATUS_NOT_FOUND, "Node " + nodeRef + " has no content");
+    }
+
+    String source = SOURCE_RAW;
+    if (!MimetypeMap.MIMETYPE_TEXT_PLAIN.equals(reader.getMimetype())) {
+      ContentReader textReader = getRendition(nodeRef);
+      if (textReader != null) {
+        source = SOURCE_RENDITION;
+      } else {
+        textReader = transform(nodeRef, reader);
+        if (textReader != null) {
+          source = SOURCE_TRANSFORMATION;
+        }
+      }
+      if (textReader != null) {
+        reader = textReader;
+      }
+    }
+    return new Text(nodeRef, reader, source);
+  }
+
+  private void sendText(Text text, WebScriptResponse res) throws IOException {
+    ContentReader reader = text.reader;
+    logger.debug(String.format("Sending %s of %s: %s, %d bytes", text.source, text.nodeRef, reader.getMimetype(), reader.getSize()));
+    res.setStatus(Status.STATUS_OK);
+    res.setContentType(reader.getMimetype());
+    if (reader.getEncoding() != null) {
+      res.setContentEncoding(reader.getEncoding());
+    }
+    res.setHeader("Content-Length", String.valueOf(reader.getSize()));
+    res.setHeader(SOURCE_HEADER, text.source);
+    reader.getContent(res.getOutputStream());
+  }
+
+  /**
+   * @return a reader on the plain text rendition of the node, null if it has none
+   */
+  private ContentReader getRendition(NodeRef nodeRef) {
+    if (renditionName == null || renditionName.trim().isEmpty()) {
+      return null;
+    }
+    ChildAssociationRef rendition = renditionService.getRenditionByName(nodeRef,
+        QName.createQName(renditionName.trim(), namespaceService));
+    if (rendition == null) {
+      return null;
+    }
+    ContentReader reader = contentService.getReader(rendition.getChildRef(), ContentModel.PROP_CONTENT);
+    if (reader == null || !reader.exists() || !MimetypeMap.MIMETYPE_TEXT_PLAIN.equals(reader.getMimetype())) {
+      return null;
+    }
+    return reader;
+  }
+
+  /**
+   * Transforms the content into a temporary plain text file
+   * @return a reader on the transformed content, null if it cannot be transformed
+   */
+  private ContentReader transform(NodeRef nodeRef, ContentReader reader) {
+    TransformationOptions options = new TransformationOptions();
+    options.setSourceNodeRef(nodeRef);
+    long start = System.nanoTime();
+    try {
+      ContentTransformer transformer = contentService.getTransformer(reader.getContentUrl(), reader.getMimetype(),
+          reader.getSize(), MimetypeMap.MIMETYPE_TEXT_PLAIN, options);
+      if (transformer == null) {
+        return null;
+      }
+      ContentWriter writer = contentService.getTempWriter();
+      writer.setMimetype(MimetypeMap.MIMETYPE_TEXT_PLAIN);
+      writer.setEncoding("UTF-8");
+      transformer.transform(reader, writer, options);
+      return writer.getReader();
+    } catch (AlfrescoRuntimeException e) {
+      //Transformers fail with ContentIOException, NoTransformerException, ContentTransformerException and the like
+      logger.debug(String.format("Cannot transform %s (%s) into plain text, sending the raw content",
+          nodeRef, reader.getMimetype()), e);
+      return null;
+    } finally {
+      metrics.time("text.transform", start);
+    }
+  }
+
+  private ContentService contentService;
+  private NodeService nodeService;
+  private RenditionService renditionService;
+  private NamespaceService namespaceService;
+  private String renditionName;
+  private AdmissionController admissionController;
+  private TransactionService transactionService;
+  private IndexerMetrics metrics;
+
+  public void setContentService(ContentService contentService) {
+    this.contentService = contentService;
+  }
+
+  public void setNodeService(NodeService nodeService) {
+    this.nodeService = nodeService;
+  }
+
+  public void setRenditionService(RenditionService renditionService) {
+    this.renditionService = renditionService;
+  }
+
+  public void setNamespaceService(NamespaceService namespaceService) {
+    this.namespaceService = namespaceService;
+  }
+
+  public void setRenditionName(String renditionName) {
+    this.renditionName = renditionName;
+  }
+
+  public void setAdmissionController(AdmissionController admissionController) {
+    this.admissionController = admissionController;
+  }
+
+  public void setTransactionService(TransactionService transactionService) {
+    this.transactionService = transactionService;
+  }
+
+  public void setMetrics(IndexerMetrics metrics) {
+    this.metrics = metrics;
+  }
+}
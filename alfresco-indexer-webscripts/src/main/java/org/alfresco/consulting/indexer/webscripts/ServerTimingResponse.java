@@ -0,0 +1,54 @@
+package org.alfresco.consulting.indexer.webscripts;
+
+import org.alfresco.consulting.indexer.metrics.RequestTrace;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Forwards all calls to the container response, setting the Server-Timing header of the traced request
+ * right before its writer or output stream is first taken: headers cannot be set once the payload is being
+ * written, hence only the stages completed by then (queries, node details) are sent back
+ */
+class ServerTimingResponse implements InvocationHandler {
+  private final WebScriptResponse res;
+  private final RequestTrace trace;
+  private boolean sent = false;
+
+  private ServerTimingResponse(WebScriptResponse res, RequestTrace trace) {
+    this.res = res;
+    this.trace = trace;
+  }
+
+  /**
+   * @return the response as it is if the request is not traced, otherwise a proxy of it
+   */
+  static WebScriptResponse wrap(WebScriptResponse res, RequestTrace trace) {
+    if (trace == null) {
+      return res;
+    }
+    return (WebScriptResponse) Proxy.newProxyInstance(WebScriptResponse.class.getClassLoader(),
+        new Class<?>[]{WebScriptResponse.class}, new ServerTimingResponse(res, trace));
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    String name = method.getName();
+    if (!sent && ("getOutputStream".equals(name) || "getWriter".equals(name))) {
+      sent = true;
+      res.setHeader(RequestTrace.REQUEST_ID_HEADER, trace.getRequestId());
+      String serverTiming = trace.getServerTiming();
+      if (!serverTiming.isEmpty()) {
+        res.setHeader(RequestTrace.SERVER_TIMING_HEADER, serverTiming);
+      }
+    }
+    try {
+      return method.invoke(res, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package org.alfresco.consulting.indexer.webscripts;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.alfresco.consulting.indexer.throttle.AdmissionController;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A CompressingWebScript that renders its model as Smile (binary JSON) when the request Accept header
+ * asks for application/x-jackson-smile; otherwise, the JSON template is rendered as usual.
+ *
+ * Smile is written with a streaming generator, mirroring the structure of the JSON template, which
+ * avoids FreeMarker and the JSON text escaping on the Alfresco side and text parsing on the client side.
+ * Requests for which {@link #isStreamed} holds are written by the same generator in their text format too
+ */
+public abstract class SmileWebScript extends CompressingWebScript {
+
+  public static final String SMILE_MIMETYPE = "application/x-jackson-smile";
+
+  private static final SmileFactory smileFactory = new SmileFactory();
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  static {
+    smileFactory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    jsonFactory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+  }
+
+  @Override
+  protected void render(WebScriptRequest req, WebScriptResponse res) throws IOException {
+    String accept = req.getHeader("Accept");
+    boolean smile = accept != null && accept.contains(SMILE_MIMETYPE);
+    if (!smile && !isStreamed(req)) {
+      super.render(req, res);
+      return;
+    }
+
+    Status status = new Status();
+    Cache cache = new Cache(getDescription().getRequiredCache());
+    Map<String, Object> model = executeImpl(req, status, cache);
+
+    res.setStatus(status.getCode());
+    res.setHeader("Vary", "Accept, Accept-Encoding");
+    JsonGenerator generator;
+    if (smile) {
+      res.setContentType(SMILE_MIMETYPE);
+      generator = smileFactory.createGenerator(res.getOutputStream());
+    } else {
+      res.setContentType(getContainer().getFormatRegistry().getMimeType(null, req.getFormat()));
+      res.setContentEncoding("UTF-8");
+      generator = jsonFactory.createGenerator(res.getOutputStream(), JsonEncoding.UTF8);
+    }
+    long start = System.nanoTime();
+    writeModel(model, generator);
+    generator.close();
+    getMetrics().time("render." + AdmissionController.getEndpoint(this), start);
+  }
+
+  /**
+   * @return true if the (JSON) payload of the request has to be written by writeModel rather than by the template,
+   * i.e. when it is too large to be built in memory
+   */
+  protected boolean isStreamed(WebScriptRequest req) {
+    return false;
+  }
+
+  /**
+   * Writes the model with the same structure as the JSON template; the generator is a JSON one for streamed requests
+   */
+  protected abstract void writeModel(Map<String, Object> model, JsonGenerator generator) throws IOException;
+}
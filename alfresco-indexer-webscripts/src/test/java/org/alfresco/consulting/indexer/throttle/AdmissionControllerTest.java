@@ -0,0 +1,46 @@
+package org.alfresco.consulting.indexer.throttle;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControllerTest {
+
+    private AdmissionController admissionController;
+
+    @Before
+    public void setUp() {
+        admissionController = new AdmissionController();
+        Map<String, Integer> permits = new HashMap<String, Integer>();
+        permits.put("changes", 1);
+        admissionController.setPermits(permits);
+        admissionController.setQueueSize(1);
+        admissionController.setMaxWait(10);
+        admissionController.init();
+    }
+
+    @Test
+    public void testRequestsBeyondThePermitsAreRejected() throws Exception {
+        assertTrue(admissionController.acquire("changes"));
+        //The permit is taken: the next request waits in the queue, then it is rejected
+        assertFalse(admissionController.acquire("changes"));
+        assertEquals(Integer.valueOf(1), admissionController.getActive("changes"));
+        admissionController.release("changes");
+        assertTrue(admissionController.acquire("changes"));
+        admissionController.release("changes");
+    }
+
+    @Test
+    public void testEndpointsWithoutPermitsAreNotLimited() throws Exception {
+        assertTrue(admissionController.acquire("details"));
+        assertTrue(admissionController.acquire("details"));
+        assertNull(admissionController.getActive("details"));
+    }
+}
@@ -1,9 +1,25 @@
 package org.alfresco.consulting.indexer.webscripts;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.alfresco.consulting.indexer.cache.DictionaryMetadataCache;
+import org.alfresco.consulting.indexer.entities.NodeBatchLoadEntity;
+import org.alfresco.consulting.indexer.metrics.RequestTrace;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.MimetypeMap;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.model.Repository;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.repo.web.scripts.BaseWebScriptTest;
+import org.alfresco.service.cmr.coci.CheckOutCheckInService;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.security.PermissionService;
 import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
 import org.alfresco.service.transaction.TransactionService;
 import org.json.JSONArray;
 import org.springframework.extensions.webscripts.TestWebScriptServer;
@@ -11,12 +27,33 @@ import org.springframework.extensions.webscripts.TestWebScriptServer.Response;
 
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.util.ApplicationContextHelper;
+import org.apache.commons.io.IOUtils;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSessionFactory;
 import org.apache.log4j.Logger;
 import org.json.JSONObject;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.springframework.context.ApplicationContext;
 
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
 public class NodeWebScriptTest extends BaseWebScriptTest {
 
     protected NodeService nodeService;
@@ -26,6 +63,7 @@ public class NodeWebScriptTest extends BaseWebScriptTest {
 
     private static final String STORE_PROTOCOL = "workspace";
     private static final String STORE_ID = "SpacesStore";
+    private static final String CHANGES_URL = String.format("/node/changes/%s/%s", STORE_PROTOCOL, STORE_ID);
 
     private static Logger log = Logger.getLogger(NodeWebScriptTest.class);
 
@@ -36,18 +74,14 @@ public class NodeWebScriptTest extends BaseWebScriptTest {
         nodeService = (NodeService) super.getServer().getApplicationContext().getBean("NodeService");
         namespaceService = (NamespaceService) super.getServer().getApplicationContext().getBean("NamespaceService");
         transactionService = (TransactionService) super.getServer().getApplicationContext().getBean("TransactionService");
+        AuthenticationUtil.setFullyAuthenticatedUser(AuthenticationUtil.getAdminUserName());
+        setDefaultRunAs("admin");
     }
 
     @Test
     public void testNodeChangesAndDetails() throws Exception {
-        AuthenticationUtil.setFullyAuthenticatedUser(AuthenticationUtil.getAdminUserName());
-        setDefaultRunAs("admin");
-        String changesUrl = String.format("/node/changes/%s/%s",
-                STORE_PROTOCOL,
-                STORE_ID);
-
         //Get (and assert) all node changes
-        Response response = sendRequest(new TestWebScriptServer.GetRequest(changesUrl), 200);
+        Response response = sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL), 200);
         JSONObject result = new JSONObject(response.getContentAsString());
         assertNodeChanges(result);
 
@@ -79,6 +113,32 @@ public class NodeWebScriptTest extends BaseWebScriptTest {
         result = new JSONObject(response.getContentAsString());
         assertNodeDetails(result, nodeRef.getId());
 
+        //Get the uuid details, projected on a few properties and aspects
+        response = sendRequest(new TestWebScriptServer.GetRequest(detailsUrl +
+                "?fields=cm:name,cm:modified,sys:referenceable,-sys:localized"), 200);
+        result = new JSONObject(response.getContentAsString());
+        JSONArray properties = result.getJSONArray("properties");
+        assertEquals(2, properties.length());
+        for (int i = 0; i < properties.length(); i++) {
+            String name = properties.getJSONObject(i).getString("name");
+            assertTrue(name.equals("cm:name") || name.equals("cm:modified"));
+        }
+        JSONArray aspects = result.getJSONArray("aspects");
+        assertEquals(1, aspects.length());
+        assertEquals("sys:referenceable", aspects.getString(0));
+
+        //The path resolved from the (then cached) parent path is the one of the node service
+        assertEquals(nodeService.getPath(nodeRef).toPrefixString(namespaceService), result.getString("path"));
+        assertTrue(result.getString("shareUrlPath").contains(nodeRef.getId()));
+        sendRequest(new TestWebScriptServer.GetRequest(detailsUrl + "?fields=unknown:name"), 400);
+
+        //Get (and assert) the indexing status, which can't be behind the changes just fetched
+        response = sendRequest(new TestWebScriptServer.GetRequest("/node/status"), 200);
+        JSONObject status = new JSONObject(response.getContentAsString());
+        assertTrue(new Long(status.get("last_txn_id").toString()) > 0);
+        assertTrue(new Long(status.get("last_acl_changeset_id").toString()) > 0);
+        assertTrue(status.getJSONArray("node_counts").length() > 0);
+
         //Testing /auth/resolve Webscript
         response = sendRequest(new TestWebScriptServer.GetRequest("/auth/resolve/admin"), 200);
         JSONArray resultList = new JSONArray(response.getContentAsString());
@@ -89,6 +149,473 @@ public class NodeWebScriptTest extends BaseWebScriptTest {
         assertAdminAuthResolve(resultList);
     }
 
+    @Test
+    public void testNodeChangesCollapsed() throws Exception {
+        JSONObject status = getStatus();
+
+        //A folder created by a transaction, then changed by an ACL changeset, is rendered once
+        final NodeRef folder = createFolder(getCompanyHome(), "collapsed-" + System.currentTimeMillis());
+        final PermissionService permissionService = (PermissionService)
+            super.getServer().getApplicationContext().getBean("PermissionService");
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                permissionService.setInheritParentPermissions(folder, false);
+                return null;
+            }
+        }, false, true);
+
+        JSONObject result = getChangesSince(status, "");
+        assertEquals(1, result.getInt("collapsed_changes"));
+        assertEquals(1, countDocs(result, folder));
+    }
+
+    @Test
+    public void testNodeChangesCompression() throws Exception {
+        //The changes payload exceeds indexer.compression.threshold, therefore it must be gzipped
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept-Encoding", "gzip, deflate");
+        Response response = sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL).setHeaders(headers), 200);
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+
+        InputStream content = new GZIPInputStream(new ByteArrayInputStream(response.getContentAsByteArray()));
+        JSONObject result = new JSONObject(IOUtils.toString(content, "UTF-8"));
+        assertNodeChanges(result);
+    }
+
+    @Test
+    public void testNodeChangesNdjson() throws Exception {
+        //Each line but the last one is a node, rendered like the documents of the JSON representation
+        Response response = sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL), 200);
+        JSONObject result = new JSONObject(response.getContentAsString());
+        response = sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL + "?format=ndjson"), 200);
+        String[] lines = response.getContentAsString().trim().split("\n");
+
+        JSONArray docs = result.getJSONArray("docs");
+        assertEquals(docs.length() + 1, lines.length);
+        for (int i = 0; i < docs.length(); i++) {
+            assertEquals(docs.getJSONObject(i).get("uuid"), new JSONObject(lines[i]).get("uuid"));
+        }
+        JSONObject watermarks = new JSONObject(lines[lines.length - 1]);
+        assertEquals(result.get("last_txn_id"), watermarks.get("last_txn_id"));
+        assertEquals(result.get("last_acl_changeset_id"), watermarks.get("last_acl_changeset_id"));
+    }
+
+    @Test
+    public void testNodeChangesSmile() throws Exception {
+        //The Smile representation has the same structure as the JSON one
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", SmileWebScript.SMILE_MIMETYPE);
+        Response response = sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL).setHeaders(headers), 200);
+        assertEquals(SmileWebScript.SMILE_MIMETYPE, response.getContentType());
+        JSONObject result = smileToJson(response.getContentAsByteArray());
+        assertNodeChanges(result);
+
+        String uuid = null;
+        JSONArray docs = result.getJSONArray("docs");
+        for (int i = 0; i < docs.length() && uuid == null; i++) {
+            JSONObject doc = docs.getJSONObject(i);
+            NodeRef nodeRef = new NodeRef(STORE_PROTOCOL, STORE_ID, doc.getString("uuid"));
+            if ("cm:content".equals(doc.getString("type")) && !doc.getBoolean("deleted") && nodeService.exists(nodeRef) &&
+                    nodeService.getPath(nodeRef).toPrefixString(namespaceService).contains("sites")) {
+                uuid = doc.getString("uuid");
+            }
+        }
+        String detailsUrl = String.format("/node/details/%s/%s/%s", STORE_PROTOCOL, STORE_ID, uuid);
+        response = sendRequest(new TestWebScriptServer.GetRequest(detailsUrl).setHeaders(headers), 200);
+        assertNodeDetails(smileToJson(response.getContentAsByteArray()), uuid);
+    }
+
+    @Test
+    public void testNodeChangesFullDocuments() throws Exception {
+        //Every node that is not deleted carries its details inline, as rendered by the details WebScript
+        Response response = sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL +
+                "?include=properties,aspects,acl,path"), 200);
+        JSONObject result = new JSONObject(response.getContentAsString());
+        assertNodeChanges(result);
+        JSONArray docs = result.getJSONArray("docs");
+        int documents = 0;
+        for (int i = 0; i < docs.length(); i++) {
+            JSONObject doc = docs.getJSONObject(i);
+            if (doc.getBoolean("deleted")) {
+                assertFalse(doc.has("properties"));
+            } else {
+                assertTrue(doc.has("properties"));
+                assertTrue(doc.has("aspects"));
+                assertTrue(doc.has("readableAuthorities"));
+                assertTrue(doc.has("path"));
+                documents++;
+            }
+        }
+        assertTrue(documents > 0);
+
+        //Parts that are not included are left out, and so are fields that are not requested
+        response = sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL +
+                "?include=properties&fields=cm:name&format=ndjson"), 200);
+        String[] lines = response.getContentAsString().trim().split("\n");
+        assertTrue(lines.length > 1);
+        for (int i = 0; i < lines.length - 1; i++) {
+            JSONObject doc = new JSONObject(lines[i]);
+            assertFalse(doc.has("aspects"));
+            assertFalse(doc.has("readableAuthorities"));
+            if (doc.has("properties")) {
+                assertTrue(doc.getJSONArray("properties").length() <= 1);
+            }
+        }
+        assertTrue(new JSONObject(lines[lines.length - 1]).has("last_txn_id"));
+
+        sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL + "?include=binaries"), 400);
+    }
+
+    @Test
+    public void testNodeText() throws Exception {
+        long now = System.currentTimeMillis();
+        NodeRef folder = createFolder(getCompanyHome(), "text-" + now);
+
+        //Plain text content is sent as is, other content is transformed into plain text
+        NodeRef plain = createContent(folder, "plain-" + now + ".txt", MimetypeMap.MIMETYPE_TEXT_PLAIN, "plain text");
+        Response response = sendRequest(new TestWebScriptServer.GetRequest(String.format("/node/text/%s/%s/%s",
+                STORE_PROTOCOL, STORE_ID, plain.getId())), 200);
+        assertEquals(NodeTextWebScript.SOURCE_RAW, response.getHeader(NodeTextWebScript.SOURCE_HEADER));
+        assertEquals("plain text", response.getContentAsString());
+
+        NodeRef html = createContent(folder, "html-" + now + ".html", MimetypeMap.MIMETYPE_HTML,
+                "<html><body><p>html text</p></body></html>");
+        response = sendRequest(new TestWebScriptServer.GetRequest(String.format("/node/text/%s/%s/%s",
+                STORE_PROTOCOL, STORE_ID, html.getId())), 200);
+        assertEquals(NodeTextWebScript.SOURCE_TRANSFORMATION, response.getHeader(NodeTextWebScript.SOURCE_HEADER));
+        assertTrue(response.getContentType().startsWith("text/plain"));
+        assertTrue(response.getContentAsString().contains("html text"));
+        assertFalse(response.getContentAsString().contains("<p>"));
+
+        sendRequest(new TestWebScriptServer.GetRequest(String.format("/node/text/%s/%s/%s",
+                STORE_PROTOCOL, STORE_ID, "00000000-0000-0000-0000-000000000000")), 404);
+    }
+
+    @Test
+    public void testNodeChangesExclusions() throws Exception {
+        JSONObject status = getStatus();
+        final long now = System.currentTimeMillis();
+        final NodeRef folder = createFolder(getCompanyHome(), "exclusions-" + now);
+
+        //Hidden nodes and working copies are only ever rendered out as deleted
+        final CheckOutCheckInService checkOutCheckInService = (CheckOutCheckInService)
+                super.getServer().getApplicationContext().getBean("CheckOutCheckInService");
+        final NodeRef hidden = createFolder(folder, "hidden-" + now);
+        NodeRef[] document = transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<NodeRef[]>() {
+            public NodeRef[] execute() throws Throwable {
+                nodeService.addAspect(hidden, ContentModel.ASPECT_HIDDEN, null);
+                Map<QName, Serializable> properties = new HashMap<QName, Serializable>();
+                properties.put(ContentModel.PROP_NAME, "document-" + now + ".txt");
+                NodeRef original = nodeService.createNode(folder, ContentModel.ASSOC_CONTAINS,
+                        QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, "document-" + now),
+                        ContentModel.TYPE_CONTENT, properties).getChildRef();
+                return new NodeRef[]{original, checkOutCheckInService.checkout(original)};
+            }
+        }, false, true);
+
+        //Every descendant of an excluded parent is excluded, not only its children
+        NodeRef excludedParent = getExcludedParent();
+        NodeRef child = createFolder(excludedParent, "child-" + now);
+        NodeRef grandchild = createFolder(child, "grandchild-" + now);
+
+        JSONObject result = getChangesSince(status, "");
+        assertFalse(getDoc(result, folder).getBoolean("deleted"));
+        assertTrue("Hidden node returned", getDoc(result, hidden).getBoolean("deleted"));
+        assertFalse(getDoc(result, document[0]).getBoolean("deleted"));
+        assertTrue("Working copy returned", getDoc(result, document[1]).getBoolean("deleted"));
+        assertTrue("Child of an excluded parent returned", getDoc(result, child).getBoolean("deleted"));
+        assertTrue("Grandchild of an excluded parent returned", getDoc(result, grandchild).getBoolean("deleted"));
+    }
+
+    @Test
+    public void testNodeChangesExcludedOnceIndexed() throws Exception {
+        JSONObject status = getStatus();
+
+        final NodeRef folder = createFolder(getCompanyHome(), "excluded-" + System.currentTimeMillis());
+        assertFalse(getDoc(getChangesSince(status, ""), folder).getBoolean("deleted"));
+
+        //Hiding a folder that has been indexed must remove it from the index
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                nodeService.addAspect(folder, ContentModel.ASPECT_HIDDEN, null);
+                return null;
+            }
+        }, false, true);
+        assertTrue(getDoc(getChangesSince(status, ""), folder).getBoolean("deleted"));
+    }
+
+    @Test
+    public void testNodeChangesScope() throws Exception {
+        long now = System.currentTimeMillis();
+        NodeRef scope = createFolder(getCompanyHome(), "scope-" + now);
+        JSONObject status = getStatus();
+        NodeRef inScope = createFolder(createFolder(scope, "in-" + now), "nested-" + now);
+        NodeRef outOfScope = createFolder(getCompanyHome(), "out-" + now);
+
+        //Scoped to a folder, nodes out of the folder are rendered out as deleted; last ids cover the whole page
+        JSONObject unscoped = getChangesSince(status, "");
+        JSONObject scoped = getChangesSince(status, "&folders=" + scope);
+        assertEquals(unscoped.get("last_txn_id").toString(), scoped.get("last_txn_id").toString());
+        assertFalse(getDoc(scoped, inScope).getBoolean("deleted"));
+        assertTrue(getDoc(scoped, outOfScope).getBoolean("deleted"));
+        assertFalse(getDoc(unscoped, outOfScope).getBoolean("deleted"));
+
+        //Scoped to a folder (or a site) that does not exist, only deletions are left
+        JSONArray docs = getChangesSince(status,
+                "&folders=workspace://SpacesStore/00000000-0000-0000-0000-000000000000").getJSONArray("docs");
+        assertTrue(docs.length() > 0);
+        for (int i = 0; i < docs.length(); i++) {
+            assertTrue(docs.getJSONObject(i).getBoolean("deleted"));
+        }
+        assertTrue(getDoc(getChangesSince(status, "&sites=unknown-" + now), inScope).getBoolean("deleted"));
+
+        sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL + "?folders=notANodeRef"), 400);
+    }
+
+    @Test
+    public void testNodeChangesMovedOutOfScope() throws Exception {
+        long now = System.currentTimeMillis();
+        final NodeRef scope = createFolder(getCompanyHome(), "scope-" + now);
+        final NodeRef elsewhere = createFolder(getCompanyHome(), "elsewhere-" + now);
+        JSONObject status = getStatus();
+
+        final NodeRef folder = createFolder(scope, "moved-" + now);
+        assertFalse(getDoc(getChangesSince(status, "&folders=" + scope), folder).getBoolean("deleted"));
+
+        //Moving an indexed folder out of the scope must remove it from the index of the scoped job
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                nodeService.moveNode(folder, elsewhere, ContentModel.ASSOC_CONTAINS,
+                        QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, "moved"));
+                return null;
+            }
+        }, false, true);
+        assertTrue(getDoc(getChangesSince(status, "&folders=" + scope), folder).getBoolean("deleted"));
+        assertFalse(getDoc(getChangesSince(status, ""), folder).getBoolean("deleted"));
+    }
+
+    private JSONObject getStatus() throws Exception {
+        Response response = sendRequest(new TestWebScriptServer.GetRequest("/node/status"), 200);
+        return new JSONObject(response.getContentAsString());
+    }
+
+    /**
+     * @return the changes since the last ids of the given status, with the given (&amp;-prefixed) parameters
+     */
+    private JSONObject getChangesSince(JSONObject status, String parameters) throws Exception {
+        Response response = sendRequest(new TestWebScriptServer.GetRequest(String.format(
+                "/node/changes/%s/%s?lastTxnId=%s&lastAclChangesetId=%s%s", STORE_PROTOCOL, STORE_ID,
+                status.get("last_txn_id"), status.get("last_acl_changeset_id"), parameters)), 200);
+        return new JSONObject(response.getContentAsString());
+    }
+
+    private int countDocs(JSONObject result, NodeRef nodeRef) throws Exception {
+        int count = 0;
+        JSONArray docs = result.getJSONArray("docs");
+        for (int i = 0; i < docs.length(); i++) {
+            if (docs.getJSONObject(i).getString("uuid").equals(nodeRef.getId())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private JSONObject getDoc(JSONObject result, NodeRef nodeRef) throws Exception {
+        JSONArray docs = result.getJSONArray("docs");
+        for (int i = 0; i < docs.length(); i++) {
+            if (docs.getJSONObject(i).getString("uuid").equals(nodeRef.getId())) {
+                return docs.getJSONObject(i);
+            }
+        }
+        fail("Node " + nodeRef + " not returned");
+        return null;
+    }
+
+    private NodeRef getCompanyHome() {
+        final Repository repository = (Repository) super.getServer().getApplicationContext().getBean("repositoryHelper");
+        return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<NodeRef>() {
+            public NodeRef execute() throws Throwable {
+                return repository.getCompanyHome();
+            }
+        }, true);
+    }
+
+    /**
+     * @return the folder excluded by indexer.changes.excludedParents, created unless it exists
+     */
+    private NodeRef getExcludedParent() {
+        final NodeRef companyHome = getCompanyHome();
+        NodeRef excludedParent = transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<NodeRef>() {
+            public NodeRef execute() throws Throwable {
+                return nodeService.getChildByName(companyHome, ContentModel.ASSOC_CONTAINS, "indexer-excluded");
+            }
+        }, true);
+        return excludedParent == null ? createFolder(companyHome, "indexer-excluded") : excludedParent;
+    }
+
+    private NodeRef createFolder(final NodeRef parent, final String name) {
+        return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<NodeRef>() {
+            public NodeRef execute() throws Throwable {
+                Map<QName, Serializable> properties = new HashMap<QName, Serializable>();
+                properties.put(ContentModel.PROP_NAME, name);
+                return nodeService.createNode(parent, ContentModel.ASSOC_CONTAINS,
+                        QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, name),
+                        ContentModel.TYPE_FOLDER, properties).getChildRef();
+            }
+        }, false, true);
+    }
+
+    private NodeRef createContent(final NodeRef parent, final String name, final String mimetype, final String text) {
+        final ContentService contentService = (ContentService) super.getServer().getApplicationContext().getBean("ContentService");
+        return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<NodeRef>() {
+            public NodeRef execute() throws Throwable {
+                Map<QName, Serializable> properties = new HashMap<QName, Serializable>();
+                properties.put(ContentModel.PROP_NAME, name);
+                NodeRef nodeRef = nodeService.createNode(parent, ContentModel.ASSOC_CONTAINS,
+                        QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, name),
+                        ContentModel.TYPE_CONTENT, properties).getChildRef();
+                ContentWriter writer = contentService.getWriter(nodeRef, ContentModel.PROP_CONTENT, true);
+                writer.setMimetype(mimetype);
+                writer.setEncoding("UTF-8");
+                writer.putContent(text);
+                return nodeRef;
+            }
+        }, false, true);
+    }
+
+    private JSONObject smileToJson(byte[] smile) throws Exception {
+        JsonParser parser = new SmileFactory().createParser(smile);
+        StringWriter json = new StringWriter();
+        JsonGenerator generator = new JsonFactory().createGenerator(json);
+        parser.nextToken();
+        generator.copyCurrentStructure(parser);
+        generator.close();
+        return new JSONObject(json.toString());
+    }
+
+    @Test
+    public void testIndexerMetrics() throws Exception {
+        sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL), 200);
+
+        Response response = sendRequest(new TestWebScriptServer.GetRequest("/indexer/metrics"), 200);
+        JSONObject result = new JSONObject(response.getContentAsString());
+        log.debug(result.toString(2));
+        JSONObject timers = result.getJSONObject("timers");
+        assertTrue(timers.getJSONObject("endpoint.changes").getLong("count") > 0);
+        assertTrue(timers.getJSONObject("render.changes").getLong("count") > 0);
+        assertTrue(timers.getJSONObject("sql.select_NodeIndexesByTransactionId").getLong("rows") > 0);
+        assertTrue(result.getJSONObject("caches").has("cache.dictionary"));
+    }
+
+    @Test
+    public void testRequestTracing() throws Exception {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(RequestTrace.REQUEST_ID_HEADER, "test-1");
+        Response response = sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL).setHeaders(headers), 200);
+
+        assertEquals("test-1", response.getHeader(RequestTrace.REQUEST_ID_HEADER));
+        String serverTiming = (String) response.getHeader(RequestTrace.SERVER_TIMING_HEADER);
+        log.debug(serverTiming);
+        assertTrue(serverTiming.contains("sql.select_NodeIndexesByTransactionId;dur="));
+        assertNull(RequestTrace.get());
+
+        //Requests without id are not traced
+        response = sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL), 200);
+        assertNull(response.getHeader(RequestTrace.SERVER_TIMING_HEADER));
+    }
+
+    @Test
+    public void testDictionaryMetadataCache() throws Exception {
+        final DictionaryMetadataCache cache = (DictionaryMetadataCache)
+            super.getServer().getApplicationContext().getBean("indexingDictionaryMetadataCache");
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                Long contentId = cache.getQNameId(ContentModel.TYPE_CONTENT);
+                assertNotNull(contentId);
+                assertEquals("cm:content", cache.getPrefixStringById(contentId));
+                assertEquals(ContentModel.TYPE_CONTENT, cache.getQName(contentId));
+                assertTrue(cache.isContentAware(ContentModel.TYPE_CONTENT));
+                assertFalse(cache.isContentAware(ContentModel.TYPE_FOLDER));
+
+                //QNames that are not stored are left out, and not cached
+                Set<Long> ids = cache.getQNameIds(Arrays.asList(ContentModel.TYPE_CONTENT.toString(),
+                    "{http://www.alfresco.org/model/content/1.0}doesNotExist"));
+                assertEquals(1, ids.size());
+                assertTrue(ids.contains(contentId));
+
+                cache.clear();
+                assertEquals("cm:content", cache.getPrefixString(ContentModel.TYPE_CONTENT));
+                return null;
+            }
+        }, true);
+    }
+
+    @Test
+    public void testChangesQueriesUseIndexes() throws Exception {
+        ApplicationContext context = super.getServer().getApplicationContext();
+        SqlSessionFactory sqlSessionFactory = (SqlSessionFactory) context.getBean("indexingSqlSessionFactory");
+        DataSource dataSource = (DataSource) context.getBean("dataSource");
+
+        NodeBatchLoadEntity nodeLoadEntity = new NodeBatchLoadEntity();
+        nodeLoadEntity.setStoreId(1L);
+        nodeLoadEntity.setStoreProtocol(STORE_PROTOCOL);
+        nodeLoadEntity.setStoreIdentifier(STORE_ID);
+        nodeLoadEntity.setMinId(0L);
+        nodeLoadEntity.setMaxId(10L);
+        nodeLoadEntity.setMaxRows(100);
+
+        Connection connection = dataSource.getConnection();
+        try {
+            String database = connection.getMetaData().getDatabaseProductName().toLowerCase();
+            if (!database.contains("mysql") && !database.contains("postgres")) {
+                log.warn("Skipping query plan check, EXPLAIN is not supported on " + database);
+                return;
+            }
+            for (String statement : new String[]{"alfresco.index.select_NodeIndexesByTransactionId",
+                "alfresco.index.select_NodeIndexesByAclChangesetId"}) {
+                String plan = explain(connection, sqlSessionFactory.getConfiguration(), statement, nodeLoadEntity);
+                log.info("Query plan for " + statement + ":\n" + plan);
+                assertFalse("Full scan of alf_node in " + statement, plan.contains("Seq Scan on alf_node"));
+                assertFalse("Full scan of alf_node in " + statement, plan.contains("|node|ALL|"));
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Runs EXPLAIN on the SQL generated by the given mapped statement; each plan row is rendered on a line,
+     * with columns separated by '|'
+     */
+    private String explain(Connection connection, Configuration configuration, String statement,
+                           Object parameter) throws Exception {
+        BoundSql boundSql = configuration.getMappedStatement(statement).getBoundSql(parameter);
+        PreparedStatement ps = connection.prepareStatement("EXPLAIN " + boundSql.getSql());
+        try {
+            int index = 1;
+            for (ParameterMapping mapping : boundSql.getParameterMappings()) {
+                String property = mapping.getProperty();
+                Object value = boundSql.hasAdditionalParameter(property) ?
+                    boundSql.getAdditionalParameter(property) :
+                    configuration.newMetaObject(parameter).getValue(property);
+                ps.setObject(index++, value);
+            }
+            StringBuilder plan = new StringBuilder();
+            ResultSet rs = ps.executeQuery();
+            ResultSetMetaData metaData = rs.getMetaData();
+            while (rs.next()) {
+                plan.append('|');
+                for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                    plan.append(rs.getString(i)).append('|');
+                }
+                plan.append('\n');
+            }
+            return plan.toString();
+        } finally {
+            ps.close();
+        }
+    }
+
     private void assertAdminAuthResolve(JSONArray resultList) throws Exception {
         for (int j = 0; j < resultList.length() - 1; j++) {
             JSONObject result = resultList.getJSONObject(j);
@@ -125,6 +652,10 @@ public class NodeWebScriptTest extends BaseWebScriptTest {
         Integer lastAcl = new Integer(result.get("last_acl_changeset_id").toString());
         assertTrue(lastAcl > 0);
 
+        assertNotNull(result.get("collapsed_changes"));
+
+        Set<String> uuids = new HashSet<String>();
+        int fingerprints = 0;
         JSONArray docs = result.getJSONArray("docs");
         for (int i = 0; i < docs.length() - 1; i++) {
             JSONObject doc = docs.getJSONObject(i);
@@ -132,12 +663,20 @@ public class NodeWebScriptTest extends BaseWebScriptTest {
             assertNotNull(type);
             String uuid = doc.get("uuid").toString();
             assertNotNull(uuid);
+            assertTrue("Node " + uuid + " is returned more than once", uuids.add(uuid));
             String propertiesUrl = doc.get("propertiesUrl").toString();
             assertNotNull(propertiesUrl);
             assertTrue(propertiesUrl.contains(uuid));
             String deleted = doc.get("deleted").toString();
             assertNotNull(new Boolean(deleted));
+            if (doc.has("contentUrl")) {
+                assertTrue(doc.get("contentUrl").toString().length() > 0);
+                assertTrue(new Long(doc.get("contentSize").toString()) >= 0);
+                assertNotNull(doc.get("contentMimetype"));
+                fingerprints++;
+            }
         }
+        assertTrue("No content fingerprint in the node changes", fingerprints > 0);
     }
 
     public void assertNodeDetails(JSONObject result, String uuid) throws Exception {
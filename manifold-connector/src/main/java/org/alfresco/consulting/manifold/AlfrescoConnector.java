@@ -2,34 +2,76 @@ package org.alfresco.consulting.manifold;
 
 import com.google.gson.Gson;
 import org.alfresco.consulting.indexer.client.AlfrescoClient;
+import org.alfresco.consulting.indexer.client.AlfrescoContent;
+import org.alfresco.consulting.indexer.client.AlfrescoContentTooLargeException;
+import org.alfresco.consulting.indexer.client.AlfrescoDocumentHandler;
 import org.alfresco.consulting.indexer.client.AlfrescoDownException;
+import org.alfresco.consulting.indexer.client.AlfrescoRequestException;
 import org.alfresco.consulting.indexer.client.AlfrescoResponse;
+import org.alfresco.consulting.indexer.client.AlfrescoStatus;
+import org.alfresco.consulting.indexer.client.HistogramClientListener;
 import org.alfresco.consulting.indexer.client.WebScriptsAlfrescoClient;
 import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
 import org.apache.manifoldcf.agents.interfaces.ServiceInterruption;
 import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.crawler.connectors.BaseRepositoryConnector;
 import org.apache.manifoldcf.crawler.interfaces.DocumentSpecification;
+import org.apache.manifoldcf.crawler.interfaces.IHistoryActivity;
 import org.apache.manifoldcf.crawler.interfaces.IProcessActivity;
 import org.apache.manifoldcf.crawler.interfaces.ISeedingActivity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
 import java.util.StringTokenizer;
 
 public class AlfrescoConnector extends BaseRepositoryConnector {
   private static final Logger logger = LoggerFactory.getLogger(AlfrescoConnector.class);
   private static final String DATABASE_TABLE = "alfrescoconnector";
   private static final String ACTIVITY_FETCH = "fetch document";
-  private static final String[] activitiesList = new String[]{ACTIVITY_FETCH};
+  private static final String ACTIVITY_FETCH_CONTENT = "fetch content";
+  private static final String ACTIVITY_FETCH_CHANGES = "fetch changes";
+  private static final String ACTIVITY_LAG = "indexing lag";
+  private static final String[] activitiesList = new String[]{ACTIVITY_FETCH, ACTIVITY_FETCH_CONTENT,
+          ACTIVITY_FETCH_CHANGES, ACTIVITY_LAG};
+  private static final String RESULT_OK = "OK";
+  private static final String RESULT_NOT_FOUND = "NOTFOUND";
+  private static final String RESULT_TOO_LARGE = "TOOLARGE";
+  private static final String RESULT_ERROR = "ERROR";
+  /** How long to wait before retrying once Alfresco is down */
+  private static final long RETRY_INTERVAL = 60000L;
+  /** How long Alfresco can be down before the job is aborted */
+  private static final long FAIL_INTERVAL = 3600000L;
+  private static final String CONTENT_URL_PATH = "contentUrlPath";
+  private static final String CONTENT_SOURCE = "content_source";
+  private static final String CONTENT_URL = "contentUrl";
+  private static final String CONTENT_SIZE = "contentSize";
+  private static final String READABLE_AUTHORITIES = "readableAuthorities";
+  /** Node details rendered out inline by the changes feed, when full documents are enabled */
+  private static final List<String> FULL_DOCUMENT_PARTS = Arrays.asList("properties", "aspects", "acl", "path");
   private AlfrescoClient alfrescoClient;
   private final Gson gson = new Gson();
+  private final Random random = new Random();
+  /** Sent along with the requests of the current seeding (or processing), see {@link AlfrescoClient#setTraceId} */
+  private String traceId;
   private Boolean enableDocumentProcessing = Boolean.TRUE;
+  private Boolean enableLongPolling = Boolean.FALSE;
+  private Boolean enableStreaming = Boolean.FALSE;
+  private Boolean enableContent = Boolean.FALSE;
+  private Boolean enableText = Boolean.FALSE;
+  private Boolean enableFullDocuments = Boolean.FALSE;
+  private long maxContentSize = -1L;
+  private String storeRef;
+  private String lagReport;
+  /** Latencies, sizes and parse times of the requests to Alfresco, telling where the crawling time goes */
+  private ClientMetrics clientMetrics = new ClientMetrics();
+  private PageSizeController pageSizeController = new PageSizeController(10, 1000, 2000, 5242880);
 
   @Override
   public int getConnectorModel() {
@@ -61,9 +103,40 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
     String username = getConfig(config, "username", null);
     String password = getConfig(config, "password", null);
     this.enableDocumentProcessing = new Boolean(getConfig(config, "enabledocumentprocessing", "false"));
+    this.enableLongPolling = new Boolean(getConfig(config, "enablelongpolling", "false"));
+    this.enableStreaming = new Boolean(getConfig(config, "enablestreaming", "false"));
+    this.enableContent = new Boolean(getConfig(config, "enablecontent", "false"));
+    this.enableText = new Boolean(getConfig(config, "enabletext", "false"));
+    this.enableFullDocuments = new Boolean(getConfig(config, "enablefulldocuments", "false"));
 
-    alfrescoClient = new WebScriptsAlfrescoClient(protocol, hostname, endpoint,
+    this.storeRef = storeProtocol + "://" + storeId;
+    this.pageSizeController = new PageSizeController(
+            Integer.parseInt(getConfig(config, "minpagesize", "10")),
+            Integer.parseInt(getConfig(config, "maxpagesize", "1000")),
+            Long.parseLong(getConfig(config, "targetresponsetime", "2000")),
+            Long.parseLong(getConfig(config, "maxresponsesize", "5242880")));
+
+    WebScriptsAlfrescoClient client = new WebScriptsAlfrescoClient(protocol, hostname, endpoint,
             storeProtocol, storeId, username, password);
+    client.setTimeouts(Integer.parseInt(getConfig(config, "connecttimeout", "10000")),
+            Integer.parseInt(getConfig(config, "sockettimeout", "60000")));
+    client.setRetries(Integer.parseInt(getConfig(config, "maxretries", "3")), 1000);
+    client.setUseSmile(Boolean.parseBoolean(getConfig(config, "enablesmile", "false")));
+    this.maxContentSize = Long.parseLong(getConfig(config, "maxcontentsize", "-1"));
+    client.setContentLimits(Integer.parseInt(getConfig(config, "contentmemorythreshold", "1048576")),
+            maxContentSize);
+    this.clientMetrics = new ClientMetrics();
+    client.setListener(clientMetrics);
+    //Each client has its own connection pool
+    closeClient();
+    alfrescoClient = client;
+  }
+
+  private void closeClient() {
+    if (alfrescoClient != null) {
+      alfrescoClient.close();
+      alfrescoClient = null;
+    }
   }
 
   private static String getConfig(ConfigParams config,
@@ -78,11 +151,24 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
 
   @Override
   public String check() throws ManifoldCFException {
-    return super.check();
+    try {
+      AlfrescoStatus status = alfrescoClient.fetchStatus();
+      String check = String.format("Connection working; last transaction id: %d, last ACL changeset id: %d",
+              status.getLastTransactionId(), status.getLastAclChangesetId());
+      if (lagReport != null) {
+        check += "; " + lagReport;
+      }
+      return check + "; client metrics: " + clientMetrics;
+    } catch (AlfrescoDownException e) {
+      return "Connection failed: " + e.getMessage();
+    } catch (AlfrescoRequestException e) {
+      return "Connection failed: " + e.getMessage();
+    }
   }
 
   @Override
   public void disconnect() throws ManifoldCFException {
+    closeClient();
     super.disconnect();
   }
 
@@ -99,6 +185,7 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
   @Override
   public String addSeedDocumentsWithVersion(ISeedingActivity activities, Specification spec,
                                               String lastSeedVersion, long seedTime, int jobMode) throws ManifoldCFException, ServiceInterruption {
+    startTrace("seed");
     try {
       StringTokenizer tokenizer = new StringTokenizer(lastSeedVersion,"|");
       long lastTransactionId = 0;
@@ -110,22 +197,62 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
       }
 
       logger.info("Starting from transaction id: {} and acl changeset id: {}", lastTransactionId, lastAclChangesetId);
+      alfrescoClient.setScope(SpecificationHandler.getValues(spec, SpecificationHandler.NODE_SITE),
+              SpecificationHandler.getValues(spec, SpecificationHandler.NODE_FOLDER));
+      //Full documents are seeded with their metadata, so that processing them needs no request per document
+      alfrescoClient.setFields(SpecificationHandler.getFields(spec));
+      alfrescoClient.setInclude(enableDocumentProcessing && enableFullDocuments ? FULL_DOCUMENT_PARTS : null);
+      final long startTime = System.currentTimeMillis();
+      final long firstTransactionId = lastTransactionId;
 
+      //In continuous mode, the first request waits for Alfresco to notify changes instead of polling
+      boolean waitForChanges = enableLongPolling && jobMode == JOBMODE_CONTINUOUS;
       long transactionIdsProcessed;
       long aclChangesetsProcessed;
       do {
-        final AlfrescoResponse response = alfrescoClient.fetchNodes(lastTransactionId, lastAclChangesetId);
-        int count = 0;
+        int pageSize = pageSizeController.getPageSize();
+        alfrescoClient.setPageSize(pageSize, pageSize);
+        long requestTime = System.currentTimeMillis();
+        SeedingHandler seedingHandler = new SeedingHandler(activities);
+        final AlfrescoResponse response;
+        try {
+          if (waitForChanges) {
+            response = alfrescoClient.waitForNodes(lastTransactionId, lastAclChangesetId);
+          } else if (enableStreaming) {
+            response = alfrescoClient.streamNodes(lastTransactionId, lastAclChangesetId, seedingHandler);
+          } else {
+            response = alfrescoClient.fetchNodes(lastTransactionId, lastAclChangesetId);
+          }
+        } catch (AlfrescoDownException e) {
+          recordActivity(activities, requestTime, ACTIVITY_FETCH_CHANGES, null, storeRef, RESULT_ERROR, e.getMessage());
+          throw e;
+        } catch (AlfrescoRequestException e) {
+          //Retrying would get the same response (i.e. wrong credentials): the job fails
+          recordActivity(activities, requestTime, ACTIVITY_FETCH_CHANGES, null, storeRef, RESULT_ERROR, e.getMessage());
+          throw new ManifoldCFException(e.getMessage(), e);
+        }
+        //Streamed documents are seeded while the page is read; the seeding time says nothing about Alfresco
+        long responseTime = System.currentTimeMillis() - requestTime - seedingHandler.seedingTime;
         for (Map<String, Object> doc : response.getDocuments()) {
-          String json = gson.toJson(doc);
-          activities.addSeedDocument(json);
-          count++;
+          seedingHandler.handleDocument(doc);
         }
+        int count = seedingHandler.count;
         logger.info("Fetched and added {} seed documents", count);
+        recordActivity(activities, requestTime, ACTIVITY_FETCH_CHANGES, response.getCompressedSize(), storeRef, RESULT_OK,
+                String.format("%d documents, transaction id %d to %d, ACL changeset id %d to %d, %d ms", count,
+                        lastTransactionId, response.getLastTransactionId(), lastAclChangesetId,
+                        response.getLastAclChangesetId(), responseTime));
 
         transactionIdsProcessed = response.getLastTransactionId() - lastTransactionId;
         aclChangesetsProcessed = response.getLastAclChangesetId() - lastAclChangesetId;
 
+        //A long-polled response time is mostly waiting, it doesn't tell how loaded Alfresco is
+        if (!waitForChanges) {
+          pageSizeController.pageFetched(responseTime, response.getSize(), count,
+                  transactionIdsProcessed > 0 || aclChangesetsProcessed > 0);
+        }
+        waitForChanges = false;
+
         lastTransactionId = response.getLastTransactionId();
         lastAclChangesetId = response.getLastAclChangesetId();
 
@@ -133,10 +260,152 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
       } while (transactionIdsProcessed > 0 && aclChangesetsProcessed > 0);
 
       logger.info("Recording {} as last transaction id and {} as last changeset id", lastTransactionId, lastAclChangesetId);
+      reportLag(activities, startTime, lastTransactionId - firstTransactionId, lastTransactionId, lastAclChangesetId);
+      logger.info("Client metrics: {}", clientMetrics);
       return lastTransactionId + "|" + lastAclChangesetId;
     } catch (AlfrescoDownException e) {
-      throw new ManifoldCFException(e);
+      throw serviceInterruption(e);
+    } catch (SeedingException e) {
+      throw e.getCause();
+    } finally {
+      endTrace();
+    }
+  }
+
+  /**
+   * Adds documents as seeds, as they are fetched (or streamed) from Alfresco
+   */
+  private class SeedingHandler implements AlfrescoDocumentHandler {
+    private final ISeedingActivity activities;
+    private int count = 0;
+    /** Time (in milliseconds) spent adding seeds */
+    private long seedingTime = 0;
+
+    SeedingHandler(ISeedingActivity activities) {
+      this.activities = activities;
+    }
+
+    @Override
+    public void handleDocument(Map<String, Object> document) {
+      long start = System.currentTimeMillis();
+      try {
+        activities.addSeedDocument(gson.toJson(document));
+        count++;
+      } catch (ManifoldCFException e) {
+        throw new SeedingException(e);
+      } finally {
+        seedingTime += System.currentTimeMillis() - start;
+      }
+    }
+  }
+
+  /**
+   * Carries a ManifoldCFException out of the {@link AlfrescoDocumentHandler} callback
+   */
+  private static class SeedingException extends RuntimeException {
+    SeedingException(ManifoldCFException cause) {
+      super(cause);
+    }
+
+    @Override
+    public synchronized ManifoldCFException getCause() {
+      return (ManifoldCFException) super.getCause();
+    }
+  }
+
+  /**
+   * Client metrics, also keeping the bytes of the response last read by each crawling thread, so that they
+   * can be recorded along with the fetch activity
+   */
+  private static class ClientMetrics extends HistogramClientListener {
+    private final ThreadLocal<Long> responseBytes = new ThreadLocal<Long>();
+
+    @Override
+    public void requestExecuted(String operation, int statusCode, long latency) {
+      super.requestExecuted(operation, statusCode, latency);
+      responseBytes.remove();
+    }
+
+    @Override
+    public void responseRead(String operation, long bytes, long parseTime) {
+      super.responseRead(operation, bytes, parseTime);
+      responseBytes.set(bytes);
+    }
+
+    /**
+     * @return the bytes (over the wire) of the response last read by the current thread, null if unknown
+     */
+    Long getResponseBytes() {
+      return responseBytes.get();
+    }
+  }
+
+  /**
+   * Alfresco being down (i.e. restarting) is not a job failure: MCF retries later, and aborts the job
+   * only if Alfresco is still down after {@link #FAIL_INTERVAL}
+   */
+  private static ServiceInterruption serviceInterruption(AlfrescoDownException e) {
+    logger.warn("Alfresco is not available, retrying in {} ms", RETRY_INTERVAL, e);
+    long now = System.currentTimeMillis();
+    return new ServiceInterruption("Alfresco is not available: " + e.getMessage(), e,
+            now + RETRY_INTERVAL, now + FAIL_INTERVAL, -1, true);
+  }
+
+  /**
+   * Compares the last indexed ids with the ones of Alfresco, estimating the catch-up time from the
+   * number of transactions processed by this seeding
+   */
+  private void reportLag(ISeedingActivity activities, long startTime, long transactionsProcessed,
+                         long lastTransactionId, long lastAclChangesetId) throws ManifoldCFException {
+    AlfrescoStatus status;
+    try {
+      status = alfrescoClient.fetchStatus();
+    } catch (AlfrescoDownException e) {
+      logger.warn("Cannot fetch the indexing status from Alfresco", e);
+      return;
     }
+    long transactionsBehind = Math.max(0, status.getLastTransactionId() - lastTransactionId);
+    long aclChangesetsBehind = Math.max(0, status.getLastAclChangesetId() - lastAclChangesetId);
+    long elapsed = System.currentTimeMillis() - startTime;
+
+    String report = String.format("%d transactions behind, %d ACL changesets behind", transactionsBehind, aclChangesetsBehind);
+    if (transactionsBehind > 0) {
+      if (transactionsProcessed > 0) {
+        long catchUpSeconds = transactionsBehind * elapsed / transactionsProcessed / 1000;
+        report += String.format(", estimated catch-up time: %d seconds", catchUpSeconds);
+      } else {
+        report += ", no progress made by the last seeding";
+      }
+    }
+    logger.info("Indexing lag: {}", report);
+    lagReport = report;
+    //The lag is not a size, hence no bytes: MCF adds them up in its bandwidth reports
+    activities.recordActivity(startTime, ACTIVITY_LAG, null, storeRef, RESULT_OK, report, null);
+  }
+
+  /**
+   * Records a fetch in the MCF history, which takes the current time as its end time; failures are recorded
+   * before the exception is thrown. The description ends with the trace id, under which Alfresco logs the requests
+   * @param bytes the bytes received, null if unknown
+   */
+  private void recordActivity(IHistoryActivity activities, long startTime, String activity, Long bytes,
+                              String entity, String resultCode, String description) throws ManifoldCFException {
+    String trace = traceId == null ? null : "trace id " + traceId;
+    activities.recordActivity(startTime, activity, bytes, entity, resultCode,
+            description == null ? trace : trace == null ? description : description + ", " + trace, null);
+  }
+
+  /**
+   * Identifies the following requests to Alfresco with a new trace id (i.e. process-3fa2b1c0)
+   */
+  private void startTrace(String prefix) {
+    traceId = String.format("%s-%08x", prefix, random.nextInt());
+    alfrescoClient.setTraceId(traceId);
+  }
+
+  private void endTrace() {
+    traceId = null;
+    alfrescoClient.setTraceId(null);
   }
 
   @Override
@@ -145,11 +414,27 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
                                IProcessActivity activities, DocumentSpecification spec,
                                boolean[] scanOnly, int jobMode) throws ManifoldCFException,
           ServiceInterruption {
+    long startTime = System.currentTimeMillis();
+    startTrace("process");
+    try {
+      processBatch(documentIdentifiers, activities, spec);
+      logger.debug("Processed {} documents in {} ms, trace id {}",
+              new Object[]{documentIdentifiers.length, System.currentTimeMillis() - startTime, traceId});
+    } finally {
+      endTrace();
+    }
+  }
+
+  private void processBatch(String[] documentIdentifiers, IProcessActivity activities, DocumentSpecification spec)
+          throws ManifoldCFException, ServiceInterruption {
+    alfrescoClient.setFields(SpecificationHandler.getFields(spec));
     for (String doc : documentIdentifiers) {
       Map<String, Object> map = gson.fromJson(doc, Map.class);
       RepositoryDocument rd = new RepositoryDocument();
       String uuid = map.get("uuid").toString();
       rd.setFileName(uuid);
+      //Seeded as a full document, the node metadata is already part of the map
+      boolean fullDocument = map.containsKey(READABLE_AUTHORITIES);
       for (Entry<String, Object> e : map.entrySet()) {
         rd.addField(e.getKey(), e.getValue().toString());
       }
@@ -157,20 +442,132 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
       if ((Boolean) map.get("deleted")) {
         activities.deleteDocument(uuid);
       } else {
-        if (this.enableDocumentProcessing) {
-          processMetaData(rd,uuid);
+        AlfrescoContent content = null;
+        try {
+          Map<String, Object> properties = null;
+          if (fullDocument) {
+            properties = map;
+          } else if (this.enableDocumentProcessing) {
+            properties = processMetaData(rd, uuid, activities);
+          }
+          //Only content-aware nodes have a content URL
+          if (properties != null && this.enableContent && properties.containsKey(CONTENT_URL_PATH) &&
+              isContentWanted(uuid, properties)) {
+            content = processContent(rd, uuid, activities);
+          }
+          activities.ingestDocument(String.valueOf(uuid), "", uuid, rd);
+        } catch (AlfrescoDownException e) {
+          throw serviceInterruption(e);
+        } catch (AlfrescoRequestException e) {
+          skipDocument(uuid, e, activities);
+        } finally {
+          if (content != null) {
+            content.close();
+          }
         }
-        activities.ingestDocument(String.valueOf(uuid), "", uuid, rd);
       }
     }
   }
 
-  private void processMetaData(RepositoryDocument rd, String uuid) throws ManifoldCFException {
-    Map<String,Object> properties = alfrescoClient.fetchMetadata(uuid);
+  /**
+   * A node deleted since it was seeded (404) is deleted from the index; any other document refused by Alfresco
+   * is skipped, retrying it would get the same response
+   */
+  private void skipDocument(String uuid, AlfrescoRequestException e, IProcessActivity activities)
+          throws ManifoldCFException, ServiceInterruption {
+    if (e.getStatusCode() == 404) {
+      logger.debug("Deleting {}: {}", uuid, e.getMessage());
+      activities.deleteDocument(uuid);
+    } else {
+      logger.warn("Skipping {}: {}", uuid, e.getMessage());
+    }
+  }
+
+  private Map<String, Object> processMetaData(RepositoryDocument rd, String uuid, IProcessActivity activities)
+          throws ManifoldCFException {
+    long startTime = System.currentTimeMillis();
+    Map<String,Object> properties;
+    try {
+      properties = alfrescoClient.fetchMetadata(uuid);
+    } catch (AlfrescoDownException e) {
+      recordActivity(activities, startTime, ACTIVITY_FETCH, null, uuid, RESULT_ERROR, e.getMessage());
+      throw e;
+    } catch (AlfrescoRequestException e) {
+      recordActivity(activities, startTime, ACTIVITY_FETCH, null, uuid, RESULT_ERROR, e.getMessage());
+      throw e;
+    }
+    recordActivity(activities, startTime, ACTIVITY_FETCH, clientMetrics.getResponseBytes(), uuid, RESULT_OK, null);
     for(String property : properties.keySet()) {
       Object propertyValue = properties.get(property);
       rd.addField(property,propertyValue.toString());
     }
+    return properties;
+  }
+
+  /**
+   * Checks the content fingerprint (content URL, size and mimetype) rendered out by Alfresco, so that empty
+   * content and content exceeding the maximum size are not even requested
+   * @return false if the content is known to be empty or too large
+   */
+  private boolean isContentWanted(String uuid, Map<String, Object> properties) {
+    if (!properties.containsKey(CONTENT_URL)) {
+      //Either the node has no content, or Alfresco does not render out content fingerprints
+      return true;
+    }
+    Object size = properties.get(CONTENT_SIZE);
+    long contentSize = size instanceof Number ? ((Number) size).longValue() : Long.parseLong(size.toString());
+    if (contentSize == 0) {
+      logger.debug("Indexing metadata only: content of {} is empty", uuid);
+      return false;
+    }
+    if (maxContentSize >= 0 && contentSize > maxContentSize) {
+      logger.info("Indexing metadata only: content of {} is {} bytes, more than {} bytes",
+          new Object[]{uuid, contentSize, maxContentSize});
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Sets the node content (or its plain text, if enabled and available) as the document binary, recording
+   * its source in the content_source field; content exceeding the maximum size is skipped, and the document
+   * is indexed with its metadata only
+   * @return the content, to be closed once the document is ingested
+   */
+  private AlfrescoContent processContent(RepositoryDocument rd, String uuid, IProcessActivity activities)
+          throws ManifoldCFException {
+    long startTime = System.currentTimeMillis();
+    AlfrescoContent content;
+    try {
+      content = this.enableText ? alfrescoClient.fetchText(uuid) : alfrescoClient.fetchContent(uuid);
+    } catch (AlfrescoContentTooLargeException e) {
+      logger.info("Indexing metadata only: {}", e.getMessage());
+      recordActivity(activities, startTime, ACTIVITY_FETCH_CONTENT, null, uuid, RESULT_TOO_LARGE, e.getMessage());
+      return null;
+    } catch (AlfrescoDownException e) {
+      recordActivity(activities, startTime, ACTIVITY_FETCH_CONTENT, null, uuid, RESULT_ERROR, e.getMessage());
+      throw e;
+    } catch (AlfrescoRequestException e) {
+      recordActivity(activities, startTime, ACTIVITY_FETCH_CONTENT, null, uuid, RESULT_ERROR, e.getMessage());
+      throw e;
+    }
+    if (content == null) {
+      recordActivity(activities, startTime, ACTIVITY_FETCH_CONTENT, null, uuid, RESULT_NOT_FOUND, null);
+      return null;
+    }
+    recordActivity(activities, startTime, ACTIVITY_FETCH_CONTENT, content.getLength(), uuid, RESULT_OK,
+            content.getSource());
+    try {
+      rd.setBinary(content.getInputStream(), content.getLength());
+    } catch (IOException e) {
+      content.close();
+      throw new ManifoldCFException("Cannot read the content of " + uuid, e);
+    }
+    if (content.getMimeType() != null) {
+      rd.setMimeType(content.getMimeType());
+    }
+    rd.addField(CONTENT_SOURCE, content.getSource());
+    return content;
   }
 
   @Override
@@ -204,4 +601,28 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
     ConfigurationHandler.viewConfiguration(threadContext, out, locale,
             parameters);
   }
+
+  @Override
+  public void outputSpecificationHeader(IHTTPOutput out, Locale locale, DocumentSpecification spec,
+                                        List<String> tabsArray) throws ManifoldCFException, IOException {
+    SpecificationHandler.outputSpecificationHeader(out, locale, spec, tabsArray);
+  }
+
+  @Override
+  public void outputSpecificationBody(IHTTPOutput out, Locale locale, DocumentSpecification spec,
+                                      String tabName) throws ManifoldCFException, IOException {
+    SpecificationHandler.outputSpecificationBody(out, locale, spec, tabName);
+  }
+
+  @Override
+  public String processSpecificationPost(IPostParameters variableContext, Locale locale,
+                                         DocumentSpecification spec) throws ManifoldCFException {
+    return SpecificationHandler.processSpecificationPost(variableContext, locale, spec);
+  }
+
+  @Override
+  public void viewSpecification(IHTTPOutput out, Locale locale, DocumentSpecification spec)
+          throws ManifoldCFException, IOException {
+    SpecificationHandler.viewSpecification(out, locale, spec);
+  }
 }
\ No newline at end of file
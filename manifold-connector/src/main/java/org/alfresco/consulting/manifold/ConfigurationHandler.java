@@ -24,6 +24,21 @@ public class ConfigurationHandler {
   private static final String PARAM_ENDPOINT = "endpoint";
   private static final String PARAM_STORE_PROTOCOL = "storeprotocol";
   private static final String PARAM_ENABLE_DOCUMENT_PROCESSING = "enabledocumentprocessing";
+  private static final String PARAM_ENABLE_LONG_POLLING = "enablelongpolling";
+  private static final String PARAM_ENABLE_STREAMING = "enablestreaming";
+  private static final String PARAM_ENABLE_SMILE = "enablesmile";
+  private static final String PARAM_ENABLE_CONTENT = "enablecontent";
+  private static final String PARAM_ENABLE_TEXT = "enabletext";
+  private static final String PARAM_ENABLE_FULL_DOCUMENTS = "enablefulldocuments";
+  private static final String PARAM_CONTENT_MEMORY_THRESHOLD = "contentmemorythreshold";
+  private static final String PARAM_MAX_CONTENT_SIZE = "maxcontentsize";
+  private static final String PARAM_MIN_PAGE_SIZE = "minpagesize";
+  private static final String PARAM_MAX_PAGE_SIZE = "maxpagesize";
+  private static final String PARAM_TARGET_RESPONSE_TIME = "targetresponsetime";
+  private static final String PARAM_MAX_RESPONSE_SIZE = "maxresponsesize";
+  private static final String PARAM_CONNECT_TIMEOUT = "connecttimeout";
+  private static final String PARAM_SOCKET_TIMEOUT = "sockettimeout";
+  private static final String PARAM_MAX_RETRIES = "maxretries";
   private static final String PARAM_STORE_ID = "storeid";
   private static final String PARAM_USERNAME = "username";
   private static final String PARAM_PASSWORD = "password";
@@ -39,6 +54,21 @@ public class ConfigurationHandler {
     DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_ENDPOINT, "/alfresco/service");
     DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_STORE_PROTOCOL, "workspace");
     DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_ENABLE_DOCUMENT_PROCESSING,"true");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_ENABLE_LONG_POLLING,"false");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_ENABLE_STREAMING,"false");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_ENABLE_SMILE,"false");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_ENABLE_CONTENT,"false");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_ENABLE_TEXT,"false");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_ENABLE_FULL_DOCUMENTS,"false");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_CONTENT_MEMORY_THRESHOLD, "1048576");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_MAX_CONTENT_SIZE, "-1");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_MIN_PAGE_SIZE, "10");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_MAX_PAGE_SIZE, "1000");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_TARGET_RESPONSE_TIME, "2000");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_MAX_RESPONSE_SIZE, "5242880");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_CONNECT_TIMEOUT, "10000");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_SOCKET_TIMEOUT, "60000");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_MAX_RETRIES, "3");
     DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_STORE_ID, "SpacesStore");
     DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_USERNAME, "");
     DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_PASSWORD, "");
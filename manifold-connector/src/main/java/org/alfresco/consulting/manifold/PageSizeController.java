@@ -0,0 +1,65 @@
+package org.alfresco.consulting.manifold;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adapts the number of transactions (and ACL changesets) requested per page to how Alfresco responds:
+ * the page size grows while responses are fast and small, and is halved as soon as the response time
+ * or the payload size exceed their targets. Pages that advance the cursor without returning any node
+ * (e.g. transactions only touching types that are not indexed) are cheap, so the page size grows faster
+ * when they make up most of the recent pages.
+ */
+class PageSizeController {
+  private static final Logger logger = LoggerFactory.getLogger(PageSizeController.class);
+  /** Weight of the latest page in the empty page rate */
+  private static final double EMPTY_RATE_WEIGHT = 0.2;
+
+  private final int minPageSize;
+  private final int maxPageSize;
+  private final long targetResponseTime;
+  private final long maxResponseSize;
+  private int pageSize;
+  private double emptyPageRate = 0;
+
+  PageSizeController(int minPageSize, int maxPageSize, long targetResponseTime, long maxResponseSize) {
+    this.minPageSize = Math.max(1, minPageSize);
+    this.maxPageSize = Math.max(this.minPageSize, maxPageSize);
+    this.targetResponseTime = targetResponseTime;
+    this.maxResponseSize = maxResponseSize;
+    this.pageSize = this.minPageSize;
+  }
+
+  int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * Records how a page was served and adjusts the size of the next one
+   *
+   * @param responseTime the time (in milliseconds) taken to fetch the page
+   * @param responseSize the size (in bytes) of the page, or -1 if unknown
+   * @param documents    the number of nodes in the page
+   * @param progress     whether the page advanced the transaction or ACL changeset cursor
+   */
+  synchronized void pageFetched(long responseTime, long responseSize, int documents, boolean progress) {
+    if (!progress) {
+      //Indexing is up to date: the page says nothing about how large the next one can be
+      return;
+    }
+    emptyPageRate = (1 - EMPTY_RATE_WEIGHT) * emptyPageRate + EMPTY_RATE_WEIGHT * (documents == 0 ? 1 : 0);
+
+    int previousPageSize = pageSize;
+    if (responseTime > targetResponseTime || (maxResponseSize > 0 && responseSize > maxResponseSize)) {
+      pageSize = Math.max(minPageSize, pageSize / 2);
+    } else if (responseTime < targetResponseTime / 2) {
+      int increment = emptyPageRate > 0.5 ? pageSize : Math.max(1, pageSize / 4);
+      pageSize = (int) Math.min(maxPageSize, (long) pageSize + increment);
+    }
+
+    if (pageSize != previousPageSize) {
+      logger.debug("Page size changed from {} to {} (response time: {} ms, response size: {} bytes, empty page rate: {})",
+          new Object[]{previousPageSize, pageSize, responseTime, responseSize, emptyPageRate});
+    }
+  }
+}
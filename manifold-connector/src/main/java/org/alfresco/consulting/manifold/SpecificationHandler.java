@@ -0,0 +1,165 @@
+package org.alfresco.consulting.manifold;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.manifoldcf.core.i18n.Messages;
+import org.apache.manifoldcf.core.interfaces.IHTTPOutput;
+import org.apache.manifoldcf.core.interfaces.IPostParameters;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.apache.manifoldcf.core.interfaces.Specification;
+import org.apache.manifoldcf.core.interfaces.SpecificationNode;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+
+/**
+ * Job specification:
+ * - Scope: the sites (short names) and folders (nodeRefs) a job is restricted to; a job without sites
+ *   and folders crawls the whole store
+ * - Fields: the properties and aspects (prefixed QNames) to be included or excluded; a job without
+ *   included fields indexes all of them
+ */
+public class SpecificationHandler {
+  static final String NODE_SITE = "site";
+  static final String NODE_FOLDER = "folder";
+  static final String NODE_INCLUDE = "include";
+  static final String NODE_EXCLUDE = "exclude";
+  private static final String ATTRIBUTE_VALUE = "value";
+
+  private static final String PARAM_SITES = "scopesites";
+  private static final String PARAM_FOLDERS = "scopefolders";
+  private static final String PARAM_INCLUDE = "fieldsinclude";
+  private static final String PARAM_EXCLUDE = "fieldsexclude";
+
+  private static final String EDIT_SPEC_HEADER = "editSpecification.js";
+  private static final String EDIT_SPEC_SCOPE = "editSpecification_Scope.html";
+  private static final String EDIT_SPEC_FIELDS = "editSpecification_Fields.html";
+  private static final String VIEW_SPEC = "viewSpecification.html";
+
+  private SpecificationHandler() {
+  }
+
+  public static void outputSpecificationHeader(IHTTPOutput out, Locale locale, Specification spec,
+      List<String> tabsArray) throws ManifoldCFException, IOException {
+    tabsArray.add("Scope");
+    tabsArray.add("Fields");
+    InputStream inputStream = SpecificationHandler.class.getResourceAsStream("/org/alfresco/consulting/manifold/" + EDIT_SPEC_HEADER);
+    StringWriter writer = new StringWriter();
+    IOUtils.copy(inputStream, writer, "UTF-8");
+    inputStream.close();
+    out.print(writer.toString());
+  }
+
+  public static void outputSpecificationBody(IHTTPOutput out, Locale locale, Specification spec,
+      String tabName) throws ManifoldCFException, IOException {
+    VelocityContext context = createVelocityContext(spec);
+    context.put("tabName", tabName);
+    VelocityEngine velocityEngine = Messages.createVelocityEngine(SpecificationHandler.class);
+    StringWriter w = new StringWriter();
+    velocityEngine.mergeTemplate(EDIT_SPEC_SCOPE, "UTF-8", context, w);
+    velocityEngine.mergeTemplate(EDIT_SPEC_FIELDS, "UTF-8", context, w);
+    out.print(w.toString());
+  }
+
+  public static String processSpecificationPost(IPostParameters variableContext, Locale locale,
+      Specification spec) throws ManifoldCFException {
+    String sites = variableContext.getParameter(PARAM_SITES);
+    if (sites != null) {
+      setValues(spec, NODE_SITE, sites);
+    }
+    String folders = variableContext.getParameter(PARAM_FOLDERS);
+    if (folders != null) {
+      setValues(spec, NODE_FOLDER, folders);
+    }
+    String include = variableContext.getParameter(PARAM_INCLUDE);
+    if (include != null) {
+      setValues(spec, NODE_INCLUDE, include);
+    }
+    String exclude = variableContext.getParameter(PARAM_EXCLUDE);
+    if (exclude != null) {
+      setValues(spec, NODE_EXCLUDE, exclude);
+    }
+    return null;
+  }
+
+  public static void viewSpecification(IHTTPOutput out, Locale locale, Specification spec)
+      throws ManifoldCFException, IOException {
+    VelocityContext context = createVelocityContext(spec);
+    VelocityEngine velocityEngine = Messages.createVelocityEngine(SpecificationHandler.class);
+    StringWriter w = new StringWriter();
+    velocityEngine.mergeTemplate(VIEW_SPEC, "UTF-8", context, w);
+    out.print(w.toString());
+  }
+
+  /**
+   * @return the values of the given type of specification nodes, i.e. site short names or folder nodeRefs
+   */
+  static List<String> getValues(Specification spec, String nodeType) {
+    List<String> values = new ArrayList<String>();
+    if (spec == null) {
+      return values;
+    }
+    for (int i = 0; i < spec.getChildCount(); i++) {
+      SpecificationNode node = spec.getChild(i);
+      if (node.getType().equals(nodeType)) {
+        values.add(node.getAttributeValue(ATTRIBUTE_VALUE));
+      }
+    }
+    return values;
+  }
+
+  /**
+   * @return the fields parameter of the details WebScript: included fields, followed by excluded ones
+   * (prefixed with "-")
+   */
+  static List<String> getFields(Specification spec) {
+    List<String> fields = getValues(spec, NODE_INCLUDE);
+    for (String excluded : getValues(spec, NODE_EXCLUDE)) {
+      fields.add("-" + excluded);
+    }
+    return fields;
+  }
+
+  /**
+   * Replaces the given type of specification nodes with the comma separated values
+   */
+  private static void setValues(Specification spec, String nodeType, String values) {
+    for (int i = spec.getChildCount() - 1; i >= 0; i--) {
+      if (spec.getChild(i).getType().equals(nodeType)) {
+        spec.removeChild(i);
+      }
+    }
+    for (String value : values.split(",")) {
+      if (!value.trim().isEmpty()) {
+        SpecificationNode node = new SpecificationNode(nodeType);
+        node.setAttribute(ATTRIBUTE_VALUE, value.trim());
+        spec.addChild(spec.getChildCount(), node);
+      }
+    }
+  }
+
+  private static VelocityContext createVelocityContext(Specification spec) {
+    VelocityContext context = new VelocityContext();
+    context.put(PARAM_SITES, join(getValues(spec, NODE_SITE)));
+    context.put(PARAM_FOLDERS, join(getValues(spec, NODE_FOLDER)));
+    context.put(PARAM_INCLUDE, join(getValues(spec, NODE_INCLUDE)));
+    context.put(PARAM_EXCLUDE, join(getValues(spec, NODE_EXCLUDE)));
+    return context;
+  }
+
+  private static String join(List<String> values) {
+    StringBuilder joined = new StringBuilder();
+    for (String value : values) {
+      if (joined.length() > 0) {
+        joined.append(",");
+      }
+      joined.append(value);
+    }
+    return joined.toString();
+  }
+}
@@ -0,0 +1,11 @@
+<script type="text/javascript">
+<!--
+function checkSpecification() {
+	return true;
+}
+
+function checkSpecificationForSave() {
+	return true;
+}
+// -->
+</script>
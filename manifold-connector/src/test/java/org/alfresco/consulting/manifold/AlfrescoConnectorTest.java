@@ -2,9 +2,18 @@ package org.alfresco.consulting.manifold;
 
 import com.google.gson.Gson;
 import org.alfresco.consulting.indexer.client.AlfrescoClient;
+import org.alfresco.consulting.indexer.client.AlfrescoContent;
+import org.alfresco.consulting.indexer.client.AlfrescoDocumentHandler;
+import org.alfresco.consulting.indexer.client.AlfrescoDownException;
+import org.alfresco.consulting.indexer.client.AlfrescoRequestException;
 import org.alfresco.consulting.indexer.client.AlfrescoResponse;
+import org.alfresco.consulting.indexer.client.AlfrescoStatus;
 import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
+import org.apache.manifoldcf.agents.interfaces.ServiceInterruption;
+import org.apache.manifoldcf.core.interfaces.ConfigParams;
 import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.apache.manifoldcf.core.interfaces.Specification;
+import org.apache.manifoldcf.core.interfaces.SpecificationNode;
 import org.apache.manifoldcf.crawler.interfaces.DocumentSpecification;
 import org.apache.manifoldcf.crawler.interfaces.IProcessActivity;
 import org.apache.manifoldcf.crawler.system.SeedingActivity;
@@ -12,13 +21,19 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.ByteArrayInputStream;
 import java.util.*;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
@@ -39,6 +54,22 @@ public class AlfrescoConnectorTest {
     when(client.fetchNodes(anyInt(), anyInt()))
             .thenReturn(new AlfrescoResponse(
                     0, 0, "", "", Collections.<Map<String, Object>>emptyList()));
+    when(client.fetchStatus())
+            .thenReturn(new AlfrescoStatus(0, 0, Collections.<String, Map<String, Long>>emptyMap()));
+  }
+
+  /**
+   * Connects with the given parameters (name, value, name, value...), going on with the mocked client
+   */
+  private void connect(String... parameters) {
+    ConfigParams config = new ConfigParams();
+    for (int i = 0; i < parameters.length; i += 2) {
+      config.setParameter(parameters[i], parameters[i + 1]);
+    }
+    //Otherwise, connecting closes the mocked client
+    connector.setClient(null);
+    connector.connect(config);
+    connector.setClient(client);
   }
 
   @Test
@@ -72,6 +103,145 @@ public class AlfrescoConnectorTest {
     verify(client, times(1)).fetchNodes(eq(lastTransactionId), eq(lastAclChangesetId));
   }
 
+  @Test
+  public void whenLongPollingIsEnabledContinuousJobsShouldWaitForChanges() throws Exception {
+    connect("enablelongpolling", "true");
+    when(client.waitForNodes(anyLong(), anyLong()))
+            .thenReturn(new AlfrescoResponse(0, 0));
+
+    connector.addSeedDocumentsWithVersion(mock(SeedingActivity.class), new Specification(), "",
+            0, AlfrescoConnector.JOBMODE_CONTINUOUS);
+
+    verify(client).waitForNodes(eq(0L), eq(0L));
+    verify(client, never()).fetchNodes(anyLong(), anyLong());
+  }
+
+  @Test
+  public void whenTheJobIsScopedOnlyItsSitesAndFoldersShouldBeRequested() throws Exception {
+    Specification spec = new Specification();
+    SpecificationNode site = new SpecificationNode("site");
+    site.setAttribute("value", "marketing");
+    spec.addChild(0, site);
+    SpecificationNode folder = new SpecificationNode("folder");
+    folder.setAttribute("value", "workspace://SpacesStore/abc123");
+    spec.addChild(1, folder);
+
+    connector.addSeedDocumentsWithVersion(mock(SeedingActivity.class), spec, "", 0,
+            AlfrescoConnector.JOBMODE_ONCEONLY);
+
+    verify(client).setScope(Arrays.asList("marketing"), Arrays.asList("workspace://SpacesStore/abc123"));
+  }
+
+  @Test
+  public void whenDisconnectingTheClientShouldBeClosed() throws Exception {
+    connector.disconnect();
+
+    verify(client).close();
+  }
+
+  @Test
+  public void whenSeedingIsCompletedTheIndexingLagShouldBeRecorded() throws Exception {
+    when(client.fetchNodes(anyLong(), anyLong()))
+            .thenReturn(new AlfrescoResponse(5, 5));
+    when(client.fetchStatus())
+            .thenReturn(new AlfrescoStatus(15, 5, Collections.<String, Map<String, Long>>emptyMap()));
+
+    SeedingActivity activities = mock(SeedingActivity.class);
+    connector.addSeedDocuments(activities, new DocumentSpecification(), 0, 0);
+
+    verify(activities).recordActivity(anyLong(), eq("indexing lag"), (Long) isNull(), anyString(), eq("OK"),
+            startsWith("10 transactions behind"), any(String[].class));
+  }
+
+  @Test
+  public void whenChangesAreFetchedTheFetchesShouldBeRecorded() throws Exception {
+    when(client.fetchNodes(anyLong(), anyLong()))
+            .thenReturn(new AlfrescoResponse(5, 5, "", "", Collections.<Map<String, Object>>emptyList(), 2048, 512));
+    SeedingActivity seedingActivities = mock(SeedingActivity.class);
+    connector.addSeedDocuments(seedingActivities, new DocumentSpecification(), 0, 0);
+
+    verify(seedingActivities, atLeastOnce()).recordActivity(anyLong(), eq("fetch changes"), eq(512L), anyString(),
+            eq("OK"), anyString(), any(String[].class));
+  }
+
+  @Test
+  public void whenADocumentCannotBeFetchedTheFailureShouldBeRecorded() throws Exception {
+    connect("enabledocumentprocessing", "true");
+    when(client.fetchMetadata(TestDocument.uuid)).thenThrow(new AlfrescoDownException("Alfresco is restarting"));
+    IProcessActivity activities = mock(IProcessActivity.class);
+    try {
+      connector.processDocuments(new String[]{gson.toJson(new TestDocument())}, null, activities, null, null, 0);
+    } catch (ServiceInterruption e) {
+      //expected
+    }
+
+    verify(activities).recordActivity(anyLong(), eq("fetch document"), any(Long.class), eq(TestDocument.uuid),
+            eq("ERROR"), startsWith("Alfresco is restarting"), any(String[].class));
+  }
+
+  @Test
+  public void whenPagesAreFetchedQuicklyThePageSizeShouldGrow() throws Exception {
+    when(client.fetchNodes(anyLong(), anyLong()))
+            .thenReturn(new AlfrescoResponse(5, 5), new AlfrescoResponse(10, 10), new AlfrescoResponse(10, 10));
+
+    connector.addSeedDocuments(mock(SeedingActivity.class), new DocumentSpecification(), 0, 0);
+
+    InOrder inOrder = inOrder(client);
+    inOrder.verify(client).setPageSize(10, 10);
+    inOrder.verify(client).fetchNodes(0L, 0L);
+    inOrder.verify(client).setPageSize(12, 12);
+    inOrder.verify(client).fetchNodes(5L, 5L);
+  }
+
+  @Test
+  public void whenStreamingIsEnabledStreamedDocumentsShouldBeAddedToManifold() throws Exception {
+    connect("enablestreaming", "true");
+    final TestDocument testDocument = new TestDocument();
+    when(client.streamNodes(anyLong(), anyLong(), any(AlfrescoDocumentHandler.class)))
+            .thenAnswer(new Answer<AlfrescoResponse>() {
+              @Override
+              public AlfrescoResponse answer(InvocationOnMock invocation) throws Throwable {
+                ((AlfrescoDocumentHandler) invocation.getArguments()[2]).handleDocument(testDocument);
+                return new AlfrescoResponse(0, 0);
+              }
+            });
+
+    SeedingActivity seedingActivity = mock(SeedingActivity.class);
+    connector.addSeedDocuments(seedingActivity, new DocumentSpecification(), 0, 0);
+
+    verify(seedingActivity).addSeedDocument(eq(gson.toJson(testDocument)));
+    verify(client, never()).fetchNodes(anyLong(), anyLong());
+  }
+
+  @Test(expected = ServiceInterruption.class)
+  public void whenAlfrescoIsDownSeedingShouldBeRetriedLater() throws Exception {
+    when(client.fetchNodes(anyLong(), anyLong()))
+            .thenThrow(new AlfrescoDownException("Alfresco appears to be down"));
+
+    connector.addSeedDocuments(mock(SeedingActivity.class), new DocumentSpecification(), 0, 0);
+  }
+
+  @Test(expected = ManifoldCFException.class)
+  public void whenAlfrescoRefusesTheChangesRequestSeedingShouldFail() throws Exception {
+    when(client.fetchNodes(anyLong(), anyLong()))
+            .thenThrow(new AlfrescoRequestException(401, "Alfresco responded with HTTP/1.1 401 Unauthorized"));
+
+    connector.addSeedDocuments(mock(SeedingActivity.class), new DocumentSpecification(), 0, 0);
+  }
+
+  @Test
+  public void whenANodeHasBeenDeletedSinceSeedingItShouldBeDeleted() throws Exception {
+    connect("enabledocumentprocessing", "true");
+    when(client.fetchMetadata(TestDocument.uuid))
+            .thenThrow(new AlfrescoRequestException(404, "Alfresco responded with HTTP/1.1 404 Not Found"));
+
+    IProcessActivity activities = mock(IProcessActivity.class);
+    connector.processDocuments(new String[]{gson.toJson(new TestDocument())}, null, activities, null, null, 0);
+
+    verify(activities).deleteDocument(eq(TestDocument.uuid));
+    verify(activities, never()).ingestDocument(anyString(), anyString(), anyString(), any(RepositoryDocument.class));
+  }
+
   @SuppressWarnings("unchecked")
   @Test
   public void whenADocumentIsReturnedItShouldBeAddedToManifold() throws Exception {
@@ -108,6 +278,112 @@ public class AlfrescoConnectorTest {
     }
   }
 
+  @Test
+  public void whenContentIsEnabledItShouldBeIngestedAsBinary() throws Exception {
+    connect("enabledocumentprocessing", "true", "enablecontent", "true");
+    Map<String, Object> metadata = new HashMap<String, Object>();
+    metadata.put("contentUrlPath", "http://localhost:8080/alfresco/service/api/node/workspace/SpacesStore/abc123/content");
+    when(client.fetchMetadata(TestDocument.uuid)).thenReturn(metadata);
+    AlfrescoContent content = mock(AlfrescoContent.class);
+    when(content.getInputStream()).thenReturn(new ByteArrayInputStream("text".getBytes("UTF-8")));
+    when(content.getLength()).thenReturn(4L);
+    when(content.getMimeType()).thenReturn("text/plain");
+    when(content.getSource()).thenReturn(AlfrescoContent.SOURCE_RAW);
+    when(client.fetchContent(TestDocument.uuid)).thenReturn(content);
+
+    IProcessActivity activities = mock(IProcessActivity.class);
+    connector.processDocuments(new String[]{gson.toJson(new TestDocument())}, null, activities, null, null, 0);
+
+    ArgumentCaptor<RepositoryDocument> rd = ArgumentCaptor.forClass(RepositoryDocument.class);
+    verify(activities).ingestDocument(eq(TestDocument.uuid), anyString(), eq(TestDocument.uuid), rd.capture());
+    assertEquals(4L, rd.getValue().getBinaryLength());
+    assertEquals("text/plain", rd.getValue().getMimeType());
+    assertEquals(AlfrescoContent.SOURCE_RAW, rd.getValue().getField("content_source")[0]);
+    verify(content).close();
+  }
+
+  @Test
+  public void whenTheContentFingerprintExceedsTheMaximumSizeTheContentShouldNotBeFetched() throws Exception {
+    connect("enabledocumentprocessing", "true", "enablecontent", "true", "maxcontentsize", "1024");
+    Map<String, Object> metadata = new HashMap<String, Object>();
+    metadata.put("contentUrlPath", "http://localhost:8080/alfresco/service/api/node/workspace/SpacesStore/abc123/content");
+    metadata.put("contentUrl", "store://2014/1/1/0/0/abc123.bin");
+    metadata.put("contentSize", 2048L);
+    metadata.put("contentMimetype", "application/pdf");
+    when(client.fetchMetadata(TestDocument.uuid)).thenReturn(metadata);
+
+    IProcessActivity activities = mock(IProcessActivity.class);
+    connector.processDocuments(new String[]{gson.toJson(new TestDocument())}, null, activities, null, null, 0);
+
+    ArgumentCaptor<RepositoryDocument> rd = ArgumentCaptor.forClass(RepositoryDocument.class);
+    verify(activities).ingestDocument(eq(TestDocument.uuid), anyString(), eq(TestDocument.uuid), rd.capture());
+    assertEquals("store://2014/1/1/0/0/abc123.bin", rd.getValue().getField("contentUrl")[0]);
+    verify(client, never()).fetchContent(anyString());
+  }
+
+  @Test
+  public void whenFieldsAreSpecifiedOnlyThoseShouldBeRequested() throws Exception {
+    connect("enabledocumentprocessing", "true");
+    when(client.fetchMetadata(TestDocument.uuid)).thenReturn(new HashMap<String, Object>());
+    DocumentSpecification spec = new DocumentSpecification();
+    SpecificationNode include = new SpecificationNode("include");
+    include.setAttribute("value", "cm:name");
+    spec.addChild(0, include);
+    SpecificationNode exclude = new SpecificationNode("exclude");
+    exclude.setAttribute("value", "sys:localized");
+    spec.addChild(1, exclude);
+
+    connector.processDocuments(new String[]{gson.toJson(new TestDocument())}, null, mock(IProcessActivity.class),
+            spec, null, 0);
+
+    InOrder inOrder = inOrder(client);
+    inOrder.verify(client).setFields(Arrays.asList("cm:name", "-sys:localized"));
+    inOrder.verify(client).fetchMetadata(TestDocument.uuid);
+  }
+
+  @Test
+  public void whenFullDocumentsAreEnabledTheMetadataShouldNotBeFetched() throws Exception {
+    connect("enabledocumentprocessing", "true", "enablefulldocuments", "true");
+    when(client.fetchNodes(anyLong(), anyLong()))
+            .thenReturn(new AlfrescoResponse(0, 0));
+
+    connector.addSeedDocumentsWithVersion(mock(SeedingActivity.class), new Specification(), "", 0,
+            AlfrescoConnector.JOBMODE_ONCEONLY);
+    verify(client).setInclude(Arrays.asList("properties", "aspects", "acl", "path"));
+
+    TestDocument document = new TestDocument();
+    document.put("readableAuthorities", Arrays.asList("GROUP_EVERYONE"));
+    document.put("cm:name", "a.txt");
+    IProcessActivity activities = mock(IProcessActivity.class);
+    connector.processDocuments(new String[]{gson.toJson(document)}, null, activities, null, null, 0);
+
+    ArgumentCaptor<RepositoryDocument> rd = ArgumentCaptor.forClass(RepositoryDocument.class);
+    verify(activities).ingestDocument(eq(TestDocument.uuid), anyString(), eq(TestDocument.uuid), rd.capture());
+    assertEquals("a.txt", rd.getValue().getField("cm:name")[0]);
+    verify(client, never()).fetchMetadata(anyString());
+  }
+
+  @Test
+  public void whenTextIsEnabledThePlainTextShouldBeIngestedInsteadOfTheRawContent() throws Exception {
+    connect("enabledocumentprocessing", "true", "enablecontent", "true", "enabletext", "true");
+    Map<String, Object> metadata = new HashMap<String, Object>();
+    metadata.put("contentUrlPath", "http://localhost:8080/alfresco/service/api/node/workspace/SpacesStore/abc123/content");
+    when(client.fetchMetadata(TestDocument.uuid)).thenReturn(metadata);
+    AlfrescoContent content = mock(AlfrescoContent.class);
+    when(content.getInputStream()).thenReturn(new ByteArrayInputStream("text".getBytes("UTF-8")));
+    when(content.getLength()).thenReturn(4L);
+    when(content.getSource()).thenReturn(AlfrescoContent.SOURCE_TRANSFORMATION);
+    when(client.fetchText(TestDocument.uuid)).thenReturn(content);
+
+    IProcessActivity activities = mock(IProcessActivity.class);
+    connector.processDocuments(new String[]{gson.toJson(new TestDocument())}, null, activities, null, null, 0);
+
+    ArgumentCaptor<RepositoryDocument> rd = ArgumentCaptor.forClass(RepositoryDocument.class);
+    verify(activities).ingestDocument(eq(TestDocument.uuid), anyString(), eq(TestDocument.uuid), rd.capture());
+    assertEquals(AlfrescoContent.SOURCE_TRANSFORMATION, rd.getValue().getField("content_source")[0]);
+    verify(client, never()).fetchContent(anyString());
+  }
+
   @Test
   public void whenProcessingDeletionShouldBeRegisteredAsDeletions() throws Exception {
     TestDocument testDocument = new TestDocument();